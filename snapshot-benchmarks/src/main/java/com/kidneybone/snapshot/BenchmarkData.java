@@ -0,0 +1,49 @@
+package com.kidneybone.snapshot;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import com.kidneybone.snapshot.blocks.BlockHash;
+
+/**
+ * Generates the contents that the benchmarks store and compress. Everything
+ * is seeded, so that each run measures the same data.
+ */
+public final class BenchmarkData {
+    private BenchmarkData() {
+    }
+
+    /**
+     * Generates text which looks like a log file, which deflate shrinks to
+     * about a fifth of its size.
+     */
+    public static ByteBuffer compressible(int size, long seed) {
+        Random random = new Random(seed);
+        StringBuilder text = new StringBuilder(size + 200);
+        String[] levels = { "INFO ", "DEBUG", "WARN " };
+
+        while (text.length() < size) {
+            text.append(String.format("2019-03-%02d %02d:%02d:%02d %s [worker-%d] Stored block %016x for src/main/java/Component%d.java\n",
+                                      1 + random.nextInt(28), random.nextInt(24), random.nextInt(60), random.nextInt(60),
+                                      levels[random.nextInt(levels.length)], random.nextInt(8), random.nextLong(),
+                                      random.nextInt(500)));
+        }
+
+        return ByteBuffer.wrap(text.substring(0, size).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Generates bytes which no codec can shrink, like an already compressed
+     * file.
+     */
+    public static ByteBuffer random(int size, long seed) {
+        byte[] contents = new byte[size];
+        new Random(seed).nextBytes(contents);
+        return ByteBuffer.wrap(contents);
+    }
+
+    public static BlockHash randomHash(Random random) {
+        return BlockHash.of(random.nextLong(), random.nextLong(), random.nextLong(), random.nextLong());
+    }
+}
@@ -0,0 +1,88 @@
+package com.kidneybone.snapshot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kidneybone.snapshot.blocks.BasicBlock;
+import com.kidneybone.snapshot.blocks.BlockHash;
+import com.kidneybone.snapshot.blocks.DataBlock;
+
+/**
+ * Stores data blocks through serializeBlockInternal, the way a commit does.
+ * A new block is hashed, compressed, appended and indexed; a block which is
+ * already stored is only hashed and looked up.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlockStoreBenchmark {
+    @Param({ "deflate", "lz" })
+    public String codec;
+
+    private Path _file;
+    private FileChannel _channel;
+    private BlockStore _store;
+
+    private ByteBuffer _contents;
+    private final DataBlock _newBlock = new DataBlock();
+    private DataBlock _storedBlock;
+    private long _counter = 0;
+
+    @Setup
+    public void setup() throws IOException {
+        _file = Files.createTempFile("snapshot-benchmark", ".ss");
+        _channel = FileChannel.open(_file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        _store = new BlockStore(_channel);
+        _store.serialize();
+        _store.setCodecPolicy(CodecPolicy.parse(codec));
+
+        _contents = BenchmarkData.compressible(BasicBlock.BLOCK_SIZE_BYTES, 1);
+        _storedBlock = new DataBlock(_contents.duplicate());
+        _store.serializeBlockInternal(_storedBlock, true);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        _channel.close();
+        Files.deleteIfExists(_file);
+    }
+
+    /**
+     * Stores a block that isn't in the store yet. Only its first eight
+     * bytes differ from the one before, which doesn't change how well it
+     * compresses.
+     */
+    @Benchmark
+    public BlockHash newBlock() throws IOException {
+        _contents.putLong(0, ++_counter);
+        _contents.rewind();
+        _newBlock.setContents(_contents);
+        return _store.serializeBlockInternal(_newBlock, true).hash;
+    }
+
+    @Benchmark
+    public BlockHash dedupHit() throws IOException {
+        return _store.serializeBlockInternal(_storedBlock, true).hash;
+    }
+}
@@ -0,0 +1,111 @@
+package com.kidneybone.snapshot;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.SplittableRandom;
+
+/**
+ * Compares how well fixed and content-defined chunking deduplicate two
+ * versions of a file, where the second has a few small inserts. This is the
+ * usual shape of a growing log or a database dump, and the case that fixed
+ * chunking handles worst.
+ *
+ * Usage: ChunkingComparison [SIZE-MB [INSERTS [SEED]]]
+ */
+class ChunkingComparison {
+    public static void main(String[] args) throws IOException, NoSuchAlgorithmException {
+        int sizeMegabytes = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int inserts = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+
+        SplittableRandom random = new SplittableRandom(seed);
+        byte[] original = new byte[sizeMegabytes * 1024 * 1024];
+        random.nextBytes(original);
+        byte[] edited = insertRandomBytes(original, inserts, random);
+
+        System.out.printf("Original %d bytes, edited %d bytes after %d inserts\n\n",
+                          original.length, edited.length, inserts);
+        System.out.printf("%-26s %8s %8s %14s %10s\n", "Chunking", "Chunks", "Reused", "New bytes", "Dedup");
+
+        compare("fixed", Chunking.FIXED, original, edited);
+        compare("cdc (4K/16K/64K)", Chunking.parse("cdc"), original, edited);
+        compare("cdc (2K/8K/32K)", Chunking.contentDefined(2048, 8192, 32768), original, edited);
+    }
+
+    /**
+     * Inserts runs of 1 to 64 random bytes at random positions.
+     */
+    private static byte[] insertRandomBytes(byte[] data, int inserts, SplittableRandom random) {
+        int[] positions = new int[inserts];
+        for (int i = 0; i < inserts; i++) {
+            positions[i] = random.nextInt(data.length);
+        }
+
+        Arrays.sort(positions);
+
+        ByteBuffer edited = ByteBuffer.allocate(data.length + inserts * 64);
+        int copied = 0;
+        for (int position: positions) {
+            edited.put(data, copied, position - copied);
+            copied = position;
+
+            byte[] insert = new byte[1 + random.nextInt(64)];
+            random.nextBytes(insert);
+            edited.put(insert);
+        }
+
+        edited.put(data, copied, data.length - copied);
+        return Arrays.copyOf(edited.array(), edited.position());
+    }
+
+    private static void compare(String name, Chunking chunking, byte[] original, byte[] edited)
+        throws IOException, NoSuchAlgorithmException {
+        HashSet<ByteBuffer> stored = new HashSet<ByteBuffer>();
+        long storedBytes = chunk(chunking, original, stored, new long[2]);
+
+        long[] counts = new long[2];
+        long newBytes = chunk(chunking, edited, stored, counts);
+        storedBytes += newBytes;
+
+        // Bytes in both versions over bytes in the distinct chunks
+        double dedup = (double) (original.length + edited.length) / storedBytes;
+        System.out.printf("%-26s %8d %8d %14d %9.2fx\n", name, counts[0], counts[1], newBytes, dedup);
+    }
+
+    /**
+     * Chunks the data, adding the hash of every chunk to the stored set.
+     * Returns the number of bytes taken up by chunks that weren't already
+     * stored, and fills in the total number of chunks and the number of
+     * chunks that were reused.
+     */
+    private static long chunk(Chunking chunking, byte[] data, HashSet<ByteBuffer> stored, long[] counts)
+        throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        Chunking.ChunkReader chunks = chunking.newReader(Channels.newChannel(new ByteArrayInputStream(data)));
+        long newBytes = 0;
+
+        ByteBuffer chunk = chunks.nextChunk();
+        while (chunk != null) {
+            int length = chunk.remaining();
+            digest.update(chunk);
+            ByteBuffer hash = ByteBuffer.wrap(digest.digest());
+
+            counts[0]++;
+            if (stored.add(hash)) {
+                newBytes += length;
+            } else {
+                counts[1]++;
+            }
+
+            chunk = chunks.nextChunk();
+        }
+
+        return newBytes;
+    }
+}
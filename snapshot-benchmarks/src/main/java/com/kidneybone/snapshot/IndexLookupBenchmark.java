@@ -0,0 +1,180 @@
+package com.kidneybone.snapshot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kidneybone.snapshot.blocks.BlockHash;
+import com.kidneybone.snapshot.codecs.Codecs;
+
+/**
+ * Looks blocks up in stores of different sizes, through the index tree or
+ * the sidecar index, the way a new process does after opening a snapshot.
+ *
+ * The store caches every block it finds, so a lookup only goes to the index
+ * the first time. The cold benchmark reopens the store before each batch of
+ * lookups, and reports the time per lookup; the cached benchmark looks up
+ * blocks that were all found once already. Misses are never cached, so each
+ * one goes all the way through the index.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IndexLookupBenchmark {
+    private static final int COLD_LOOKUPS = 1000;
+    private static final int MISS_HASHES = 4096;
+
+    @State(Scope.Thread)
+    public static class Snapshot {
+        @Param({ "1000", "10000", "100000", "1000000" })
+        public int blocks;
+
+        @Param({ "false", "true" })
+        public boolean sidecar;
+
+        public BlockStore store;
+        public BlockHash[] hashes;
+        public BlockHash[] missingHashes;
+
+        private Path _file;
+        private FileChannel _channel;
+
+        /**
+         * Writes a store holding the given number of blocks and opens it
+         * again. The blocks only hold a few bytes, since only the index
+         * matters here.
+         */
+        @Setup
+        public void setup() throws IOException {
+            Random random = new Random(1);
+            _file = Files.createTempFile("snapshot-benchmark", ".ss");
+
+            hashes = new BlockHash[blocks];
+            try (FileChannel channel = FileChannel.open(_file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                BlockStore writer = new BlockStore(channel);
+                writer.serialize();
+
+                ByteBuffer contents = ByteBuffer.allocate(16);
+                for (int i = 0; i < blocks; i++) {
+                    hashes[i] = BenchmarkData.randomHash(random);
+                    writer.storePreparedBlock(new PreparedBlock(hashes[i], contents.duplicate(), Codecs.NONE));
+                }
+                writer.serialize();
+
+                if (sidecar) {
+                    writer.useSidecarIndex(SidecarIndex.pathFor(_file));
+                    writer.buildSidecarIndex();
+                }
+            }
+
+            // Lookups shouldn't go in the order the blocks were written
+            Collections.shuffle(Arrays.asList(hashes), random);
+
+            missingHashes = new BlockHash[MISS_HASHES];
+            for (int i = 0; i < MISS_HASHES; i++) {
+                missingHashes[i] = BenchmarkData.randomHash(random);
+            }
+
+            _channel = FileChannel.open(_file, StandardOpenOption.READ);
+            store = new BlockStore(_channel);
+            if (sidecar) {
+                store.useSidecarIndex(SidecarIndex.pathFor(_file));
+            }
+            store.unserialize();
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            _channel.close();
+            Files.deleteIfExists(_file);
+            Files.deleteIfExists(SidecarIndex.pathFor(_file));
+        }
+    }
+
+    /**
+     * Finds every block once, so that lookups are served from the cache.
+     *
+     * The setup that needs the store extends the snapshot state rather than
+     * depending on it, since JMH can hand a dependent state a different
+     * instance from the one the benchmark gets.
+     */
+    @State(Scope.Thread)
+    public static class WarmSnapshot extends Snapshot {
+        public int next = 0;
+
+        @Setup
+        public void warm() throws IOException {
+            for (BlockHash hash: hashes) {
+                store.getBlockLayoutForHash(hash);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class MissSnapshot extends Snapshot {
+        public int next = 0;
+    }
+
+    /**
+     * Reopens the store before each batch of cold lookups, which empties
+     * its cache, and picks the next batch of blocks to look up.
+     */
+    @State(Scope.Thread)
+    public static class ColdSnapshot extends Snapshot {
+        public int start = 0;
+
+        @Setup(Level.Invocation)
+        public void reopen() throws IOException {
+            store.unserialize();
+            start = (start + COLD_LOOKUPS) % hashes.length;
+        }
+    }
+
+    @Benchmark
+    public long cachedHit(WarmSnapshot snapshot) throws IOException {
+        BlockHash hash = snapshot.hashes[snapshot.next];
+        snapshot.next = (snapshot.next + 1) % snapshot.hashes.length;
+        return snapshot.store.getBlockLayoutForHash(hash).offset;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(COLD_LOOKUPS)
+    public long coldHit(ColdSnapshot snapshot) throws IOException {
+        long offsets = 0;
+        for (int i = 0; i < COLD_LOOKUPS; i++) {
+            offsets += snapshot.store.getBlockLayoutForHash(snapshot.hashes[(snapshot.start + i) % snapshot.hashes.length]).offset;
+        }
+        return offsets;
+    }
+
+    @Benchmark
+    public long miss(MissSnapshot snapshot) throws IOException {
+        BlockHash hash = snapshot.missingHashes[snapshot.next];
+        snapshot.next = (snapshot.next + 1) % MISS_HASHES;
+        return snapshot.store.getBlockLayoutForHash(hash).offset;
+    }
+}
@@ -0,0 +1,191 @@
+package com.kidneybone.snapshot.blocks;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serializes and unserializes every type of block, each filled as far as it
+ * will go, in both hash formats. Unserializing allocates a new block each
+ * time, the same as the store does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlockSerializationBenchmark {
+    @Param({ "data", "chunk", "file", "commit", "commitData", "manifest", "directory", "pathIndex", "index",
+             "indexNode", "tag" })
+    public String blockType;
+
+    @Param({ "HEX", "BINARY" })
+    public BlockFormat format;
+
+    private final Random _random = new Random(1);
+    private BasicBlock _block;
+    private ByteBuffer _buffer;
+    private ByteBuffer _serialized;
+
+    @Setup
+    public void setup() {
+        _block = newFullBlock();
+        _buffer = ByteBuffer.allocate(BasicBlock.BLOCK_SIZE_BYTES);
+
+        _serialized = ByteBuffer.allocate(BasicBlock.BLOCK_SIZE_BYTES);
+        _block.serialize(_serialized);
+        _serialized.flip();
+    }
+
+    @Benchmark
+    public ByteBuffer serialize() {
+        _buffer.clear();
+        _block.serialize(_buffer);
+        return _buffer;
+    }
+
+    @Benchmark
+    public BasicBlock unserialize() {
+        _serialized.rewind();
+        BasicBlock block = newEmptyBlock();
+        block.unserialize(_serialized);
+        return block;
+    }
+
+    private BasicBlock newEmptyBlock() {
+        switch (blockType) {
+            case "data":
+                return new DataBlock();
+            case "chunk":
+                return new ChunkBlock();
+            case "file":
+                return new FileBlock(format);
+            case "commit":
+                return new CommitBlock(format);
+            case "commitData":
+                return new CommitDataBlock(format);
+            case "manifest":
+                return new ManifestBlock(format);
+            case "directory":
+                return new DirectoryBlock(format);
+            case "pathIndex":
+                return new PathIndexBlock(format);
+            case "index":
+                return new IndexBlock(format);
+            case "indexNode":
+                return new IndexNodeBlock(format);
+            case "tag":
+                return new TagBlock(format);
+            default:
+                throw new IllegalArgumentException("Unknown block type " + blockType);
+        }
+    }
+
+    private BasicBlock newFullBlock() {
+        switch (blockType) {
+            case "data": {
+                byte[] contents = new byte[BasicBlock.BLOCK_SIZE_BYTES];
+                _random.nextBytes(contents);
+                return new DataBlock(ByteBuffer.wrap(contents));
+            }
+            case "chunk": {
+                // About the average size of a content-defined chunk
+                byte[] contents = new byte[16 * 1024];
+                _random.nextBytes(contents);
+                return new ChunkBlock(ByteBuffer.wrap(contents));
+            }
+            case "file": {
+                FileBlock block = new FileBlock(format, randomHash());
+                while (!block.isFull()) {
+                    block.registerBlock(randomHash());
+                }
+                return block;
+            }
+            case "commit":
+                return new CommitBlock(format, System.currentTimeMillis(), randomHash(), randomHash(),
+                                       CommitBlock.FLAG_DIRECTORY_TREE | CommitBlock.FLAG_PATH_INDEX, randomHash());
+            case "commitData": {
+                CommitDataBlock block = new CommitDataBlock(format, randomHash());
+                for (int i = 0; !block.isFull(); i++) {
+                    block.registerFile(randomPath(i), _random.nextInt(1 << 20), randomHash());
+                }
+                return block;
+            }
+            case "manifest":
+                return fillManifest(new ManifestBlock(format, randomHash()), false);
+            case "directory":
+                return fillManifest(new DirectoryBlock(format, randomHash()), true);
+            case "pathIndex":
+                return fillManifest(new PathIndexBlock(format), false);
+            case "index": {
+                IndexBlock block = new IndexBlock(format, randomHash());
+                for (long offset = 0; !block.isFull(); offset += 4096) {
+                    block.registerBlock(randomHash(), offset, 4096, 1);
+                }
+                return block;
+            }
+            case "indexNode": {
+                IndexNodeBlock block = new IndexNodeBlock(format, true);
+                ArrayList<BlockHash> keys = new ArrayList<BlockHash>();
+                for (int i = 0; i < IndexNodeBlock.entriesPerBlock(format); i++) {
+                    keys.add(randomHash());
+                }
+                Collections.sort(keys);
+
+                for (int i = 0; i < keys.size(); i++) {
+                    block.registerEntry(keys.get(i), i * 4096L, 4096, 1);
+                }
+                return block;
+            }
+            case "tag": {
+                TagBlock block = new TagBlock(format, randomHash());
+                for (int i = 0; !block.isFull(); i++) {
+                    block.registerTag("release-" + i, randomHash());
+                }
+                return block;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown block type " + blockType);
+        }
+    }
+
+    /**
+     * Fills a manifest with paths that look like a source tree. Directory
+     * blocks get a subdirectory every tenth entry.
+     */
+    private ManifestBlock fillManifest(ManifestBlock block, boolean withDirectories) {
+        for (int i = 0; ; i++) {
+            boolean isDirectory = withDirectories && i % 10 == 0;
+            String path = isDirectory ? "module" + i + DirectoryBlock.DIRECTORY_SUFFIX : randomPath(i);
+            long size = isDirectory ? 0 : _random.nextInt(1 << 20);
+            if (!block.hasRoomFor(path, size)) {
+                return block;
+            }
+
+            block.registerFile(path, size, randomHash());
+        }
+    }
+
+    private String randomPath(int i) {
+        return "src/main/java/com/example/service/Component" + i + ".java";
+    }
+
+    private BlockHash randomHash() {
+        return BlockHash.of(_random.nextLong(), _random.nextLong(), _random.nextLong(), _random.nextLong());
+    }
+}
@@ -0,0 +1,48 @@
+package com.kidneybone.snapshot.blocks;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hashes a serialized block, which every block written or deduplicated goes
+ * through. The hex format also masks each byte of the digest afterwards.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark {
+    @Param({ "HEX", "BINARY" })
+    public BlockFormat format;
+
+    private ByteBuffer _block;
+
+    @Setup
+    public void setup() {
+        byte[] contents = new byte[BasicBlock.BLOCK_SIZE_BYTES];
+        new Random(1).nextBytes(contents);
+        _block = ByteBuffer.wrap(contents);
+    }
+
+    @Benchmark
+    public BlockHash hashOfLastBlock() {
+        // The block has to look like it was just written to the buffer
+        _block.position(_block.limit());
+        return format.hashOfLastBlock(_block);
+    }
+}
@@ -0,0 +1,86 @@
+package com.kidneybone.snapshot.codecs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.kidneybone.snapshot.BenchmarkData;
+import com.kidneybone.snapshot.blocks.BasicBlock;
+
+/**
+ * Compresses and decompresses a block with each codec. Deflate goes through
+ * the pooled Deflaters and Inflaters in DeflateCodec. Random data can't be
+ * compressed, which the store finds out by trying, so compressing it is the
+ * cost of giving up; the destination here is big enough that it succeeds
+ * anyway, so that decompressing can be measured too.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    @Param({ "deflate", "deflate:1", "lz" })
+    public String codec;
+
+    @Param({ "compressible", "random" })
+    public String data;
+
+    private Codec _codec;
+    private ByteBuffer _input;
+    private ByteBuffer _compressed;
+    private ByteBuffer _compressBuffer = ByteBuffer.allocate(2 * BasicBlock.BLOCK_SIZE_BYTES);
+    private ByteBuffer _decompressBuffer = ByteBuffer.allocate(BasicBlock.BLOCK_SIZE_BYTES);
+
+    @Setup
+    public void setup() {
+        _codec = Codecs.parse(codec);
+        _input = data.equals("random")
+            ? BenchmarkData.random(BasicBlock.BLOCK_SIZE_BYTES, 1)
+            : BenchmarkData.compressible(BasicBlock.BLOCK_SIZE_BYTES, 1);
+
+        _compressed = ByteBuffer.allocate(2 * BasicBlock.BLOCK_SIZE_BYTES);
+        if (!_codec.compress(_input.duplicate(), _compressed)) {
+            throw new IllegalStateException(codec + " could not compress the " + data + " block");
+        }
+        _compressed.flip();
+    }
+
+    @Benchmark
+    public boolean compress() {
+        _input.rewind();
+        _compressBuffer.clear();
+        return _codec.compress(_input, _compressBuffer);
+    }
+
+    @Benchmark
+    public int decompress() throws IOException {
+        _compressed.rewind();
+        _decompressBuffer.clear();
+        return _codec.decompress(_compressed, _decompressBuffer);
+    }
+
+    @Benchmark
+    public int roundTrip() throws IOException {
+        _input.rewind();
+        _compressBuffer.clear();
+        _codec.compress(_input, _compressBuffer);
+        _compressBuffer.flip();
+
+        _decompressBuffer.clear();
+        return _codec.decompress(_compressBuffer, _decompressBuffer);
+    }
+}
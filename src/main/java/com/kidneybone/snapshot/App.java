@@ -1,14 +1,25 @@
 package com.kidneybone.snapshot;
 
-import static com.kidneybone.snapshot.blocks.BlockUtils.isEmptyHash;
-
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
+import com.kidneybone.snapshot.blocks.BasicBlock;
+import com.kidneybone.snapshot.blocks.BlockHash;
 import com.kidneybone.snapshot.blocks.CommitBlock;
 
 public class App {
@@ -16,27 +27,375 @@ public class App {
         new SimpleDateFormat("yyyy-MM-dd HH:mm:ss z", Locale.getDefault());
 
     private static void displayLog(BlockStore store) throws Exception {
-        String nextCommitHash = store.getHeader().getLastCommit();
-        CommitBlock commit = new CommitBlock();
+        BlockHash nextCommitHash = store.getHeader().getLastCommit();
+        CommitBlock commit = new CommitBlock(store.getFormat());
 
-        while (!isEmptyHash(nextCommitHash)) {
+        while (!nextCommitHash.isEmpty()) {
             store.unserializeBlock(commit, nextCommitHash);
             Date commitDate = new Date(commit.getTimestamp());
             System.out.printf("Commit %s @ %s\n", nextCommitHash, _dateFormatter.format(commitDate));
 
             nextCommitHash = commit.getPreviousCommit();
-            commit = new CommitBlock();
+            commit = new CommitBlock(store.getFormat());
+        }
+    }
+
+    /**
+     * Writes the contents of a file from a commit to standard output.
+     */
+    private static void catFile(BlockStore store, BlockHash commitPointer, String path) throws Exception {
+        WritableByteChannel output = Channels.newChannel(System.out);
+        ByteBuffer buffer = ByteBuffer.allocate(BasicBlock.BLOCK_SIZE_BYTES);
+
+        try (StoredFileChannel file = store.openStoredFile(commitPointer, path)) {
+            while (file.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    output.write(buffer);
+                }
+                buffer.clear();
+            }
+        }
+
+        System.out.flush();
+    }
+
+    private static void migrateStore(BlockStore store, Path snapshotFile, CodecPolicy codecPolicy) throws Exception {
+        int version = store.getHeader().getVersion();
+        if (version == HeaderBlock.LATEST_VERSION) {
+            System.out.printf("Snapshot is already at version %d\n", version);
+            return;
+        }
+
+        // The new snapshot is built alongside the old one, so that the old
+        // one is left alone if the migration fails partway through
+        Path migratedFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".migrating");
+        FileChannel migratedChannel = FileChannel.open(migratedFile,
+                                                       StandardOpenOption.READ,
+                                                       StandardOpenOption.WRITE,
+                                                       StandardOpenOption.CREATE_NEW);
+
+        try {
+            BlockStore migrated = new BlockStore(migratedChannel);
+            migrated.serialize();
+            migrated.setCodecPolicy(codecPolicy);
+            store.migrateTo(migrated);
+        } finally {
+            migratedChannel.close();
+        }
+
+        Files.move(migratedFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.printf("Migrated snapshot from version %d to version %d\n", version, HeaderBlock.LATEST_VERSION);
+    }
+
+    /**
+     * Drops old commits and rewrites the snapshot with only the blocks that
+     * are still reachable. Like a migration, the new snapshot is built next
+     * to the old one and then moved over it.
+     */
+    private static void pruneStore(BlockStore store, Path snapshotFile, int keepNewest, long keepSince,
+                                   BlockHash layoutCommit) throws Exception {
+        Path compactedFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".compacting");
+        FileChannel compactedChannel = FileChannel.open(compactedFile,
+                                                        StandardOpenOption.READ,
+                                                        StandardOpenOption.WRITE,
+                                                        StandardOpenOption.CREATE_NEW);
+
+        long oldSize = Files.size(snapshotFile);
+        Compaction compaction = null;
+        try {
+            BlockStore compacted = new BlockStore(compactedChannel, store.getHeader().getVersion());
+            compacted.serialize();
+            compaction = store.pruneInto(compacted, keepNewest, keepSince, layoutCommit);
+        } finally {
+            compactedChannel.close();
+
+            // A half written copy would stop the next prune from starting
+            if (compaction == null) {
+                Files.deleteIfExists(compactedFile);
+            }
+        }
+
+        Files.move(compactedFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.printf("Kept %d commits and pruned %d\n", compaction.getCommitsKept(), compaction.getCommitsPruned());
+        System.out.printf("Copied %d live blocks (%d bytes)\n", compaction.getBlocksCopied(), compaction.getBytesCopied());
+        System.out.printf("Snapshot shrank from %d to %d bytes\n", oldSize, Files.size(snapshotFile));
+    }
+
+    /**
+     * Measures how much restoring each commit seeks, newest first.
+     */
+    private static LinkedHashMap<BlockHash, RestoreOrder.Seeks> measureSeeks(BlockStore store) throws Exception {
+        LinkedHashMap<BlockHash, RestoreOrder.Seeks> seeks = new LinkedHashMap<BlockHash, RestoreOrder.Seeks>();
+        BlockHash nextCommitHash = store.getHeader().getLastCommit();
+
+        while (!nextCommitHash.isEmpty()) {
+            seeks.put(nextCommitHash, RestoreOrder.measure(store, nextCommitHash));
+
+            CommitBlock commit = new CommitBlock(store.getFormat());
+            store.unserializeBlock(commit, nextCommitHash);
+            nextCommitHash = commit.getPreviousCommit();
+        }
+
+        return seeks;
+    }
+
+    private static void displayLayout(BlockStore store) throws Exception {
+        for (Map.Entry<BlockHash, RestoreOrder.Seeks> entry: measureSeeks(store).entrySet()) {
+            RestoreOrder.Seeks seeks = entry.getValue();
+            System.out.printf("Commit %s: %d blocks, %d bytes, %d seeks, seek distance %d bytes (%.2fx the bytes read)\n",
+                              entry.getKey(), seeks.blocks, seeks.bytes, seeks.seeks, seeks.distance,
+                              seeks.getDistanceRatio());
+        }
+    }
+
+    /**
+     * Rewrites the snapshot with the given commit's blocks laid out in the
+     * order a restore reads them, and reports how much restoring each commit
+     * seeks before and after.
+     */
+    private static void repackStore(BlockStore store, Path snapshotFile, BlockHash layoutCommit) throws Exception {
+        LinkedHashMap<BlockHash, RestoreOrder.Seeks> before = measureSeeks(store);
+        pruneStore(store, snapshotFile, Integer.MAX_VALUE, Long.MAX_VALUE, layoutCommit);
+
+        // Nothing is pruned, so every commit keeps its address
+        LinkedHashMap<BlockHash, RestoreOrder.Seeks> after;
+        try (FileChannel repackedChannel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+            BlockStore repacked = new BlockStore(repackedChannel);
+            repacked.unserialize();
+            after = measureSeeks(repacked);
+        }
+
+        for (Map.Entry<BlockHash, RestoreOrder.Seeks> entry: before.entrySet()) {
+            RestoreOrder.Seeks oldSeeks = entry.getValue();
+            RestoreOrder.Seeks newSeeks = after.get(entry.getKey());
+            System.out.printf("Commit %s: %d seeks (%.2fx) before, %d seeks (%.2fx) after%s\n",
+                              entry.getKey(), oldSeeks.seeks, oldSeeks.getDistanceRatio(),
+                              newSeeks.seeks, newSeeks.getDistanceRatio(),
+                              entry.getKey().equals(layoutCommit) ? ", laid out for restore" : "");
+        }
+    }
+
+    /**
+     * Checks every block in the snapshot and everything the commits refer
+     * to, returning false if anything is wrong. Checksums of the blocks that
+     * pass are kept next to the snapshot for later quick checks.
+     */
+    private static boolean checkStore(BlockStore store, Path snapshotFile, int threads, boolean quick) throws Exception {
+        BlockChecksums checksums = new BlockChecksums(BlockChecksums.pathFor(snapshotFile));
+        checksums.load();
+        if (quick && checksums.size() == 0) {
+            System.out.println("No checksums have been recorded yet, so every block will be hashed");
         }
+
+        IntegrityCheck check = new IntegrityCheck(store, threads, checksums, quick);
+        check.run();
+        int recorded = checksums.getPendingCount();
+        checksums.save();
+
+        double seconds = check.getSweepNanos() / 1e9;
+        System.out.printf("Checked %d blocks (%d bytes) in %.2f s, %.1f MB/s: %d hashed, %d matched their checksum\n",
+                          check.getBlocksChecked(), check.getBytesChecked(), seconds,
+                          seconds > 0 ? check.getBytesChecked() / seconds / (1024 * 1024) : 0,
+                          check.getBlocksHashed(), check.getBlocksChecksummed());
+        System.out.printf("Walked %d commits and %d tags, recorded %d new checksums\n",
+                          check.getCommits(), check.getTags(), recorded);
+        System.out.printf("%d corrupt blocks, %d missing blocks, %d unreadable commits, %d bad tags\n",
+                          check.getCorruptBlocks(), check.getMissingBlocks(), check.getBrokenCommits(),
+                          check.getBadTags());
+        if (check.getOrphanedBlocks() > 0) {
+            System.out.printf("%d orphaned blocks (%d bytes) aren't used by any commit, and can be pruned\n",
+                              check.getOrphanedBlocks(), check.getOrphanedBytes());
+        }
+
+        return check.isClean();
+    }
+
+    // Options which take a value, like --threads 4
+    private static final Set<String> VALUE_OPTIONS = Set.of("--threads", "--chunking", "--codec", "--block-cache", "--path",
+                                                            "--stdin", "--keep", "--before");
+
+    // Options which are either present or not, like --incremental
+    private static final Set<String> FLAG_OPTIONS = Set.of("--incremental", "--stats", "--mmap", "--blocks", "--quick");
+
+    /**
+     * Removes any options from the arguments and stores them in the options
+     * map, returning the remaining arguments.
+     */
+    private static String[] extractOptions(String[] args, Map<String, String> options) {
+        ArrayList<String> remaining = new ArrayList<String>();
+
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                remaining.add(args[i]);
+            } else if (FLAG_OPTIONS.contains(args[i])) {
+                options.put(args[i], "");
+            } else if (!VALUE_OPTIONS.contains(args[i])) {
+                System.err.println("Option not recognized: " + args[i]);
+                System.exit(1);
+            } else if (i + 1 == args.length) {
+                System.err.println("Option requires a value: " + args[i]);
+                System.exit(1);
+            } else {
+                options.put(args[i], args[i + 1]);
+                i++;
+            }
+        }
+
+        return remaining.toArray(new String[0]);
+    }
+
+    /**
+     * Gets the value of an option which must be a positive integer.
+     */
+    private static int getPositiveOption(Map<String, String> options, String option, int defaultValue) {
+        if (!options.containsKey(option)) {
+            return defaultValue;
+        }
+
+        try {
+            int value = Integer.parseInt(options.get(option));
+            if (value > 0) {
+                return value;
+            }
+        } catch (NumberFormatException err) {
+        }
+
+        System.err.println(option + " must be a positive integer");
+        System.exit(1);
+        return defaultValue;
+    }
+
+    /**
+     * Gets the chunking mode given by --chunking, which defaults to fixed.
+     */
+    private static Chunking getChunkingOption(Map<String, String> options) {
+        if (!options.containsKey("--chunking")) {
+            return Chunking.FIXED;
+        }
+
+        try {
+            return Chunking.parse(options.get("--chunking"));
+        } catch (IllegalArgumentException err) {
+            System.err.println("--chunking must be fixed, cdc or cdc:MIN:AVG:MAX: " + err.getMessage());
+            System.exit(1);
+            return Chunking.FIXED;
+        }
+    }
+
+    /**
+     * Gets the codec policy given by --codec, which defaults to deflate for
+     * every block.
+     */
+    private static CodecPolicy getCodecOption(Map<String, String> options) {
+        if (!options.containsKey("--codec")) {
+            return CodecPolicy.DEFAULT;
+        }
+
+        try {
+            return CodecPolicy.parse(options.get("--codec"));
+        } catch (IllegalArgumentException err) {
+            System.err.println("--codec must be a codec or data=CODEC,metadata=CODEC: " + err.getMessage());
+            System.exit(1);
+            return CodecPolicy.DEFAULT;
+        }
+    }
+
+    /**
+     * Gets the filter given by --path, or null if every file is wanted.
+     */
+    private static PathFilter getPathOption(Map<String, String> options) {
+        if (!options.containsKey("--path")) {
+            return null;
+        }
+
+        try {
+            return PathFilter.parse(options.get("--path"));
+        } catch (IllegalArgumentException err) {
+            System.err.println("--path must be a glob such as etc/app/**: " + err.getMessage());
+            System.exit(1);
+            return null;
+        }
+    }
+
+    /**
+     * Gets the time given by --before, in milliseconds since the epoch. The
+     * default is a time after every commit.
+     */
+    private static long getBeforeOption(Map<String, String> options) {
+        if (!options.containsKey("--before")) {
+            return Long.MAX_VALUE;
+        }
+
+        String value = options.get("--before");
+        for (String pattern: new String[] { "yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd" }) {
+            SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.getDefault());
+            format.setLenient(false);
+            ParsePosition position = new ParsePosition(0);
+            Date date = format.parse(value, position);
+            if (date != null && position.getIndex() == value.length()) {
+                return date.getTime();
+            }
+        }
+
+        System.err.println("--before must be a date such as 2019-03-24 or 2019-03-24 16:40:21");
+        System.exit(1);
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Parses a block address given on the command line.
+     */
+    private static BlockHash parseAddress(String address) {
+        if (!BlockHash.isValid(address)) {
+            System.err.println(address + " is not a valid SHA256 hash");
+            System.exit(1);
+        }
+
+        return BlockHash.parse(address);
+    }
+
+    /**
+     * Finds the commit named by a -t TAG-NAME or -a ADDRESS pair of
+     * arguments.
+     */
+    private static BlockHash resolveCommit(BlockStore store, String kind, String name, String usage) throws Exception {
+        if (kind.equals("-t")) {
+            return store.resolveTag(name);
+        } else if (kind.equals("-a")) {
+            return parseAddress(name);
+        }
+
+        System.err.println("-a or -t required: " + usage);
+        System.exit(1);
+        return null;
     }
 
     public static void main(String[] args) throws Exception {
+        HashMap<String, String> options = new HashMap<String, String>();
+        args = extractOptions(args, options);
+
         if (args.length < 2) {
             System.err.println(
-                "snapshot commit SNAPSHOT-FILE DIRECTORY\n" +
+                "snapshot commit SNAPSHOT-FILE DIRECTORY [--threads N] [--chunking MODE] [--incremental]\n" +
+                "snapshot commit SNAPSHOT-FILE --stdin NAME [--chunking MODE]\n" +
+                "snapshot import-tar SNAPSHOT-FILE [TAR-FILE] [--chunking MODE]\n" +
                 "snapshot tag SNAPSHOT-FILE ADDRESS NAME\n" +
                 "snapshot log SNAPSHOT-FILE\n" +
-                "snapshot restore SNAPSHOT-FILE DIRECTORY (-t TAG-NAME | -a ADDRESS)\n" +
-                "snapshot viz SNAPSHOT-FILE");
+                "snapshot restore SNAPSHOT-FILE DIRECTORY (-t TAG-NAME | -a ADDRESS) [--threads N] [--path GLOB]\n" +
+                "snapshot cat SNAPSHOT-FILE (-t TAG-NAME | -a ADDRESS) PATH\n" +
+                "snapshot diff SNAPSHOT-FILE (-t TAG-NAME | -a ADDRESS) (-t TAG-NAME | -a ADDRESS) [--blocks]\n" +
+                "snapshot viz SNAPSHOT-FILE\n" +
+                "snapshot index SNAPSHOT-FILE\n" +
+                "snapshot migrate SNAPSHOT-FILE\n" +
+                "snapshot prune SNAPSHOT-FILE [--keep N] [--before DATE]\n" +
+                "snapshot repack SNAPSHOT-FILE [-t TAG-NAME | -a ADDRESS]\n" +
+                "snapshot layout SNAPSHOT-FILE\n" +
+                "snapshot fsck SNAPSHOT-FILE [--threads N] [--quick]\n" +
+                "Any command also accepts --stats, which prints I/O counters when it finishes,\n" +
+                "--codec POLICY, which chooses how new blocks are compressed (e.g. data=lz,metadata=deflate:9),\n" +
+                "--block-cache MB, which sets how much memory is used to keep recently read blocks,\n" +
+                "and --mmap, which reads blocks through memory mapped windows of the file");
             System.exit(1);
         }
 
@@ -45,6 +404,12 @@ public class App {
 
         FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
         BlockStore store = new BlockStore(channel);
+        store.useSidecarIndex(SidecarIndex.pathFor(snapshotFile));
+        store.useStatCache(StatCache.pathFor(snapshotFile));
+        store.setBlockCacheSize(getPositiveOption(options, "--block-cache", BlockCache.DEFAULT_CAPACITY_MEGABYTES));
+        if (options.containsKey("--mmap")) {
+            store.useMappedReads();
+        }
 
         if (channel.size() == 0) {
             // Make sure that the file has a valid header, even if it was previously empty
@@ -53,13 +418,53 @@ public class App {
 
         store.unserialize();
 
-        if (command.equals("commit")) {
+        if (options.containsKey("--codec") && !command.equals("migrate")) {
+            try {
+                store.setCodecPolicy(getCodecOption(options));
+            } catch (IllegalStateException err) {
+                System.err.println(err.getMessage());
+                System.exit(1);
+            }
+        }
+
+        if (command.equals("commit") && options.containsKey("--stdin")) {
+            if (args.length != 2) {
+                System.err.println("Invalid number of arguments: snapshot commit SNAPSHOT-FILE --stdin NAME [--chunking MODE]");
+                System.exit(1);
+            }
+
+            try {
+                store.addStreamCommit(options.get("--stdin"), Channels.newChannel(System.in), getChunkingOption(options));
+            } catch (IllegalArgumentException err) {
+                System.err.println(err.getMessage());
+                System.exit(1);
+            }
+            store.serialize();
+
+        } else if (command.equals("commit")) {
             if (args.length != 3) {
-                System.err.println("Invalid number of arguments: snapshot commit SNAPSHOT-FILE DIRECTORY");
+                System.err.println("Invalid number of arguments: snapshot commit SNAPSHOT-FILE DIRECTORY [--threads N] [--chunking MODE] [--incremental]");
+                System.exit(1);
+            }
+
+            store.addCommit(args[2], getPositiveOption(options, "--threads", 1), getChunkingOption(options),
+                           options.containsKey("--incremental"));
+            store.serialize();
+
+        } else if (command.equals("import-tar")) {
+            if (args.length != 2 && args.length != 3) {
+                System.err.println("Invalid number of arguments: snapshot import-tar SNAPSHOT-FILE [TAR-FILE] [--chunking MODE]");
                 System.exit(1);
             }
 
-            store.addCommit(args[2]);
+            // Without a file, the archive is read from standard input
+            if (args.length == 3) {
+                try (FileChannel tarFile = FileChannel.open(Path.of(args[2]), StandardOpenOption.READ)) {
+                    store.importTar(tarFile, getChunkingOption(options));
+                }
+            } else {
+                store.importTar(Channels.newChannel(System.in), getChunkingOption(options));
+            }
             store.serialize();
 
         } else if (command.equals("tag")) {
@@ -68,7 +473,7 @@ public class App {
                 System.exit(1);
             }
 
-            store.addTag(args[3], args[2]);
+            store.addTag(args[3], parseAddress(args[2]));
             store.serialize();
 
         } else if (command.equals("log")) {
@@ -81,21 +486,33 @@ public class App {
 
         } else if (command.equals("restore")) {
             if (args.length != 5) {
-                System.err.println("Invalid number of arguments: snapshot restore SNAPSHOT-FILE DIRECTORY (-t TAG-NAME | -a ADDRESS)");
+                System.err.println("Invalid number of arguments: snapshot restore SNAPSHOT-FILE DIRECTORY (-t TAG-NAME | -a ADDRESS) [--threads N] [--path GLOB]");
                 System.exit(1);
             }
 
-            String hash = null;
-            if (args[3].equals("-t")) {
-                hash = store.resolveTag(args[4]);
-            } else if (args[3].equals("-a")) {
-                hash = args[4];
-            } else {
-                System.err.println("-a or -t required: snapshot restore SNAPSHOT-FILE DIRECTORY (-t TAG-NAME | -a ADDRESS)");
+            BlockHash hash = resolveCommit(store, args[3], args[4],
+                                           "snapshot restore SNAPSHOT-FILE DIRECTORY (-t TAG-NAME | -a ADDRESS) [--threads N] [--path GLOB]");
+            store.restoreCommit(args[2], hash, getPositiveOption(options, "--threads", 1), getPathOption(options));
+
+        } else if (command.equals("cat")) {
+            String usage = "snapshot cat SNAPSHOT-FILE (-t TAG-NAME | -a ADDRESS) PATH";
+            if (args.length != 5) {
+                System.err.println("Invalid number of arguments: " + usage);
                 System.exit(1);
             }
 
-            store.restoreCommit(args[2], hash);
+            catFile(store, resolveCommit(store, args[2], args[3], usage), args[4]);
+
+        } else if (command.equals("diff")) {
+            String usage = "snapshot diff SNAPSHOT-FILE (-t TAG-NAME | -a ADDRESS) (-t TAG-NAME | -a ADDRESS) [--blocks]";
+            if (args.length != 6) {
+                System.err.println("Invalid number of arguments: " + usage);
+                System.exit(1);
+            }
+
+            BlockHash from = resolveCommit(store, args[2], args[3], usage);
+            BlockHash to = resolveCommit(store, args[4], args[5], usage);
+            store.diffCommits(from, to, options.containsKey("--blocks"));
 
         } else if (command.equals("viz")) {
             if (args.length != 2) {
@@ -106,11 +523,82 @@ public class App {
             Visualizer viz = new Visualizer(store, _dateFormatter);
             viz.visualizeStore();
 
+        } else if (command.equals("index")) {
+            if (args.length != 2) {
+                System.err.println("Invalid number of arguments: snapshot index SNAPSHOT-FILE");
+                System.exit(1);
+            }
+
+            store.buildSidecarIndex();
+
+        } else if (command.equals("migrate")) {
+            if (args.length != 2) {
+                System.err.println("Invalid number of arguments: snapshot migrate SNAPSHOT-FILE");
+                System.exit(1);
+            }
+
+            migrateStore(store, snapshotFile, getCodecOption(options));
+
+        } else if (command.equals("prune")) {
+            if (args.length != 2) {
+                System.err.println("Invalid number of arguments: snapshot prune SNAPSHOT-FILE [--keep N] [--before DATE]");
+                System.exit(1);
+            }
+
+            // A commit is pruned only if it's outside both limits. With
+            // neither, nothing is pruned and the snapshot is only compacted.
+            int keepNewest = getPositiveOption(options, "--keep", options.containsKey("--before") ? 1 : Integer.MAX_VALUE);
+            pruneStore(store, snapshotFile, keepNewest, getBeforeOption(options), BlockHash.EMPTY);
+
+        } else if (command.equals("repack")) {
+            String usage = "snapshot repack SNAPSHOT-FILE [-t TAG-NAME | -a ADDRESS]";
+            if (args.length != 2 && args.length != 4) {
+                System.err.println("Invalid number of arguments: " + usage);
+                System.exit(1);
+            }
+
+            // The newest commit is laid out unless another one is chosen
+            BlockHash layoutCommit = store.getHeader().getLastCommit();
+            if (args.length == 4) {
+                layoutCommit = resolveCommit(store, args[2], args[3], usage);
+            }
+
+            if (layoutCommit.isEmpty()) {
+                System.err.println("The snapshot has no commits to repack");
+                System.exit(1);
+            }
+
+            repackStore(store, snapshotFile, layoutCommit);
+
+        } else if (command.equals("layout")) {
+            if (args.length != 2) {
+                System.err.println("Invalid number of arguments: snapshot layout SNAPSHOT-FILE");
+                System.exit(1);
+            }
+
+            displayLayout(store);
+
+        } else if (command.equals("fsck")) {
+            if (args.length != 2) {
+                System.err.println("Invalid number of arguments: snapshot fsck SNAPSHOT-FILE [--threads N] [--quick]");
+                System.exit(1);
+            }
+
+            if (!checkStore(store, snapshotFile, getPositiveOption(options, "--threads", 1), options.containsKey("--quick"))) {
+                channel.close();
+                System.exit(1);
+            }
+
         } else {
             System.err.println("Command not recognized: " + command);
             System.exit(1);
         }
 
+        // cat writes the file to stdout, so the counters can't go there too
+        if (options.containsKey("--stats")) {
+            store.printStats(command.equals("cat") ? System.err : System.out);
+        }
+
         channel.close();
     }
 }
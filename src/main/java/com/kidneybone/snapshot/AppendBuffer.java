@@ -0,0 +1,180 @@
+package com.kidneybone.snapshot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Collects blocks which are being appended to the snapshot, and writes them
+ * out together once enough have built up. Offsets are handed out as soon as a
+ * block is appended, so the index can refer to a block before it has actually
+ * been written.
+ *
+ * Blocks are copied into segments as they're appended, so callers can reuse
+ * their buffers straight away. Compressed blocks are often only a few hundred
+ * bytes, so packing them together also keeps the number of buffers in each
+ * gathering write down. Segments are reused once they've been written, so
+ * appending doesn't allocate anything after the first few flushes.
+ */
+class AppendBuffer {
+    // How much is collected before it's written out
+    private static final int FLUSH_THRESHOLD_BYTES = 4 * 1024 * 1024;
+
+    // Big enough for several full size blocks
+    private static final int SEGMENT_BYTES = 256 * 1024;
+
+    private final FileChannel _channel;
+    private long _fileSize = -1;
+
+    private final ArrayList<ByteBuffer> _pending = new ArrayList<ByteBuffer>();
+    private final ArrayList<ByteBuffer> _spareSegments = new ArrayList<ByteBuffer>();
+    private long _pendingBytes = 0;
+    private ByteBuffer _segment = null;
+
+    private long _blocksAppended = 0;
+    private long _writeCalls = 0;
+    private long _bytesWritten = 0;
+
+    public AppendBuffer(FileChannel channel) {
+        _channel = channel;
+    }
+
+    /**
+     * Gets the size the file will be once everything pending is written.
+     */
+    public synchronized long size() throws IOException {
+        return getFileSize() + _pendingBytes;
+    }
+
+    /**
+     * Copies the remaining contents of the buffer to be written to the end of
+     * the file, and returns the offset it'll be written at.
+     */
+    public synchronized long append(ByteBuffer data) throws IOException {
+        long offset = size();
+        int length = data.remaining();
+        if (length > SEGMENT_BYTES) {
+            throw new IllegalArgumentException("Cannot append " + length + " bytes, must be at most " + SEGMENT_BYTES);
+        }
+
+        if (_segment == null || _segment.remaining() < length) {
+            _segment = takeSegment();
+            _pending.add(_segment);
+        }
+
+        _segment.put(data);
+        _pendingBytes += length;
+        _blocksAppended++;
+
+        if (_pendingBytes >= FLUSH_THRESHOLD_BYTES) {
+            flush();
+        }
+
+        return offset;
+    }
+
+    private ByteBuffer takeSegment() {
+        if (_spareSegments.isEmpty()) {
+            return ByteBuffer.allocate(SEGMENT_BYTES);
+        }
+
+        return _spareSegments.remove(_spareSegments.size() - 1);
+    }
+
+    /**
+     * Writes everything pending to the end of the file.
+     */
+    public synchronized void flush() throws IOException {
+        if (_pending.isEmpty()) {
+            return;
+        }
+
+        ByteBuffer[] buffers = _pending.toArray(new ByteBuffer[0]);
+        for (ByteBuffer buffer: buffers) {
+            buffer.flip();
+        }
+
+        long position = getFileSize();
+        long remaining = _pendingBytes;
+        int first = 0;
+
+        _channel.position(position);
+        while (remaining > 0) {
+            long written = _channel.write(buffers, first, buffers.length - first);
+            _writeCalls++;
+            _bytesWritten += written;
+            remaining -= written;
+
+            while (first < buffers.length && !buffers[first].hasRemaining()) {
+                first++;
+            }
+        }
+
+        for (ByteBuffer buffer: buffers) {
+            buffer.clear();
+            _spareSegments.add(buffer);
+        }
+
+        _fileSize = position + _pendingBytes;
+        _pending.clear();
+        _pendingBytes = 0;
+        _segment = null;
+    }
+
+    /**
+     * Writes the buffer at the given position, after writing out everything
+     * that's pending. This is for the header, which isn't appended.
+     */
+    public synchronized void writeAt(ByteBuffer data, long position) throws IOException {
+        flush();
+
+        while (data.hasRemaining()) {
+            int written = _channel.write(data, position);
+            _writeCalls++;
+            _bytesWritten += written;
+            position += written;
+        }
+
+        _fileSize = Math.max(getFileSize(), position);
+    }
+
+    /**
+     * Reads from the file at the given position. If that overlaps anything
+     * that hasn't been written yet, it's written out first.
+     */
+    public int read(ByteBuffer data, long position) throws IOException {
+        ensureWritten(position, data.remaining());
+        return _channel.read(data, position);
+    }
+
+    /**
+     * Makes sure that the given range of the file has been written, so that
+     * it can be read without going through this buffer.
+     */
+    public synchronized void ensureWritten(long position, long length) throws IOException {
+        if (!_pending.isEmpty() && position + length > getFileSize()) {
+            flush();
+        }
+    }
+
+    public synchronized long getBlocksAppended() {
+        return _blocksAppended;
+    }
+
+    public synchronized long getWriteCalls() {
+        return _writeCalls;
+    }
+
+    public synchronized long getBytesWritten() {
+        return _bytesWritten;
+    }
+
+    private long getFileSize() throws IOException {
+        if (_fileSize == -1) {
+            _fileSize = _channel.size();
+        }
+
+        return _fileSize;
+    }
+}
@@ -0,0 +1,113 @@
+package com.kidneybone.snapshot;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import com.kidneybone.snapshot.blocks.BasicBlock;
+import com.kidneybone.snapshot.blocks.BlockHash;
+import com.kidneybone.snapshot.blocks.BlockUtils;
+
+/**
+ * Keeps the most recently read blocks in their decompressed form, so that
+ * reading one again doesn't go back to the file or the codec. Blocks never
+ * change once they're stored, so an entry is never stale; it only has to be
+ * evicted to make room.
+ *
+ * Only blocks which point to other blocks are cached. Those are the ones
+ * that get read over and over (the same file block from several commits,
+ * tag blocks on every lookup), while data blocks are usually read once and
+ * would push everything else out. Most of those blocks are padding, so the
+ * zeroes at the end are dropped and filled back in when the block is read.
+ */
+class BlockCache {
+    public static final int DEFAULT_CAPACITY_MEGABYTES = 32;
+
+    // Roughly what the map entry, the hash and the array header cost on top
+    // of the contents of each block
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+    private final long _capacityBytes;
+    private long _sizeBytes = 0;
+
+    // Access order means iteration starts from the least recently used block
+    private final LinkedHashMap<BlockHash, byte[]> _blocks = new LinkedHashMap<BlockHash, byte[]>(16, 0.75f, true);
+
+    private long _hits = 0;
+    private long _misses = 0;
+    private long _evictions = 0;
+
+    public BlockCache(int capacityMegabytes) {
+        if (capacityMegabytes <= 0) {
+            throw new IllegalArgumentException("Block cache must be at least 1 MB");
+        }
+
+        _capacityBytes = capacityMegabytes * 1024L * 1024L;
+    }
+
+    /**
+     * Copies the cached block into the buffer, which must be empty, and
+     * flips it so that the block can be read from it. Returns false if the
+     * block isn't cached.
+     */
+    public boolean get(BlockHash hash, ByteBuffer buffer) {
+        byte[] contents;
+        synchronized (this) {
+            contents = _blocks.get(hash);
+            if (contents == null) {
+                _misses++;
+                return false;
+            }
+
+            _hits++;
+        }
+
+        // Entries are never modified, so they can be copied without holding
+        // the lock
+        buffer.put(contents);
+        BlockUtils.writeZeros(buffer, BasicBlock.BLOCK_SIZE_BYTES - contents.length);
+        buffer.flip();
+        return true;
+    }
+
+    /**
+     * Copies the block between the position and limit of the buffer into the
+     * cache, evicting the least recently used blocks if it's full.
+     */
+    public void put(BlockHash hash, ByteBuffer buffer) {
+        int length = buffer.remaining();
+        while (length > 0 && buffer.get(buffer.position() + length - 1) == 0) {
+            length--;
+        }
+
+        byte[] contents = new byte[length];
+        buffer.duplicate().get(contents);
+
+        synchronized (this) {
+            if (_blocks.putIfAbsent(hash, contents) != null) {
+                return;
+            }
+
+            _sizeBytes += length + ENTRY_OVERHEAD_BYTES;
+
+            Iterator<byte[]> eldest = _blocks.values().iterator();
+            while (_sizeBytes > _capacityBytes && eldest.hasNext()) {
+                _sizeBytes -= eldest.next().length + ENTRY_OVERHEAD_BYTES;
+                eldest.remove();
+                _evictions++;
+            }
+        }
+    }
+
+    public synchronized long getHits() {
+        return _hits;
+    }
+
+    public synchronized long getMisses() {
+        return _misses;
+    }
+
+    public synchronized long getEvictions() {
+        return _evictions;
+    }
+}
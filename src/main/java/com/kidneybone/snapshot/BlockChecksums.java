@@ -0,0 +1,180 @@
+package com.kidneybone.snapshot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.CRC32C;
+
+import com.kidneybone.snapshot.blocks.BlockHash;
+
+/**
+ * CRC32C checksums of blocks as they're stored in the block pool, still
+ * compressed, which live next to the snapshot file. A quick integrity check
+ * compares blocks against these instead of inflating and hashing them, which
+ * runs at about the speed the file can be read.
+ *
+ * A checksum is only recorded once the block has been hashed and found to
+ * match its address, so it describes a block that was known to be good.
+ * Checksums are keyed by address rather than offset, so they stay valid when
+ * a prune or repack moves blocks around, since those copy blocks without
+ * recompressing them. A checksum that doesn't match is never trusted on its
+ * own: the block is hashed, and if it's fine the checksum is replaced.
+ *
+ * The file is only added to. Its layout is:
+ *
+ * - The magic bytes SSCRC001
+ * - Any number of entries, each being the 32-byte binary hash followed by
+ *   the checksum (int). If a hash appears more than once, the last one wins.
+ */
+class BlockChecksums {
+    private static final byte[] MAGIC = "SSCRC001".getBytes(StandardCharsets.US_ASCII);
+    private static final int ENTRY_SIZE_BYTES = BlockHash.SIZE_BYTES + 4;
+
+    private final Path _path;
+    private final HashMap<BlockHash, Integer> _checksums = new HashMap<BlockHash, Integer>();
+    private final ArrayList<BlockHash> _pendingHashes = new ArrayList<BlockHash>();
+    private final ArrayList<Integer> _pendingChecksums = new ArrayList<Integer>();
+
+    public BlockChecksums(Path path) {
+        _path = path;
+    }
+
+    /**
+     * Gets the conventional location of the checksums for a snapshot file.
+     */
+    public static Path pathFor(Path snapshotFile) {
+        return snapshotFile.resolveSibling(snapshotFile.getFileName() + ".sscrc");
+    }
+
+    /**
+     * Computes the checksum of the remaining contents of the buffer, without
+     * moving its position.
+     */
+    public static int checksum(ByteBuffer data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data.duplicate());
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Reads the checksums from the file. A missing or unrecognized file is
+     * treated as empty, and will be replaced when the checksums are saved.
+     * An entry cut off by an interrupted save is ignored.
+     */
+    public void load() throws IOException {
+        _checksums.clear();
+        if (!Files.exists(_path)) {
+            return;
+        }
+
+        ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(_path));
+        if (contents.remaining() < MAGIC.length) {
+            return;
+        }
+
+        byte[] magic = new byte[MAGIC.length];
+        contents.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            return;
+        }
+
+        while (contents.remaining() >= ENTRY_SIZE_BYTES) {
+            BlockHash hash = BlockHash.read(contents);
+            _checksums.put(hash, contents.getInt());
+        }
+    }
+
+    public int size() {
+        return _checksums.size();
+    }
+
+    public boolean contains(BlockHash hash) {
+        return _checksums.containsKey(hash);
+    }
+
+    /**
+     * Gets the checksum recorded for a block, which must be one that the
+     * checksums contain.
+     */
+    public int get(BlockHash hash) {
+        return _checksums.get(hash);
+    }
+
+    /**
+     * Records the checksum of a block that has been verified. It isn't used
+     * for lookups until the checksums are saved, so lookups can go on from
+     * other threads while this is called.
+     */
+    public void record(BlockHash hash, int checksum) {
+        _pendingHashes.add(hash);
+        _pendingChecksums.add(checksum);
+    }
+
+    /**
+     * Gets the number of checksums recorded since the last save.
+     */
+    public int getPendingCount() {
+        return _pendingHashes.size();
+    }
+
+    /**
+     * Adds the recorded checksums to the end of the file, starting a new
+     * file if there isn't a valid one already.
+     */
+    public void save() throws IOException {
+        if (_pendingHashes.isEmpty()) {
+            return;
+        }
+
+        ByteBuffer entries = ByteBuffer.allocate(MAGIC.length + _pendingHashes.size() * ENTRY_SIZE_BYTES);
+        boolean isNew = !hasValidHeader();
+        if (isNew) {
+            entries.put(MAGIC);
+        }
+
+        for (int i = 0; i < _pendingHashes.size(); i++) {
+            _pendingHashes.get(i).write(entries);
+            entries.putInt(_pendingChecksums.get(i));
+            _checksums.put(_pendingHashes.get(i), _pendingChecksums.get(i));
+        }
+        entries.flip();
+
+        StandardOpenOption mode = isNew ? StandardOpenOption.TRUNCATE_EXISTING : StandardOpenOption.APPEND;
+        try (FileChannel channel = FileChannel.open(_path, StandardOpenOption.WRITE, StandardOpenOption.CREATE, mode)) {
+            // An entry left partly written by an earlier save would shift
+            // every entry after it, so it's cut off first
+            if (!isNew) {
+                long size = channel.size();
+                channel.truncate(size - (size - MAGIC.length) % ENTRY_SIZE_BYTES);
+            }
+
+            while (entries.hasRemaining()) {
+                channel.write(entries);
+            }
+        }
+
+        _pendingHashes.clear();
+        _pendingChecksums.clear();
+    }
+
+    private boolean hasValidHeader() throws IOException {
+        if (!Files.exists(_path)) {
+            return false;
+        }
+
+        try (FileChannel channel = FileChannel.open(_path, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(MAGIC.length);
+            while (magic.hasRemaining() && channel.read(magic) >= 0) {
+            }
+
+            return !magic.hasRemaining() && Arrays.equals(magic.array(), MAGIC);
+        }
+    }
+}
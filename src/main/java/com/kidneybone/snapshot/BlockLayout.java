@@ -0,0 +1,21 @@
+package com.kidneybone.snapshot;
+
+import com.kidneybone.snapshot.blocks.BlockHash;
+import com.kidneybone.snapshot.codecs.Codecs;
+
+class BlockLayout {
+    public final static BlockLayout NOT_FOUND = new BlockLayout(BlockHash.EMPTY, 0, 0, Codecs.NONE);
+    public final static BlockLayout EMPTY_HASH = new BlockLayout(BlockHash.EMPTY, 0, 0, Codecs.NONE);
+
+    public final BlockHash hash;
+    public final int size;
+    public final long offset;
+    public final int codec;
+
+    public BlockLayout(BlockHash hash, long offset, int size, int codec) {
+        this.hash = hash;
+        this.offset = offset;
+        this.size = size;
+        this.codec = codec;
+    }
+}
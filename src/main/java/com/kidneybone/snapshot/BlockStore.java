@@ -1,47 +1,102 @@
 package com.kidneybone.snapshot;
 
-import static com.kidneybone.snapshot.blocks.BlockUtils.hashOfLastBlock;
-import static com.kidneybone.snapshot.blocks.BlockUtils.isEmptyHash;
-import static com.kidneybone.snapshot.blocks.BlockUtils.isValidHash;
-
 import java.io.IOException;
+import java.io.PrintStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.zip.DataFormatException;
-import java.util.zip.Deflater;
-import java.util.zip.Inflater;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.kidneybone.snapshot.blocks.BasicBlock;
+import com.kidneybone.snapshot.blocks.BlockFormat;
+import com.kidneybone.snapshot.blocks.BlockHash;
 import com.kidneybone.snapshot.blocks.CommitBlock;
 import com.kidneybone.snapshot.blocks.IndexBlock;
 import com.kidneybone.snapshot.blocks.TagBlock;
+import com.kidneybone.snapshot.codecs.Codec;
+import com.kidneybone.snapshot.codecs.Codecs;
 
-class BlockLayout {
-    public final static BlockLayout NOT_FOUND = new BlockLayout("NOT-FOUND", 0, 0, false);
-    public final static BlockLayout EMPTY_HASH = new BlockLayout("EMPTY-HASH", 0, 0, false);
+public class BlockStore {
+    /**
+     * The number of flushed index blocks which can build up in front of the
+     * index tree before they're merged into it. Every lookup that misses the
+     * tree has to consider the entries in these blocks, so they're always
+     * cached in memory.
+     */
+    private static final int INDEX_MERGE_THRESHOLD = 16;
 
-    public final String hash;
-    public final int size;
-    public final long offset;
-    public final boolean isCompressed;
+    // Scratch space for serializing, compressing and reading blocks. The
+    // append buffer copies whatever it's given, and nothing returned to a
+    // caller points into these, so each thread can keep reusing its own.
+    private static final ThreadLocal<ByteBuffer> SERIALIZE_BUFFER = ThreadLocal.withInitial(BlockStore::newBlockBuffer);
+    private static final ThreadLocal<ByteBuffer> COMPRESS_BUFFER = ThreadLocal.withInitial(BlockStore::newBlockBuffer);
+    private static final ThreadLocal<ByteBuffer> READ_BUFFER = ThreadLocal.withInitial(BlockStore::newBlockBuffer);
+    private static final ThreadLocal<ByteBuffer> COMPRESSED_READ_BUFFER = ThreadLocal.withInitial(BlockStore::newBlockBuffer);
 
-    public BlockLayout(String hash, long offset, int size, boolean isCompressed) {
-        this.hash = hash;
-        this.offset = offset;
-        this.size = size;
-        this.isCompressed = isCompressed;
-    }
-}
-
-public class BlockStore {
     private FileChannel _channel;
+    private AppendBuffer _appendBuffer;
     private HeaderBlock _header = new HeaderBlock();
-    private HashMap<String, BlockLayout> _indexCache = new HashMap<>();
+    private HashMap<BlockHash, BlockLayout> _indexCache = new HashMap<>();
+    private BloomFilter _indexFilter = null;
+    private StatCache _statCache = null;
+    private CodecPolicy _codecPolicy = CodecPolicy.DEFAULT;
+    private SidecarIndex _sidecar = null;
+    private BlockCache _blockCache = new BlockCache(BlockCache.DEFAULT_CAPACITY_MEGABYTES);
+    private MappedReader _mappedReader = null;
+    private final AtomicLong _bytesTransferred = new AtomicLong();
+    private IndexTree _indexTree = new IndexTree(this);
 
     public BlockStore(FileChannel channel) {
         _channel = channel;
+        _appendBuffer = new AppendBuffer(channel);
+    }
+
+    /**
+     * Creates a store whose header is for the given version, instead of the
+     * latest one. This is only useful for an empty store that blocks will be
+     * copied into, since unserializing replaces the header.
+     */
+    public BlockStore(FileChannel channel, int version) {
+        this(channel);
+        _header = new HeaderBlock(version);
+    }
+
+    /**
+     * Configures the location of the sidecar index. If a sidecar exists
+     * there when the header is loaded it will be used for lookups, and kept
+     * up to date whenever the header is written.
+     */
+    public void useSidecarIndex(Path path) {
+        _sidecar = new SidecarIndex(path);
+    }
+
+    /**
+     * Configures the location of the stat cache, which records the files in
+     * each new commit so that later incremental commits can skip them.
+     */
+    public void useStatCache(Path path) {
+        _statCache = new StatCache(path);
+    }
+
+    /**
+     * Sets the codecs that new blocks are written with. Codecs newer than
+     * deflate can't be used in version 1 snapshots, since versions of
+     * snapshot that only know about version 1 would read those blocks as
+     * uncompressed.
+     */
+    public void setCodecPolicy(CodecPolicy policy) {
+        if (policy.usesNewCodecs() && !_header.hasIndexTree()) {
+            throw new IllegalStateException("Version 1 snapshots can only use deflate, migrate the snapshot first");
+        }
+
+        _codecPolicy = policy;
     }
 
     /**
@@ -51,6 +106,68 @@ public class BlockStore {
         return _header;
     }
 
+    /**
+     * Gets the format that blocks in this store must use.
+     */
+    public BlockFormat getFormat() {
+        return _header.getFormat();
+    }
+
+    /**
+     * Reads blocks through memory mapped windows of the file, instead of
+     * copying them into buffers first. This is faster when a lot is read,
+     * such as when restoring, but each window takes up address space.
+     */
+    public void useMappedReads() {
+        _mappedReader = new MappedReader(_channel, _appendBuffer);
+    }
+
+    /**
+     * Replaces the cache of recently read blocks with an empty one of the
+     * given size.
+     */
+    public void setBlockCacheSize(int megabytes) {
+        _blockCache = new BlockCache(megabytes);
+    }
+
+    /**
+     * Checks whether new commits list their files in compact manifest blocks.
+     * Only version 3 snapshots use them, so that versions of snapshot which
+     * can read older snapshots never come across one.
+     */
+    boolean usesCompactManifests() {
+        return _header.getVersion() >= HeaderBlock.VERSION_BINARY_HASHES;
+    }
+
+    /**
+     * Checks whether new commits list their files in a tree of directory
+     * blocks, which takes precedence over compact manifests. Only version 4
+     * snapshots use them.
+     */
+    boolean usesDirectoryTrees() {
+        return _header.getVersion() >= HeaderBlock.VERSION_DIRECTORY_TREES;
+    }
+
+    /**
+     * Checks whether data blocks which are entirely zeroes are left out of
+     * new commits, with file blocks pointing to BlockHash.ZERO_BLOCK instead.
+     * Like compact manifests, that's limited to version 3 snapshots.
+     */
+    boolean usesZeroBlocks() {
+        return _header.getVersion() >= HeaderBlock.VERSION_BINARY_HASHES;
+    }
+
+    /**
+     * Checks that the block can be stored in or read from this store. Blocks
+     * that store hashes have to be created with the store's format.
+     */
+    private void checkFormat(BasicBlock block) {
+        if (block.getFormat() != null && block.getFormat() != getFormat()) {
+            throw new IllegalArgumentException("Cannot use a " + block.getFormat() + " block in a " +
+                                               getFormat() + " snapshot");
+        }
+    }
+
     /**
      * Gets a buffer big enough to hold a header.
      */
@@ -61,20 +178,55 @@ public class BlockStore {
     /**
      * Gets a buffer big enough to hold a non-header block.
      */
-    private ByteBuffer newBlockBuffer() {
+    private static ByteBuffer newBlockBuffer() {
         return ByteBuffer.allocate(BasicBlock.BLOCK_SIZE_BYTES);
     }
 
     /**
-     * Flushes the current header to the start of the channel.
+     * Gets the calling thread's buffer from the given scratch space, emptied
+     * out and ready to be written to.
+     */
+    private static ByteBuffer scratchBuffer(ThreadLocal<ByteBuffer> scratch) {
+        ByteBuffer buffer = scratch.get();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Flushes the current header to the start of the channel, after writing
+     * out any blocks that are still waiting in the append buffer.
      */
     public void serialize() throws IOException {
         ByteBuffer headerBuffer = newHeaderBuffer();
         _header.serialize(headerBuffer);
 
         headerBuffer.flip();
-        _channel.write(headerBuffer, 0);
+        _appendBuffer.writeAt(headerBuffer, 0);
         _channel.force(true);
+
+        if (_sidecar != null && _sidecar.isLoaded()) {
+            syncSidecarIndex();
+        }
+    }
+
+    /**
+     * Prints counters describing how the store has used the snapshot file.
+     */
+    public void printStats(PrintStream out) {
+        long writeCalls = _appendBuffer.getWriteCalls();
+        long bytesWritten = _appendBuffer.getBytesWritten();
+
+        out.printf("Blocks appended: %d\n", _appendBuffer.getBlocksAppended());
+        out.printf("Write calls: %d\n", writeCalls);
+        out.printf("Bytes written: %d\n", bytesWritten);
+        out.printf("Bytes per write: %d\n", writeCalls == 0 ? 0 : bytesWritten / writeCalls);
+        out.printf("Block cache hits: %d\n", _blockCache.getHits());
+        out.printf("Block cache misses: %d\n", _blockCache.getMisses());
+        out.printf("Block cache evictions: %d\n", _blockCache.getEvictions());
+        out.printf("Bytes copied directly: %d\n", _bytesTransferred.get());
+        if (_mappedReader != null) {
+            out.printf("Windows mapped: %d\n", _mappedReader.getWindowsMapped());
+        }
     }
 
     /**
@@ -82,48 +234,257 @@ public class BlockStore {
      */
     public void unserialize() throws IOException {
         ByteBuffer headerBuffer = newHeaderBuffer();
-        _channel.position(0);
-        _channel.read(headerBuffer, 0);
+        _appendBuffer.read(headerBuffer, 0);
 
         headerBuffer.flip();
         _header.unserialize(headerBuffer);
+
+        _indexCache.clear();
+        _indexFilter = null;
+
+        if (_header.hasIndexTree()) {
+            cacheUnmergedIndex();
+        }
+
+        if (_sidecar != null && _sidecar.load()) {
+            cacheRootIndex();
+            syncSidecarIndex();
+        }
+    }
+
+    /**
+     * Writes a sidecar index covering the entire index chain, replacing any
+     * sidecar that already exists.
+     */
+    public void buildSidecarIndex() throws IOException {
+        if (_sidecar == null) {
+            throw new IllegalStateException("No sidecar index location has been configured");
+        }
+
+        ArrayList<BlockLayout> entries = new ArrayList<BlockLayout>();
+        walkIndexChain(BlockHash.EMPTY, block -> addIndexEntries(block, entries));
+        _sidecar.rewrite(_header.getRootIndex().getNextPointer(), entries, false);
+
+        _indexFilter = null;
+        cacheRootIndex();
+    }
+
+    /**
+     * Brings the sidecar up to date with the index chain in the header. If
+     * the sidecar covers part of the current chain, only the index blocks
+     * flushed since it was written are read. Otherwise it is rebuilt.
+     */
+    private void syncSidecarIndex() throws IOException {
+        BlockHash tip = _header.getRootIndex().getNextPointer();
+        if (tip.equals(_sidecar.getTip())) {
+            return;
+        }
+
+        ArrayList<BlockLayout> entries = new ArrayList<BlockLayout>();
+        boolean extend = walkIndexChain(_sidecar.getTip(), block -> addIndexEntries(block, entries));
+        if (!extend) {
+            entries.clear();
+            walkIndexChain(BlockHash.EMPTY, block -> addIndexEntries(block, entries));
+        }
+
+        _sidecar.rewrite(tip, entries, extend);
+    }
+
+    /**
+     * Checks whether every entry which can't be found in the sidecar index
+     * or the index tree is in the index cache. If it is, a lookup that misses
+     * all three doesn't have to go through the index chain.
+     */
+    private boolean isIndexCacheAuthoritative() {
+        return _header.hasIndexTree() || (_sidecar != null && _sidecar.isLoaded());
+    }
+
+    /**
+     * Copies every entry in the root index and in the index blocks that
+     * haven't been merged into the index tree into the index cache. That way
+     * they only have to be read once, instead of during every lookup.
+     */
+    private void cacheUnmergedIndex() throws IOException {
+        cacheRootIndex();
+        walkIndexChain(_header.getMergedIndexTip(), block -> {
+            ArrayList<BlockLayout> entries = new ArrayList<BlockLayout>();
+            addIndexEntries(block, entries);
+            for (BlockLayout entry: entries) {
+                _indexCache.put(entry.hash, entry);
+            }
+        });
+    }
+
+    /**
+     * Copies every entry in the root index into the index cache. When the
+     * sidecar is in use, the cache is the only thing that covers index
+     * entries that haven't been flushed yet.
+     */
+    private void cacheRootIndex() {
+        ArrayList<BlockLayout> entries = new ArrayList<BlockLayout>();
+        addIndexEntries(_header.getRootIndex(), entries);
+        for (BlockLayout entry: entries) {
+            _indexCache.put(entry.hash, entry);
+        }
+    }
+
+    private static void addIndexEntries(IndexBlock index, List<BlockLayout> entries) {
+        for (int i = 0; i < index.size(); i++) {
+            entries.add(new BlockLayout(index.getEntryPointer(i),
+                                        index.getEntryOffset(i),
+                                        index.getEntrySize(i),
+                                        index.getEntryCodec(i)));
+        }
     }
 
     /**
      * Creates a new commit from the data in the given directory, and stores it.
+     * If more than one thread is requested, files are read, hashed and
+     * compressed in parallel. If the commit is incremental, files that the
+     * stat cache says haven't changed since the last commit are taken from it
+     * instead of being read again.
      */
-    public void addCommit(String baseDirectory) throws IOException {
-        Commit commit = new Commit(this);
-        String dataHash = commit.storeFileTree(baseDirectory);
+    public void addCommit(String baseDirectory, int threads, Chunking chunking, boolean incremental) throws IOException {
+        Commit commit = new Commit(this, chunking);
+        BlockHash lastCommit = _header.getLastCommit();
+
+        if (_statCache != null) {
+            _statCache.begin(baseDirectory, lastCommit, incremental ? readParentFiles(lastCommit, chunking) : null);
+        }
 
-        String lastCommit = _header.getLastCommit();
-        CommitBlock commitBlock = new CommitBlock(new Date().getTime(), dataHash, lastCommit);
+        ManifestWriter manifest = new ManifestWriter(this);
+        BlockHash dataHash;
+        if (threads > 1) {
+            dataHash = new CommitPipeline(this, threads, chunking).storeFileTree(baseDirectory, _statCache, manifest);
+        } else {
+            dataHash = commit.storeFileTree(baseDirectory, _statCache, manifest);
+        }
 
-        _header.setLastCommit(serializeBlock(commitBlock));
+        BlockHash commitHash = finishCommit(dataHash, manifest, chunking);
+
+        if (_statCache != null) {
+            _statCache.finish(commitHash);
+        }
     }
 
     /**
-     * Restores the contents of a commit into the given directory.
+     * Creates a new commit holding a single file, whose contents are read
+     * from the channel until it ends. The stat cache isn't updated, so it
+     * still describes an older commit and the next incremental commit of a
+     * directory reads every file.
      */
-    public void restoreCommit(String baseDirectory, String commitPointer) throws IOException {
-        Commit commit = new Commit(this);
+    public void addStreamCommit(String path, ReadableByteChannel input, Chunking chunking) throws IOException {
+        String cleanPath = TarImporter.cleanPath(path);
+        if (cleanPath == null) {
+            throw new IllegalArgumentException("'" + path + "' cannot be used as the name of a file");
+        }
+
+        System.out.printf("Storing file %s...\n", cleanPath);
+        Commit.FileInfo file = new Commit(this, chunking).storeStream(input);
+        System.out.printf("    Done\n");
+
+        ManifestWriter manifest = new ManifestWriter(this);
+        manifest.addFile(cleanPath, file.size, file.fileBlock);
+        finishCommit(manifest.finish(), manifest, chunking);
+    }
 
-        CommitBlock commitBlock = new CommitBlock();
+    /**
+     * Creates a new commit from the files in a tar stream, storing each one
+     * as it's read.
+     */
+    public void importTar(ReadableByteChannel input, Chunking chunking) throws IOException {
+        ManifestWriter manifest = new ManifestWriter(this);
+        BlockHash dataHash = new TarImporter(this, chunking).run(input, manifest);
+        finishCommit(dataHash, manifest, chunking);
+    }
+
+    /**
+     * Stores a commit block for a finished manifest and makes it the last
+     * commit, returning its hash.
+     */
+    private BlockHash finishCommit(BlockHash dataHash, ManifestWriter manifest, Chunking chunking) throws IOException {
+        int flags = chunking.getCommitFlags() | ManifestWriter.getCommitFlags(this);
+        CommitBlock commitBlock = new CommitBlock(getFormat(), new Date().getTime(), dataHash, _header.getLastCommit(),
+                                                  flags, manifest.getPathIndex());
+        BlockHash commitHash = serializeBlock(commitBlock);
+        _header.setLastCommit(commitHash);
+        return commitHash;
+    }
+
+    /**
+     * Gets the files in the given commit, which an incremental commit can
+     * reuse. Files can only be reused by a commit that stores its data blocks
+     * the same way, so if the chunking differs, nothing is returned.
+     */
+    private HashMap<String, Commit.FileInfo> readParentFiles(BlockHash parentCommit, Chunking chunking) throws IOException {
+        if (parentCommit.isEmpty()) {
+            return null;
+        }
+
+        CommitBlock parent = new CommitBlock(getFormat());
+        unserializeBlock(parent, parentCommit);
+        if (Chunking.forCommit(parent).isContentDefined() != chunking.isContentDefined()) {
+            System.out.println("Chunking differs from the parent commit, so every file will be read");
+            return null;
+        }
+
+        return new Commit(this, chunking).readFileTree(parent);
+    }
+
+    /**
+     * Restores the contents of a commit into the given directory. If more
+     * than one thread is requested, files are restored in parallel. If a
+     * filter is given, only the files which match it are restored.
+     */
+    public void restoreCommit(String baseDirectory, BlockHash commitPointer, int threads, PathFilter filter) throws IOException {
+        CommitBlock commitBlock = new CommitBlock(getFormat());
         unserializeBlock(commitBlock, commitPointer);
+        Chunking chunking = Chunking.forCommit(commitBlock);
 
-        commit.restoreFileTree(baseDirectory, commitBlock.getDataPointer());
+        if (threads > 1) {
+            new RestorePipeline(this, threads, chunking).restoreFileTree(baseDirectory, commitBlock, filter);
+        } else {
+            new Commit(this, chunking).restoreFileTree(baseDirectory, commitBlock, filter);
+        }
+    }
+
+    /**
+     * Opens a file from a commit for reading, without restoring it.
+     */
+    public StoredFileChannel openStoredFile(BlockHash commitPointer, String path) throws IOException {
+        CommitBlock commitBlock = new CommitBlock(getFormat());
+        unserializeBlock(commitBlock, commitPointer);
+
+        ArrayList<Commit.FileInfo> found = new ArrayList<Commit.FileInfo>();
+        new ManifestReader(this, commitBlock).forEachFile(PathFilter.exact(path), (filePath, size, filePointer) -> {
+            found.add(new Commit.FileInfo(filePointer, size));
+        });
+
+        if (found.isEmpty()) {
+            throw new IllegalArgumentException("Could not find file '" + path + "' in commit " + commitPointer);
+        }
+
+        return new StoredFileChannel(this, Chunking.forCommit(commitBlock), found.get(0).fileBlock, found.get(0).size);
+    }
+
+    /**
+     * Prints the files which differ between two commits. If compareBlocks is
+     * set, the ranges of each modified file that changed are listed too.
+     */
+    public void diffCommits(BlockHash fromPointer, BlockHash toPointer, boolean compareBlocks) throws IOException {
+        new CommitDiff(this, compareBlocks).run(fromPointer, toPointer);
     }
 
     /**
      * Creates a tag that points to the given hash.
      */
-    public void addTag(String tagName, String hash) throws IOException {
+    public void addTag(String tagName, BlockHash hash) throws IOException {
         tagName = tagName.trim();
         if (tagName.equals("")) {
             throw new IllegalArgumentException("Tags cannot be empty or consist of only whitespace");
         }
 
-        BlockLayout info = getBlockLayoutForHash(hash.toUpperCase());
+        BlockLayout info = getBlockLayoutForHash(hash);
         if (info == BlockLayout.EMPTY_HASH || info == BlockLayout.NOT_FOUND) {
             throw new IllegalArgumentException("The hash " + hash + " does not refer to a block");
         }
@@ -136,10 +497,41 @@ public class BlockStore {
         rootTags.registerTag(tagName, hash);
     }
 
+    interface TagVisitor {
+        void visit(String name, BlockHash hash) throws IOException;
+    }
+
+    /**
+     * Visits every tag in the order they were created.
+     */
+    void forEachTag(TagVisitor visitor) throws IOException {
+        ArrayList<TagBlock> blocks = new ArrayList<TagBlock>();
+        TagBlock currentTags = _header.getRootTags();
+
+        while (currentTags != null) {
+            blocks.add(currentTags);
+
+            BlockHash nextTags = currentTags.getNextPointer();
+            if (nextTags.isEmpty()) {
+                currentTags = null;
+            } else {
+                currentTags = new TagBlock(getFormat());
+                unserializeBlock(currentTags, nextTags);
+            }
+        }
+
+        for (int i = blocks.size() - 1; i >= 0; i--) {
+            TagBlock tags = blocks.get(i);
+            for (int j = 0; j < tags.size(); j++) {
+                visitor.visit(tags.getEntryName(j), tags.getEntryCommit(j));
+            }
+        }
+    }
+
     /**
      * Resolves a tag name into a hash.
      */
-    public String resolveTag(String tagName) throws IOException {
+    public BlockHash resolveTag(String tagName) throws IOException {
         TagBlock currentTags = _header.getRootTags();
 
         while (currentTags != null) {
@@ -149,11 +541,11 @@ public class BlockStore {
                 }
             }
 
-            String nextTags = currentTags.getNextPointer();
-            if (isEmptyHash(nextTags)) {
+            BlockHash nextTags = currentTags.getNextPointer();
+            if (nextTags.isEmpty()) {
                 currentTags = null;
             } else {
-                currentTags = new TagBlock();
+                currentTags = new TagBlock(getFormat());
                 unserializeBlock(currentTags, nextTags);
             }
         }
@@ -165,63 +557,283 @@ public class BlockStore {
      * Ensures that a block matching the hash of this block exists in the
      * block pool. Only writes the block if it isn't already stored.
      */
-    public String serializeBlock(BasicBlock block) throws IOException {
+    public BlockHash serializeBlock(BasicBlock block) throws IOException {
         return serializeBlockInternal(block, true).hash;
     }
 
     public BlockLayout serializeBlockInternal(BasicBlock block, boolean writeIndex) throws IOException {
-        ByteBuffer blockBuffer = newBlockBuffer();
+        checkFormat(block);
+
+        ByteBuffer blockBuffer = scratchBuffer(SERIALIZE_BUFFER);
         block.serialize(blockBuffer);
-        String hash = hashOfLastBlock(blockBuffer);
-        if (hash.equals(BasicBlock.EMPTY_HASH)) {
+        BlockHash hash = getFormat().hashOfLastBlock(blockBuffer);
+        if (hash.isEmpty()) {
             throw new IOException("Cannot serialize block whose hash is the empty hash");
         }
 
-        BlockLayout info = getBlockLayoutForHash(hash.toUpperCase());
-        int writeSize = 0;
-        long offset = 0;
-        boolean isCompressed = false;
+        if (writeIndex) {
+            ensureIndexFilter();
+        }
+
+        BlockLayout info = getBlockLayoutForHash(hash);
+        if (info != BlockLayout.NOT_FOUND) {
+            return new BlockLayout(hash, 0, 0, Codecs.NONE);
+        }
 
-        if (info == BlockLayout.NOT_FOUND) {
+        // Flushing the root index serializes it into the same scratch buffer,
+        // so the block has to be written out before that happens
+        BlockLayout layout = writeBlockData(_codecPolicy.codecFor(block), hash, blockBuffer);
+        if (writeIndex) {
             IndexBlock index = _header.getRootIndex();
-            if (writeIndex && index.isFull()) {
+            if (index.isFull()) {
                 index = flushRootIndex();
             }
 
-            offset = getCurrenttBlockOffset();
-            int deflatedSize = 0;
+            registerInIndex(index, hash, layout.offset, layout.size, layout.codec);
+        }
 
-            Deflater deflater = new Deflater();
-            deflater.setInput(blockBuffer);
-            deflater.finish();
+        return layout;
+    }
 
-            ByteBuffer deflateBuffer = newBlockBuffer();
-            deflatedSize = deflater.deflate(deflateBuffer);
+    /**
+     * Writes a block to the end of the block pool without checking whether
+     * it already exists or adding it to the index. This is only useful for
+     * blocks which are referred to by offset, like index tree nodes.
+     */
+    BlockLayout appendBlock(BasicBlock block, BlockHash hash) throws IOException {
+        checkFormat(block);
 
-            // We should only take the uncompressed form if the deflater
-            // couldn't fit the compressed form within a single block. This
-            // usually happens if we're storing something like a JPEG which is
-            // already compressed.
-            if (deflater.finished()) {
-                deflateBuffer.flip();
-                _channel.write(deflateBuffer, _channel.size());
+        ByteBuffer blockBuffer = scratchBuffer(SERIALIZE_BUFFER);
+        block.serialize(blockBuffer);
+        blockBuffer.flip();
+        return writeBlockData(_codecPolicy.codecFor(block), hash, blockBuffer);
+    }
 
-                writeSize = deflatedSize;
-                isCompressed = true;
-            } else {
-                blockBuffer.rewind();
-                _channel.write(blockBuffer, _channel.size());
+    /**
+     * Compresses the serialized block in the buffer if possible, and writes
+     * it to the end of the block pool.
+     */
+    private BlockLayout writeBlockData(Codec codec, BlockHash hash, ByteBuffer blockBuffer) throws IOException {
+        PreparedBlock prepared = compressBlock(codec, hash, blockBuffer);
+
+        int writeSize = prepared.data.remaining();
+        long offset = _appendBuffer.append(prepared.data);
+
+        return new BlockLayout(hash, offset, writeSize, prepared.codec);
+    }
 
-                writeSize = BasicBlock.BLOCK_SIZE_BYTES;
-                isCompressed = false;
+    /**
+     * Serializes, hashes and compresses a block so that it can be stored
+     * later with storePreparedBlock. This is safe to call from any thread.
+     */
+    PreparedBlock prepareBlock(BasicBlock block) throws IOException {
+        checkFormat(block);
+
+        ByteBuffer blockBuffer = scratchBuffer(SERIALIZE_BUFFER);
+        block.serialize(blockBuffer);
+        BlockHash hash = getFormat().hashOfLastBlock(blockBuffer);
+        if (hash.isEmpty()) {
+            throw new IOException("Cannot serialize block whose hash is the empty hash");
+        }
+
+        // The block is usually stored by another thread, after this one has
+        // moved on and reused its scratch buffers, so it gets its own copy
+        PreparedBlock prepared = compressBlock(_codecPolicy.codecFor(block), hash, blockBuffer);
+        ByteBuffer data = ByteBuffer.allocate(prepared.data.remaining());
+        data.put(prepared.data);
+        data.flip();
+        return new PreparedBlock(hash, data, prepared.codec);
+    }
+
+    /**
+     * Compresses the serialized block in the buffer if that makes it smaller,
+     * returning the data that should be written to the block pool. A null
+     * codec stores the block as it is. The data may be in the calling
+     * thread's scratch space.
+     */
+    private static PreparedBlock compressBlock(Codec codec, BlockHash hash, ByteBuffer blockBuffer) {
+        if (codec != null) {
+            ByteBuffer compressBuffer = scratchBuffer(COMPRESS_BUFFER);
+
+            // We should only take the uncompressed form if the codec couldn't
+            // fit the compressed form within a single block. This usually
+            // happens if we're storing something like a JPEG which is already
+            // compressed.
+            if (codec.compress(blockBuffer, compressBuffer)) {
+                compressBuffer.flip();
+                return new PreparedBlock(hash, compressBuffer, codec.getId());
             }
+        }
+
+        blockBuffer.rewind();
+        return new PreparedBlock(hash, blockBuffer, Codecs.NONE);
+    }
 
-            if (writeIndex) {
-                index.registerBlock(hash, offset, writeSize, isCompressed);
+    /**
+     * Writes a block which was prepared with prepareBlock, unless a block
+     * with the same hash is already stored. Returns the hash of the block.
+     */
+    BlockHash storePreparedBlock(PreparedBlock prepared) throws IOException {
+        ensureIndexFilter();
+        if (getBlockLayoutForHash(prepared.hash) != BlockLayout.NOT_FOUND) {
+            return prepared.hash;
+        }
+
+        IndexBlock index = _header.getRootIndex();
+        if (index.isFull()) {
+            index = flushRootIndex();
+        }
+
+        int size = prepared.data.remaining();
+        long offset = _appendBuffer.append(prepared.data);
+        registerInIndex(index, prepared.hash, offset, size, prepared.codec);
+        return prepared.hash;
+    }
+
+    /**
+     * Reads the block as it is stored in the block pool, without
+     * decompressing it.
+     */
+    ByteBuffer readBlockData(BlockLayout layout) throws IOException {
+        ByteBuffer dataBuffer = ByteBuffer.allocate(layout.size);
+        _appendBuffer.read(dataBuffer, layout.offset);
+        dataBuffer.flip();
+        return dataBuffer;
+    }
+
+    /**
+     * Reads a run of the block pool which may hold many blocks, in one go.
+     * The result is shorter than asked for if the file ends first.
+     */
+    ByteBuffer readRange(long offset, int length) throws IOException {
+        ByteBuffer dataBuffer = ByteBuffer.allocate(length);
+        while (dataBuffer.hasRemaining()) {
+            if (_appendBuffer.read(dataBuffer, offset + dataBuffer.position()) < 0) {
+                break;
             }
         }
 
-        return new BlockLayout(hash, offset, writeSize, isCompressed);
+        dataBuffer.flip();
+        return dataBuffer;
+    }
+
+    /**
+     * Copies the contents of this store into another store, which should be
+     * empty and is usually of a newer version. The other store builds its
+     * own index, so none of the index blocks in this store are copied.
+     *
+     * If the other store uses a different block format, every block which
+     * points to other blocks has a different hash once it's converted, so
+     * the commits and everything they refer to are rewritten instead. Any
+     * stat cache is then pointed at the new address of its commit.
+     */
+    public void migrateTo(BlockStore other) throws IOException {
+        if (other.getFormat() != getFormat()) {
+            FormatMigration migration = new FormatMigration(this, other);
+            migration.run();
+            other.serialize();
+
+            if (_statCache != null) {
+                _statCache.renameCommit(migration.getRenamedCommits());
+            }
+            return;
+        }
+
+        HashSet<BlockHash> indexBlocks = new HashSet<BlockHash>();
+        indexBlocks.add(_header.getRootIndex().getNextPointer());
+
+        copyIndexedBlocks(_header.getRootIndex(), indexBlocks, other);
+        walkIndexChain(BlockHash.EMPTY, block -> {
+            indexBlocks.add(block.getNextPointer());
+            copyIndexedBlocks(block, indexBlocks, other);
+        });
+
+        other._header.setLastCommit(_header.getLastCommit());
+        other._header.copyTagsFrom(_header);
+        other.serialize();
+    }
+
+    /**
+     * Drops old commits and copies everything which is still reachable into
+     * another store, which should be empty and of the same version. If a
+     * layout commit is given, its blocks are copied first, in restore order.
+     * Any stat cache or sidecar index is updated to describe the new store,
+     * which should then replace this one.
+     */
+    public Compaction pruneInto(BlockStore other, int keepNewest, long keepSince, BlockHash layoutCommit) throws IOException {
+        if (other.getHeader().getVersion() != _header.getVersion()) {
+            throw new IllegalArgumentException("Cannot compact a version " + _header.getVersion() +
+                                               " snapshot into a version " + other.getHeader().getVersion() + " one");
+        }
+
+        Compaction compaction = new Compaction(this, other, keepNewest, keepSince);
+        compaction.setLayoutCommit(layoutCommit);
+        compaction.run();
+        other.serialize();
+
+        if (_statCache != null) {
+            _statCache.renameCommit(compaction.getRenamedCommits());
+        }
+
+        if (_sidecar != null && _sidecar.isLoaded()) {
+            other.useSidecarIndex(_sidecar.getPath());
+            other.buildSidecarIndex();
+        }
+
+        return compaction;
+    }
+
+    /**
+     * Finds where each of the given blocks is stored by reading through the
+     * whole index once, instead of looking each one up. Hashes are removed
+     * from the set as they're found, so whatever's left wasn't found.
+     */
+    ArrayList<BlockLayout> findStoredBlocks(HashSet<BlockHash> hashes) throws IOException {
+        ArrayList<BlockLayout> found = new ArrayList<BlockLayout>();
+        IndexBlockVisitor collect = block -> {
+            ArrayList<BlockLayout> entries = new ArrayList<BlockLayout>();
+            addIndexEntries(block, entries);
+            for (BlockLayout entry: entries) {
+                if (hashes.remove(entry.hash)) {
+                    found.add(entry);
+                }
+            }
+        };
+
+        collect.visit(_header.getRootIndex());
+        walkIndexChain(BlockHash.EMPTY, collect);
+        return found;
+    }
+
+    /**
+     * Lists every entry in the index, including the root index. The flushed
+     * index blocks are in there too, and since nothing but the index refers
+     * to them, their hashes are also added to indexBlocks.
+     */
+    ArrayList<BlockLayout> listStoredBlocks(HashSet<BlockHash> indexBlocks) throws IOException {
+        ArrayList<BlockLayout> entries = new ArrayList<BlockLayout>();
+        IndexBlockVisitor collect = block -> {
+            addIndexEntries(block, entries);
+            if (!block.getNextPointer().isEmpty()) {
+                indexBlocks.add(block.getNextPointer());
+            }
+        };
+
+        collect.visit(_header.getRootIndex());
+        walkIndexChain(BlockHash.EMPTY, collect);
+
+        return entries;
+    }
+
+    private void copyIndexedBlocks(IndexBlock index, HashSet<BlockHash> skip, BlockStore other) throws IOException {
+        ArrayList<BlockLayout> entries = new ArrayList<BlockLayout>();
+        addIndexEntries(index, entries);
+
+        for (BlockLayout entry: entries) {
+            if (!skip.contains(entry.hash)) {
+                other.storePreparedBlock(new PreparedBlock(entry.hash, readBlockData(entry), entry.codec));
+            }
+        }
     }
 
     /**
@@ -233,11 +845,8 @@ public class BlockStore {
      */
     private IndexBlock flushRootIndex() throws IOException {
         IndexBlock rootIndex = _header.getRootIndex();
-        ByteBuffer indexBuffer = newBlockBuffer();
-        rootIndex.serialize(indexBuffer);
-
-        String hash = hashOfLastBlock(indexBuffer);
         BlockLayout layout = serializeBlockInternal(rootIndex, false);
+        BlockHash hash = layout.hash;
         IndexBlock newRootIndex;
 
         // If the hash was already written, we still have to copy it into the
@@ -247,10 +856,144 @@ public class BlockStore {
         }
 
         newRootIndex = _header.linkInNewIndexBlock(hash);
-        newRootIndex.registerBlock(hash, layout.offset, layout.size, layout.isCompressed);
+        registerInIndex(newRootIndex, hash, layout.offset, layout.size, layout.codec);
+
+        if (_header.hasIndexTree() && _header.getUnmergedIndexBlocks() >= INDEX_MERGE_THRESHOLD) {
+            mergeIndexChain();
+        }
+
         return newRootIndex;
     }
 
+    /**
+     * Merges the entries of every flushed index block that isn't yet covered
+     * by the index tree into it.
+     */
+    private void mergeIndexChain() throws IOException {
+        BlockHash tip = _header.getRootIndex().getNextPointer();
+
+        ArrayList<BlockLayout> entries = new ArrayList<BlockLayout>();
+        walkIndexChain(_header.getMergedIndexTip(), block -> addIndexEntries(block, entries));
+        Collections.sort(entries, (a, b) -> a.hash.compareTo(b.hash));
+
+        BlockLayout root = _indexTree.merge(_header.getIndexTreeRoot(), entries);
+        _header.setIndexTree(root, tip);
+
+        // The tree covers these now, so there's no need to keep them around
+        // unless the cache is also standing in for a sidecar which hasn't
+        // been updated yet
+        if (_sidecar == null || !_sidecar.isLoaded()) {
+            for (BlockLayout entry: entries) {
+                _indexCache.remove(entry.hash);
+            }
+        }
+    }
+
+    /**
+     * Adds an entry to the given index block, making sure that the index
+     * filter also knows about the new hash.
+     */
+    private void registerInIndex(IndexBlock index, BlockHash hash, long offset, int size, int codec) throws IOException {
+        index.registerBlock(hash, offset, size, codec);
+
+        if (isIndexCacheAuthoritative()) {
+            _indexCache.put(hash, new BlockLayout(hash, offset, size, codec));
+        }
+
+        if (_indexFilter != null) {
+            _indexFilter.add(hash);
+            if (_indexFilter.isSaturated()) {
+                rebuildIndexFilter(_indexFilter.getCapacity() * 2);
+            }
+        }
+    }
+
+    /**
+     * Builds the index filter if it's needed and doesn't exist yet. It's only
+     * needed when blocks are being written, since that's the only time that
+     * lookups for blocks that don't exist are common.
+     */
+    private void ensureIndexFilter() throws IOException {
+        if (_indexFilter == null && (_sidecar == null || !_sidecar.isLoaded())) {
+            rebuildIndexFilter(0);
+        }
+    }
+
+    /**
+     * Walks the entire index chain and builds a new filter containing every
+     * hash in it. The filter is sized for at least the given number of
+     * entries, or for twice the number of entries currently indexed.
+     *
+     * Note that this only reads the index blocks themselves and doesn't fill
+     * the index cache, since the point of the filter is to avoid holding an
+     * entry for every block in memory.
+     */
+    private void rebuildIndexFilter(int minimumCapacity) throws IOException {
+        // The old filter has to be dropped during the walk, since it doesn't
+        // know about anything we're adding here and would otherwise hide the
+        // index blocks we need to resolve
+        _indexFilter = null;
+
+        ArrayList<BlockLayout> entries = new ArrayList<BlockLayout>();
+        addIndexEntries(_header.getRootIndex(), entries);
+        walkIndexChain(BlockHash.EMPTY, block -> addIndexEntries(block, entries));
+
+        BloomFilter filter = new BloomFilter(Math.max(minimumCapacity, entries.size() * 2));
+        for (BlockLayout entry: entries) {
+            filter.add(entry.hash);
+        }
+
+        _indexFilter = filter;
+    }
+
+    /**
+     * Visits every flushed index block, starting from the one linked from the
+     * root index, until the block with the given hash is reached. The block
+     * with that hash is not visited. Returns true if the block was found, or
+     * if the stop hash is empty and the whole chain was visited.
+     *
+     * This doesn't rely upon the rest of the index to resolve the blocks in
+     * the chain. Every flushed index block's layout is stored in the block
+     * that was created just after it, which is the same block that links to
+     * it.
+     */
+    private boolean walkIndexChain(BlockHash stopHash, IndexBlockVisitor visitor) throws IOException {
+        IndexBlock currentIndex = _header.getRootIndex();
+        BlockHash nextHash = currentIndex.getNextPointer();
+
+        while (!nextHash.isEmpty()) {
+            if (nextHash.equals(stopHash)) {
+                return true;
+            }
+
+            BlockLayout nextInfo = BlockLayout.NOT_FOUND;
+            for (int i = 0; i < currentIndex.size(); i++) {
+                if (currentIndex.getEntryPointer(i).equals(nextHash)) {
+                    nextInfo = new BlockLayout(nextHash,
+                                               currentIndex.getEntryOffset(i),
+                                               currentIndex.getEntrySize(i),
+                                               currentIndex.getEntryCodec(i));
+                    break;
+                }
+            }
+
+            if (nextInfo == BlockLayout.NOT_FOUND) {
+                nextInfo = getBlockLayoutForHash(nextHash);
+                if (nextInfo == BlockLayout.NOT_FOUND) {
+                    throw new IOException("Could not find index block with hash " + nextHash);
+                }
+            }
+
+            currentIndex = new IndexBlock(getFormat());
+            unserializeBlockAtOffset(currentIndex, nextInfo.offset, nextInfo.size, nextInfo.codec);
+            visitor.visit(currentIndex);
+
+            nextHash = currentIndex.getNextPointer();
+        }
+
+        return stopHash.isEmpty();
+    }
+
     /**
      * Saves the current root tag block and initializes a new root tag block
      * pointing to it.
@@ -260,7 +1003,7 @@ public class BlockStore {
      */
     private TagBlock flushRootTags() throws IOException {
         TagBlock rootTags = _header.getRootTags();
-        String hash = serializeBlock(rootTags);
+        BlockHash hash = serializeBlock(rootTags);
         TagBlock newRootTags = _header.linkInNewTagBlock(hash);
         return newRootTags;
     }
@@ -268,74 +1011,153 @@ public class BlockStore {
     /**
      * Loads the data for the given hash and initializes the block with it.
      */
-    public void unserializeBlock(BasicBlock block, String hash) throws IOException {
-        if (!isValidHash(hash)) {
-            throw new IllegalArgumentException(hash + " is not a valid SHA256 hash");
+    public void unserializeBlock(BasicBlock block, BlockHash hash) throws IOException {
+        checkFormat(block);
+
+        boolean isCacheable = block.getFormat() != null;
+        if (isCacheable) {
+            ByteBuffer cached = scratchBuffer(READ_BUFFER);
+            if (_blockCache.get(hash, cached)) {
+                block.unserialize(cached);
+                return;
+            }
+        }
+
+        BlockLayout info = findStoredBlock(hash);
+        ByteBuffer blockBuffer = readBlockAtOffset(block, info.offset, info.size, info.codec);
+        if (isCacheable) {
+            _blockCache.put(hash, blockBuffer);
+        }
+
+        block.unserialize(blockBuffer);
+    }
+
+    /**
+     * Gets where the block with the given hash is stored, which must exist.
+     */
+    BlockLayout findStoredBlock(BlockHash hash) throws IOException {
+        // The index caches aren't safe to share between threads, but the read
+        // itself is positional, so only the lookup has to be done while
+        // holding the lock. That lets restores read blocks in parallel.
+        BlockLayout info;
+        synchronized (this) {
+            info = getBlockLayoutForHash(hash);
         }
 
-        BlockLayout info = getBlockLayoutForHash(hash.toUpperCase());
         if (info == BlockLayout.EMPTY_HASH) {
             throw new IllegalArgumentException("Cannot retrieve block with empty hash");
         } else if (info == BlockLayout.NOT_FOUND) {
             throw new IllegalArgumentException("Could not find block with hash " + hash);
-        } else {
-                unserializeBlockAtOffset(block, info.offset, info.size, info.isCompressed);
         }
+
+        return info;
     }
 
     /**
-     * Returns the offset of the block most recently written to the store.
+     * Copies bytes from the block pool into the target at its current
+     * position. The copy is done by the OS where it supports that, so the
+     * data never passes through the JVM.
      */
-    private long getCurrenttBlockOffset() throws IOException {
-        return _channel.size();
+    void transferStoredData(long offset, long length, FileChannel target) throws IOException {
+        _appendBuffer.ensureWritten(offset, length);
+
+        long remaining = length;
+        while (remaining > 0) {
+            long transferred = _channel.transferTo(offset, remaining, target);
+            if (transferred <= 0) {
+                throw new IOException("Could not copy from offset " + offset + " of the snapshot file");
+            }
+
+            offset += transferred;
+            remaining -= transferred;
+        }
+
+        _bytesTransferred.addAndGet(length);
     }
 
     /**
      * Initializes the block with the block data at the given offset.
      */
-        private void unserializeBlockAtOffset(BasicBlock block, long offset, int size, boolean compressed) throws IOException {
-        ByteBuffer blockBuffer = newBlockBuffer();
+    void unserializeBlockAtOffset(BasicBlock block, long offset, int size, int codec) throws IOException {
+        block.unserialize(readBlockAtOffset(block, offset, size, codec));
+    }
 
-        if (compressed) {
-            ByteBuffer inflateBuffer = ByteBuffer.allocate(size);
-            _channel.read(inflateBuffer, offset);
+    /**
+     * Reads and decompresses the block data at the given offset. The result
+     * is either in the calling thread's scratch space or, when reads are
+     * mapped, a view of the file. The block is only used in errors.
+     */
+    private ByteBuffer readBlockAtOffset(BasicBlock block, long offset, int size, int codec) throws IOException {
+        if (codec != Codecs.NONE && size > BasicBlock.BLOCK_SIZE_BYTES) {
+            throw new IOException("Found compressed " + block.getClass().getName() + " block with size " + size +
+                                  ", must be at most " + BasicBlock.BLOCK_SIZE_BYTES);
+        }
 
-            inflateBuffer.flip();
-            Inflater inflater = new Inflater();
-            inflater.setInput(inflateBuffer);
+        if (_mappedReader != null && codec == Codecs.NONE) {
+            return _mappedReader.slice(offset, BasicBlock.BLOCK_SIZE_BYTES);
+        }
 
-            try {
-                int blockSize = inflater.inflate(blockBuffer);
-                inflater.end();
+        ByteBuffer blockBuffer = scratchBuffer(READ_BUFFER);
 
-                if (blockSize != BasicBlock.BLOCK_SIZE_BYTES) {
-                    String error = String.format("Found %s block with size %d after decompression, should be %d",
-                                                block.getClass().getName(),
-                                                blockSize,
-                                                BasicBlock.BLOCK_SIZE_BYTES);
-                    throw new IOException(error);
-                }
-            } catch (DataFormatException err) {
-                throw new IOException("Failure when decoding compressed block: " + err.getMessage());
+        if (codec != Codecs.NONE) {
+            ByteBuffer compressedBuffer;
+            if (_mappedReader != null) {
+                compressedBuffer = _mappedReader.slice(offset, size);
+            } else {
+                compressedBuffer = scratchBuffer(COMPRESSED_READ_BUFFER);
+                compressedBuffer.limit(size);
+                _appendBuffer.read(compressedBuffer, offset);
+                compressedBuffer.flip();
+            }
+
+            int blockSize = Codecs.forId(codec).decompress(compressedBuffer, blockBuffer);
+            if (blockSize != BasicBlock.BLOCK_SIZE_BYTES) {
+                String error = String.format("Found %s block with size %d after decompression, should be %d",
+                                            block.getClass().getName(),
+                                            blockSize,
+                                            BasicBlock.BLOCK_SIZE_BYTES);
+                throw new IOException(error);
             }
         } else {
-            _channel.read(blockBuffer, offset);
+            _appendBuffer.read(blockBuffer, offset);
         }
 
         blockBuffer.flip();
-        block.unserialize(blockBuffer);
+        return blockBuffer;
     }
 
     /**
-     * Finds the given hash in the store's index, returning either an offset
-     * (in blocks from the end of the header) or the status codes HASH_IS_EMPTY
-     *  or HASH_NOT_FOUND.
+     * Finds the given hash in the store's index, returning either where the
+     * block is stored or one of EMPTY_HASH and NOT_FOUND. Blocks that are
+     * found are cached, so only the first lookup of each goes to the index.
+     * The caches aren't thread-safe, which is why findStoredBlock locks.
      */
-    private BlockLayout getBlockLayoutForHash(String hash) throws IOException {
-        if (isEmptyHash(hash)) {
+    BlockLayout getBlockLayoutForHash(BlockHash hash) throws IOException {
+        if (hash.isEmpty()) {
             return BlockLayout.EMPTY_HASH;
         } else if (_indexCache.containsKey(hash)) {
             return _indexCache.get(hash);
+        } else if (isIndexCacheAuthoritative()) {
+            // Everything that isn't in the sidecar or the tree is in the
+            // cache, since the root index (and any unmerged index blocks) are
+            // cached when loaded and new entries are cached as they're
+            // registered
+            BlockLayout info;
+            if (_sidecar != null && _sidecar.isLoaded()) {
+                info = _sidecar.find(hash);
+            } else if (_indexFilter != null && !_indexFilter.mightContain(hash)) {
+                info = BlockLayout.NOT_FOUND;
+            } else {
+                info = _indexTree.find(_header.getIndexTreeRoot(), hash);
+            }
+
+            if (info != BlockLayout.NOT_FOUND) {
+                _indexCache.put(hash, info);
+            }
+
+            return info;
+        } else if (_indexFilter != null && !_indexFilter.mightContain(hash)) {
+            return BlockLayout.NOT_FOUND;
         } else {
             // Although it looks like there's the potential for unlimited
             // recursion here, it's not really a problem because of how index
@@ -349,11 +1171,11 @@ public class BlockStore {
 
             while (currentIndex != null) {
                 for (int i = 0; i < currentIndex.size(); i++) {
-                    String currentHash = currentIndex.getEntryPointer(i);
+                    BlockHash currentHash = currentIndex.getEntryPointer(i);
                     long currentOffset = currentIndex.getEntryOffset(i);
                     int currentSize = currentIndex.getEntrySize(i);
-                    boolean currentIsCompressed = currentIndex.getEntryIsCompressed(i);
-                    BlockLayout info = new BlockLayout(hash, currentOffset, currentSize, currentIsCompressed);
+                    int currentCodec = currentIndex.getEntryCodec(i);
+                    BlockLayout info = new BlockLayout(currentHash, currentOffset, currentSize, currentCodec);
                     _indexCache.put(currentHash, info);
 
                     if (currentHash.equals(hash)) {
@@ -361,18 +1183,22 @@ public class BlockStore {
                     }
                 }
 
-                String nextIndex = currentIndex.getNextPointer();
+                BlockHash nextIndex = currentIndex.getNextPointer();
                 BlockLayout indexInfo = getBlockLayoutForHash(nextIndex);
 
                 if (indexInfo == BlockLayout.EMPTY_HASH) {
                     currentIndex = null;
                 } else {
-                    currentIndex = new IndexBlock();
-                    unserializeBlockAtOffset(currentIndex, indexInfo.offset, indexInfo.size, indexInfo.isCompressed);
+                    currentIndex = new IndexBlock(getFormat());
+                    unserializeBlockAtOffset(currentIndex, indexInfo.offset, indexInfo.size, indexInfo.codec);
                 }
             }
 
             return BlockLayout.NOT_FOUND;
         }
     }
+
+    private interface IndexBlockVisitor {
+        void visit(IndexBlock block) throws IOException;
+    }
 }
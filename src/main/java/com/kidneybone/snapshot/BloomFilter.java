@@ -0,0 +1,109 @@
+package com.kidneybone.snapshot;
+
+import java.math.BigInteger;
+
+import com.kidneybone.snapshot.blocks.BlockHash;
+
+/**
+ * A probabilistic set of block hashes. A negative answer from mightContain
+ * is definite, which lets the store skip walking the index chain entirely
+ * when it is asked about a block that was never written.
+ */
+class BloomFilter {
+    // Roughly 1% false positives at capacity, which is a good tradeoff
+    // between the memory used by the filter and the number of index walks
+    // that a false positive costs
+    private static final int BITS_PER_ENTRY = 10;
+    private static final int HASH_FUNCTIONS = 7;
+    private static final int MINIMUM_CAPACITY = 1 << 16;
+
+    private final long[] _bits;
+    private final long _bitCount;
+    private final int _capacity;
+    private int _count;
+
+    public BloomFilter(int expectedEntries) {
+        _capacity = Math.max(expectedEntries, MINIMUM_CAPACITY);
+        // A prime number of bits means every step between probes is coprime
+        // with it, so no two probes for a hash can land on the same bit
+        _bitCount = BigInteger.valueOf((long) _capacity * BITS_PER_ENTRY).nextProbablePrime().longValue();
+        _bits = new long[(int) ((_bitCount + 63) / 64)];
+        _count = 0;
+    }
+
+    /**
+     * Gets the number of entries the filter was sized for.
+     */
+    public int getCapacity() {
+        return _capacity;
+    }
+
+    /**
+     * Checks whether more entries have been added than the filter was sized
+     * for. Past this point the false positive rate climbs quickly, so the
+     * filter should be rebuilt with a larger capacity.
+     */
+    public boolean isSaturated() {
+        return _count > _capacity;
+    }
+
+    public void add(BlockHash hash) {
+        long folded = firstHash(hash);
+        long first = Math.floorMod(folded, _bitCount);
+        long step = probeStep(folded);
+
+        for (int i = 0; i < HASH_FUNCTIONS; i++) {
+            long bit = (first + i * step) % _bitCount;
+            _bits[(int) (bit >>> 6)] |= 1L << (bit & 63);
+        }
+
+        _count++;
+    }
+
+    public boolean mightContain(BlockHash hash) {
+        long folded = firstHash(hash);
+        long first = Math.floorMod(folded, _bitCount);
+        long step = probeStep(folded);
+
+        for (int i = 0; i < HASH_FUNCTIONS; i++) {
+            long bit = (first + i * step) % _bitCount;
+            if ((_bits[(int) (bit >>> 6)] & (1L << (bit & 63))) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Folds the words of the hash together. Block hashes are already
+     * uniformly distributed, but hashes from version 1 and 2 snapshots only
+     * have entropy in the high nibble of each byte, so every word has to
+     * contribute to the result.
+     */
+    private static long firstHash(BlockHash hash) {
+        long result = 0xcbf29ce484222325L;
+        for (int i = 0; i < 4; i++) {
+            result ^= hash.getWord(i);
+            result *= 0x100000001b3L;
+            result ^= result >>> 29;
+        }
+
+        return result;
+    }
+
+    /**
+     * Derives the step between probes from an independent second hash, using
+     * the finalizer from MurmurHash3. The step is never zero and is less than
+     * the number of bits, so the probes can be computed without overflowing.
+     */
+    private long probeStep(long first) {
+        long result = first;
+        result ^= result >>> 33;
+        result *= 0xff51afd7ed558ccdL;
+        result ^= result >>> 33;
+        result *= 0xc4ceb9fe1a85ec53L;
+        result ^= result >>> 33;
+        return 1 + Math.floorMod(result, _bitCount - 1);
+    }
+}
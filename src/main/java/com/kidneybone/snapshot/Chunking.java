@@ -0,0 +1,270 @@
+package com.kidneybone.snapshot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.SplittableRandom;
+
+import com.kidneybone.snapshot.blocks.BasicBlock;
+import com.kidneybone.snapshot.blocks.BlockUtils;
+import com.kidneybone.snapshot.blocks.ChunkBlock;
+import com.kidneybone.snapshot.blocks.CommitBlock;
+import com.kidneybone.snapshot.blocks.DataBlock;
+
+/**
+ * Decides where files are cut into data blocks.
+ *
+ * Fixed chunking cuts a file every BLOCK_SIZE_BYTES, which is simple but
+ * means that inserting a single byte near the start of a file changes every
+ * block after it. Content-defined chunking instead cuts wherever a rolling
+ * hash of the last few bytes matches a pattern, so the cut points move along
+ * with the content, and the blocks after an insert are the same as before.
+ *
+ * The rolling hash is the gear hash used by FastCDC. Cuts are never made
+ * before the minimum size, are made less likely before the average size and
+ * more likely after it, and are always made at the maximum size.
+ */
+class Chunking {
+    public static final int DEFAULT_MIN_SIZE = 4 * 1024;
+    public static final int DEFAULT_AVERAGE_SIZE = 16 * 1024;
+    public static final int DEFAULT_MAX_SIZE = ChunkBlock.MAX_LENGTH;
+
+    public static final Chunking FIXED = new Chunking(false, 0, 0, 0);
+
+    // The cut points depend on this table, so changing the seed would stop
+    // new commits from sharing chunks with older ones
+    private static final long GEAR_SEED = 0x536E617073686F74L;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        SplittableRandom random = new SplittableRandom(GEAR_SEED);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final boolean _isContentDefined;
+    private final int _minSize;
+    private final int _averageSize;
+    private final int _maxSize;
+    private final long _smallMask;
+    private final long _largeMask;
+
+    /**
+     * Reads a file one chunk at a time.
+     */
+    interface ChunkReader {
+        /**
+         * Gets the next chunk of the file, or null at the end of the file.
+         * The buffer is only valid until the next call.
+         */
+        ByteBuffer nextChunk() throws IOException;
+    }
+
+    private Chunking(boolean isContentDefined, int minSize, int averageSize, int maxSize) {
+        _isContentDefined = isContentDefined;
+        _minSize = minSize;
+        _averageSize = averageSize;
+        _maxSize = maxSize;
+
+        // The gear hash shifts left, so the high bits depend on the most
+        // bytes. One bit more than the average size makes cuts less likely
+        // before it, and one bit less makes them more likely after it.
+        int bits = 31 - Integer.numberOfLeadingZeros(Math.max(averageSize, 4));
+        _smallMask = -1L << (64 - (bits + 1));
+        _largeMask = -1L << (64 - (bits - 1));
+    }
+
+    public static Chunking contentDefined(int minSize, int averageSize, int maxSize) {
+        if (minSize <= 0 || minSize > averageSize || averageSize > maxSize) {
+            throw new IllegalArgumentException("Chunk sizes must satisfy 0 < MIN <= AVG <= MAX");
+        }
+
+        if (maxSize > ChunkBlock.MAX_LENGTH) {
+            throw new IllegalArgumentException("Chunks can be at most " + ChunkBlock.MAX_LENGTH + " bytes");
+        }
+
+        return new Chunking(true, minSize, averageSize, maxSize);
+    }
+
+    /**
+     * Parses a chunking mode, which is either "fixed", "cdc", or
+     * "cdc:MIN:AVG:MAX" with sizes in bytes.
+     */
+    public static Chunking parse(String mode) {
+        if (mode.equals("fixed")) {
+            return FIXED;
+        } else if (mode.equals("cdc")) {
+            return contentDefined(DEFAULT_MIN_SIZE, DEFAULT_AVERAGE_SIZE, DEFAULT_MAX_SIZE);
+        }
+
+        String[] parts = mode.split(":");
+        if (parts.length != 4 || !parts[0].equals("cdc")) {
+            throw new IllegalArgumentException("Unknown chunking mode " + mode);
+        }
+
+        try {
+            return contentDefined(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+        } catch (NumberFormatException err) {
+            throw new IllegalArgumentException("Chunk sizes must be integers: " + mode);
+        }
+    }
+
+    /**
+     * Gets the chunking used by the given commit. Only the kind of data
+     * block it uses matters when reading, so the sizes are the defaults.
+     */
+    public static Chunking forCommit(CommitBlock commit) {
+        if ((commit.getFlags() & CommitBlock.FLAG_CONTENT_DEFINED_CHUNKS) != 0) {
+            return contentDefined(DEFAULT_MIN_SIZE, DEFAULT_AVERAGE_SIZE, DEFAULT_MAX_SIZE);
+        }
+
+        return FIXED;
+    }
+
+    public boolean isContentDefined() {
+        return _isContentDefined;
+    }
+
+    /**
+     * Gets the flags to store in commits made with this chunking.
+     */
+    public int getCommitFlags() {
+        return _isContentDefined ? CommitBlock.FLAG_CONTENT_DEFINED_CHUNKS : 0;
+    }
+
+    /**
+     * Creates an empty data block of the kind this chunking produces, to
+     * read a stored one into.
+     */
+    public DataBlock newBlock() {
+        return _isContentDefined ? new ChunkBlock() : new DataBlock();
+    }
+
+    /**
+     * Creates a data block holding a chunk returned by a ChunkReader.
+     */
+    public DataBlock newBlock(ByteBuffer chunk) {
+        return _isContentDefined ? new ChunkBlock(chunk) : new DataBlock(chunk);
+    }
+
+    /**
+     * Checks whether the chunk can be recorded as a zero block instead of
+     * being stored. Only fixed size blocks can, since a chunk block records
+     * its length.
+     */
+    public boolean isZeroBlock(ByteBuffer chunk) {
+        return !_isContentDefined && BlockUtils.isZero(chunk);
+    }
+
+    public ChunkReader newReader(ReadableByteChannel channel) {
+        if (_isContentDefined) {
+            return new ContentDefinedReader(channel);
+        }
+
+        return new FixedReader(channel);
+    }
+
+    /**
+     * Finds where the chunk starting at offset in data should end, given
+     * that there are length bytes available. Returns the length of the chunk.
+     */
+    int findCutPoint(byte[] data, int offset, int length) {
+        if (length <= _minSize) {
+            return length;
+        }
+
+        int end = Math.min(length, _maxSize);
+        int normal = Math.min(end, _averageSize);
+        long hash = 0;
+
+        int i = _minSize;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xFF];
+            if ((hash & _smallMask) == 0) {
+                return i + 1;
+            }
+        }
+
+        for (; i < end; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xFF];
+            if ((hash & _largeMask) == 0) {
+                return i + 1;
+            }
+        }
+
+        return end;
+    }
+
+    /**
+     * Returns whole blocks, with a short last block padded with zeroes.
+     */
+    private static class FixedReader implements ChunkReader {
+        private final ReadableByteChannel _channel;
+        private final ByteBuffer _buffer = ByteBuffer.allocate(BasicBlock.BLOCK_SIZE_BYTES);
+
+        public FixedReader(ReadableByteChannel channel) {
+            _channel = channel;
+        }
+
+        @Override
+        public ByteBuffer nextChunk() throws IOException {
+            _buffer.clear();
+            while (_buffer.hasRemaining() && _channel.read(_buffer) >= 0) {
+            }
+
+            if (_buffer.position() == 0) {
+                return null;
+            }
+
+            while (_buffer.hasRemaining()) {
+                _buffer.put((byte) 0);
+            }
+
+            _buffer.flip();
+            return _buffer;
+        }
+    }
+
+    /**
+     * Keeps at least one maximum sized chunk buffered, so that a cut point
+     * can always be found without running off the end of the buffer.
+     */
+    private class ContentDefinedReader implements ChunkReader {
+        private final ReadableByteChannel _channel;
+        private final ByteBuffer _buffer = ByteBuffer.allocate(_maxSize * 2);
+        private boolean _endOfFile = false;
+
+        public ContentDefinedReader(ReadableByteChannel channel) {
+            _channel = channel;
+            _buffer.flip();
+        }
+
+        @Override
+        public ByteBuffer nextChunk() throws IOException {
+            if (!_endOfFile && _buffer.remaining() < _maxSize) {
+                _buffer.compact();
+                while (_buffer.hasRemaining()) {
+                    if (_channel.read(_buffer) < 0) {
+                        _endOfFile = true;
+                        break;
+                    }
+                }
+
+                _buffer.flip();
+            }
+
+            if (!_buffer.hasRemaining()) {
+                return null;
+            }
+
+            int start = _buffer.position();
+            int length = findCutPoint(_buffer.array(), start, _buffer.remaining());
+
+            ByteBuffer chunk = _buffer.duplicate();
+            chunk.limit(start + length);
+            _buffer.position(start + length);
+            return chunk;
+        }
+    }
+}
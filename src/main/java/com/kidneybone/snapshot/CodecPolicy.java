@@ -0,0 +1,74 @@
+package com.kidneybone.snapshot;
+
+import com.kidneybone.snapshot.blocks.BasicBlock;
+import com.kidneybone.snapshot.blocks.DataBlock;
+import com.kidneybone.snapshot.codecs.Codec;
+import com.kidneybone.snapshot.codecs.Codecs;
+
+/**
+ * Chooses the codec that each block is written with. Data blocks, which make
+ * up almost all of a snapshot, can use a different codec from everything
+ * else, so that (for example) file contents can be compressed quickly while
+ * the much smaller metadata is compressed as tightly as possible.
+ *
+ * A null codec means that blocks are stored uncompressed.
+ */
+class CodecPolicy {
+    public static final CodecPolicy DEFAULT = new CodecPolicy(Codecs.DEFAULT, Codecs.DEFAULT);
+
+    private final Codec _dataCodec;
+    private final Codec _metadataCodec;
+
+    public CodecPolicy(Codec dataCodec, Codec metadataCodec) {
+        _dataCodec = dataCodec;
+        _metadataCodec = metadataCodec;
+    }
+
+    /**
+     * Parses a policy, which is either a single codec name used for every
+     * block, or a comma separated list of data=CODEC and metadata=CODEC.
+     * Anything that isn't given uses the default codec.
+     */
+    public static CodecPolicy parse(String policy) {
+        if (!policy.contains("=")) {
+            Codec codec = Codecs.parse(policy);
+            return new CodecPolicy(codec, codec);
+        }
+
+        Codec dataCodec = Codecs.DEFAULT;
+        Codec metadataCodec = Codecs.DEFAULT;
+
+        for (String part: policy.split(",")) {
+            String[] setting = part.split("=", 2);
+            if (setting.length != 2) {
+                throw new IllegalArgumentException("Expected data=CODEC or metadata=CODEC, found " + part);
+            }
+
+            if (setting[0].equals("data")) {
+                dataCodec = Codecs.parse(setting[1]);
+            } else if (setting[0].equals("metadata")) {
+                metadataCodec = Codecs.parse(setting[1]);
+            } else {
+                throw new IllegalArgumentException("Unknown kind of block " + setting[0]);
+            }
+        }
+
+        return new CodecPolicy(dataCodec, metadataCodec);
+    }
+
+    public Codec codecFor(BasicBlock block) {
+        return block instanceof DataBlock ? _dataCodec : _metadataCodec;
+    }
+
+    /**
+     * Checks whether any of the codecs is newer than deflate, which older
+     * versions of snapshot can't read.
+     */
+    public boolean usesNewCodecs() {
+        return isNewCodec(_dataCodec) || isNewCodec(_metadataCodec);
+    }
+
+    private static boolean isNewCodec(Codec codec) {
+        return codec != null && codec.getId() > Codecs.DEFLATE;
+    }
+}
@@ -1,46 +1,61 @@
 package com.kidneybone.snapshot;
 
-import static com.kidneybone.snapshot.blocks.BlockUtils.isEmptyHash;
-
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Stack;
 
 import com.kidneybone.snapshot.blocks.BasicBlock;
-import com.kidneybone.snapshot.blocks.CommitDataBlock;
+import com.kidneybone.snapshot.blocks.BlockHash;
+import com.kidneybone.snapshot.blocks.CommitBlock;
 import com.kidneybone.snapshot.blocks.DataBlock;
 import com.kidneybone.snapshot.blocks.FileBlock;
+import com.kidneybone.snapshot.codecs.Codecs;
 
 class Commit {
     private BlockStore _store;
+    private Chunking _chunking;
 
-    class FileInfo {
-        public final String fileBlock;
+    static class FileInfo {
+        public final BlockHash fileBlock;
         public final long size;
 
-        public FileInfo(String fileBlock, long size) {
+        public FileInfo(BlockHash fileBlock, long size) {
             this.fileBlock = fileBlock;
             this.size = size;
         }
     }
 
     public Commit(BlockStore store) {
+        this(store, Chunking.FIXED);
+    }
+
+    public Commit(BlockStore store, Chunking chunking) {
         _store = store;
+        _chunking = chunking;
     }
 
     /**
-     * Builds a new commit data block representing the current state of the
-     * directory (or possibly multiple), stores them, and returns the
-     * hash of the last.
+     * Called for each file found by walkFileTree, with both its full path and
+     * its path relative to the base directory.
      */
-    public String storeFileTree(String baseDirectory) throws IOException {
+    interface FileTreeVisitor {
+        void visit(Path path, String relativePath) throws IOException;
+    }
+
+    /**
+     * Finds every file under the base directory and passes it to the visitor.
+     * Relative paths always use / as a separator, regardless of platform.
+     */
+    static void walkFileTree(String baseDirectory, FileTreeVisitor visitor) throws IOException {
         if (baseDirectory.endsWith(File.separator)) {
             baseDirectory = baseDirectory.substring(0, baseDirectory.length() - 1);
         }
@@ -50,8 +65,6 @@ class Commit {
         Stack<String> directoriesToScan = new Stack<String>();
         directoriesToScan.push(baseDirectory);
 
-        CommitDataBlock dataBlock = new CommitDataBlock();
-
         while (!directoriesToScan.empty()) {
             String searchDirectory = directoriesToScan.pop();
             String[] entries = new File(searchDirectory).list();
@@ -63,49 +76,64 @@ class Commit {
                 if (entryInfo.isDirectory()) {
                     directoriesToScan.push(fullPath);
                 } else {
-                    if (dataBlock.isFull()) {
-                        String dataHash = _store.serializeBlock(dataBlock);
-                        dataBlock = new CommitDataBlock(dataHash);
-                    }
-
                     Path path = FileSystems.getDefault().getPath(fullPath);
-                    FileInfo fileBlock = storeFileBlock(path);
-                    dataBlock.registerFile(basePath.relativize(path).toString().replace("\\", "/"),
-                                           fileBlock.size,
-                                           fileBlock.fileBlock);
+                    visitor.visit(path, basePath.relativize(path).toString().replace("\\", "/"));
                 }
             }
         }
-
-        return _store.serializeBlock(dataBlock);
     }
 
     /**
-     * Reads the data from the data block (and its parents), and restores the
-     * data referenced by it into the given directory.
+     * Adds the current state of the directory to the manifest, stores it,
+     * and returns the hash of the last block in it. If a stat cache is given,
+     * files which it says are unchanged are taken from the parent commit
+     * instead of being read.
      */
-    public void restoreFileTree(String baseDirectory, String dataPointer) throws IOException {
-        CommitDataBlock dataBlock = new CommitDataBlock();
-        _store.unserializeBlock(dataBlock, dataPointer);
-
-        while (dataBlock != null) {
-            for (int i = 0; i < dataBlock.size(); i++) {
-                Path path  = Path.of(baseDirectory, dataBlock.getEntryPath(i));
-                long size = dataBlock.getEntrySize(i);
-                String filePointer = dataBlock.getEntryFilePointer(i);
-
-                new File(path.getParent().toString()).mkdirs();
-                restoreFileBlock(path, filePointer, size);
+    public BlockHash storeFileTree(String baseDirectory, StatCache statCache, ManifestWriter manifest) throws IOException {
+
+        walkFileTree(baseDirectory, (path, relativePath) -> {
+            FileInfo fileBlock = null;
+            if (statCache != null) {
+                StatCache.Entry attributes = StatCache.Entry.read(path);
+                fileBlock = statCache.findUnchanged(relativePath, attributes);
+                statCache.record(relativePath, attributes);
             }
 
-            String nextBlock = dataBlock.getNextPointer();
-            if (isEmptyHash(nextBlock)) {
-                dataBlock = null;
+            if (fileBlock == null) {
+                fileBlock = storeFileBlock(path);
             } else {
-                dataBlock = new CommitDataBlock();
-                _store.unserializeBlock(dataBlock, nextBlock);
+                System.out.printf("Skipping unchanged file %s\n", path);
             }
-        }
+
+            manifest.addFile(relativePath, fileBlock.size, fileBlock.fileBlock);
+        });
+
+        return manifest.finish();
+    }
+
+    /**
+     * Reads the list of files in a commit, keyed by their relative paths.
+     */
+    public HashMap<String, FileInfo> readFileTree(CommitBlock commit) throws IOException {
+        HashMap<String, FileInfo> files = new HashMap<String, FileInfo>();
+        new ManifestReader(_store, commit).forEachFile((filePath, size, filePointer) -> {
+            files.put(filePath, new FileInfo(filePointer, size));
+        });
+
+        return files;
+    }
+
+    /**
+     * Reads the data from the data block (and its parents), and restores the
+     * data referenced by it into the given directory. If a filter is given,
+     * only the files which match it are restored.
+     */
+    public void restoreFileTree(String baseDirectory, CommitBlock commit, PathFilter filter) throws IOException {
+        new ManifestReader(_store, commit).forEachFile(filter, (filePath, size, filePointer) -> {
+            Path path  = Path.of(baseDirectory, filePath);
+            new File(path.getParent().toString()).mkdirs();
+            restoreFileBlock(path, filePointer, size);
+        });
     }
 
     /**
@@ -114,89 +142,191 @@ class Commit {
      * both the hash of the file block as well as the size of the file itself.
      */
     private FileInfo storeFileBlock(Path filePath) throws IOException {
-        FileChannel fileData = null;
-        FileBlock currentFileBlock = new FileBlock();
-        long size;
+        FileInfo fileInfo;
 
         System.out.printf("Storing file %s...\n", filePath);
 
-        try {
-            fileData = FileChannel.open(filePath, StandardOpenOption.READ);
-            size = fileData.size();
-            ByteBuffer dataBuffer = ByteBuffer.allocate(BasicBlock.BLOCK_SIZE_BYTES);
+        try (FileChannel fileData = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            fileInfo = storeStream(fileData);
+        }
 
-            int blockSize = fileData.read(dataBuffer);
-            while (blockSize > 0) {
-                dataBuffer.position(0);
-                DataBlock data = new DataBlock(dataBuffer);
-                String dataHash = _store.serializeBlock(data);
+        System.out.printf("    Done\n");
+        return fileInfo;
+    }
 
-                if (currentFileBlock.isFull()) {
-                    String fileHash = _store.serializeBlock(currentFileBlock);
-                    currentFileBlock = new FileBlock(fileHash);
-                }
+    /**
+     * Stores everything that can be read from the channel as the contents of
+     * one file. The size doesn't have to be known in advance, and no more
+     * than the chunk reader's buffer is held in memory at once.
+     */
+    public FileInfo storeStream(ReadableByteChannel input) throws IOException {
+        CountingChannel countedInput = new CountingChannel(input);
+        FileBlock currentFileBlock = new FileBlock(_store.getFormat());
+
+        Chunking.ChunkReader chunks = _chunking.newReader(countedInput);
+        DataBlock data = _chunking.newBlock();
+        boolean elideZeroBlocks = _store.usesZeroBlocks();
+
+        ByteBuffer chunk = chunks.nextChunk();
+        while (chunk != null) {
+            BlockHash dataHash;
+            if (elideZeroBlocks && _chunking.isZeroBlock(chunk)) {
+                dataHash = BlockHash.ZERO_BLOCK;
+            } else {
+                data.setContents(chunk);
+                dataHash = _store.serializeBlock(data);
+            }
 
-                currentFileBlock.registerBlock(dataHash);
+            if (currentFileBlock.isFull()) {
+                BlockHash fileHash = _store.serializeBlock(currentFileBlock);
+                currentFileBlock = new FileBlock(_store.getFormat(), fileHash);
+            }
 
-                dataBuffer.position(0);
-                blockSize = fileData.read(dataBuffer);
+            currentFileBlock.registerBlock(dataHash);
+            chunk = chunks.nextChunk();
+        }
+
+        return new FileInfo(_store.serializeBlock(currentFileBlock), countedInput.getBytesRead());
+    }
+
+    /**
+     * Counts the bytes read through it. Fixed size chunks are padded out to
+     * a whole block, so the size of a file has to be counted as it's read.
+     * Counting also means the size recorded matches the data stored, even if
+     * the file grows or shrinks while it's being read.
+     */
+    static class CountingChannel implements ReadableByteChannel {
+        private final ReadableByteChannel _channel;
+        private long _bytesRead = 0;
+
+        public CountingChannel(ReadableByteChannel channel) {
+            _channel = channel;
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) throws IOException {
+            int read = _channel.read(buffer);
+            if (read > 0) {
+                _bytesRead += read;
             }
-        } finally {
-            if (fileData != null) fileData.close();
+
+            return read;
         }
 
-        System.out.printf("    Done\n");
-        return new FileInfo(_store.serializeBlock(currentFileBlock), size);
+        public long getBytesRead() {
+            return _bytesRead;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return _channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            _channel.close();
+        }
     }
 
     /**
-     * Reads the given file, producing and storing a series of data blocks, as
-     * well as a file block containing all of them. Returns a structure containing
-     * both the hash of the file block as well as the size of the file itself.
+     * Gets the hashes of all the data blocks in a file, in the order they
+     * appear in the file.
      */
-    private void restoreFileBlock(Path filePath, String filePointer, long size) throws IOException {
-        FileChannel fileData = null;
-        FileBlock currentFileBlock = new FileBlock();
+    ArrayList<BlockHash> readDataBlockPointers(BlockHash filePointer) throws IOException {
+        FileBlock currentFileBlock = new FileBlock(_store.getFormat());
         _store.unserializeBlock(currentFileBlock, filePointer);
 
+        ArrayList<BlockHash> dataBlocks = new ArrayList<BlockHash>();
+        while (currentFileBlock != null) {
+            // While the linked data block structure is reversed as a whole, the
+            // individual data blocks within the structure all contain data blocks
+            // in the original order. That means that we have to iterate each block
+            // in reverse in order to get all of dataBlocks in reverse.
+            for (int i = currentFileBlock.size() - 1; i >= 0; i--) {
+                dataBlocks.add(currentFileBlock.getEntryPointer(i));
+            }
+
+            BlockHash nextBlock = currentFileBlock.getPreviousPointer();
+            if (nextBlock.isEmpty()) {
+                currentFileBlock = null;
+            } else {
+                currentFileBlock = new FileBlock(_store.getFormat());
+                _store.unserializeBlock(currentFileBlock, nextBlock);
+            }
+        }
+
+        Collections.reverse(dataBlocks);
+        return dataBlocks;
+    }
+
+    /**
+     * Writes the contents of the file block (and its parents) to the given
+     * file, truncating the content of the last data block to the given size.
+     */
+    private void restoreFileBlock(Path filePath, BlockHash filePointer, long size) throws IOException {
+        FileChannel fileData = null;
+        ArrayList<BlockHash> dataBlocks = readDataBlockPointers(filePointer);
+
         System.out.printf("Restoring file %s...\n", filePath);
 
         try {
-            fileData = FileChannel.open(filePath, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
-
-            ArrayList<String> dataBlocks = new ArrayList<String>();
-            while (currentFileBlock != null) {
-                // While the linked data block structure is reversed as a whole, the
-                // individual data blocks within the structure all contain data blocks
-                // in the original order. That means that we have to iterate each block
-                // in reverse in order to get all of dataBlocks in reverse.
-                for (int i = currentFileBlock.size() - 1; i >= 0; i--) {
-                    dataBlocks.add(currentFileBlock.getEntryPointer(i));
-                }
+            fileData = FileChannel.open(filePath,
+                                        StandardOpenOption.WRITE,
+                                        StandardOpenOption.CREATE,
+                                        StandardOpenOption.TRUNCATE_EXISTING);
 
-                String nextBlock = currentFileBlock.getPreviousPointer();
-                if (isEmptyHash(nextBlock)) {
-                    currentFileBlock = null;
-                } else {
-                    currentFileBlock = new FileBlock();
-                    _store.unserializeBlock(currentFileBlock, nextBlock);
+            DataBlock currentDataBlock = _chunking.newBlock();
+            ByteBuffer dataBuffer = ByteBuffer.allocate(BasicBlock.BLOCK_SIZE_BYTES);
+            StoredRun storedRun = StoredRun.start(_store, _chunking, fileData, 0);
+            long position = 0;
+            for (BlockHash dataPointer: dataBlocks) {
+                // Nothing is written for a zero block, which leaves a hole
+                if (dataPointer.isZeroBlock()) {
+                    long length = Math.min(size, BasicBlock.BLOCK_SIZE_BYTES);
+                    if (storedRun != null) {
+                        storedRun.skip(length);
+                    }
+                    position += length;
+                    size -= length;
+                    continue;
                 }
-            }
 
-            Collections.reverse(dataBlocks);
+                if (storedRun != null) {
+                    BlockLayout layout = _store.findStoredBlock(dataPointer);
+                    if (layout.codec == Codecs.NONE) {
+                        long length = Math.min(size, BasicBlock.BLOCK_SIZE_BYTES);
+                        storedRun.add(layout.offset, length);
+                        position += length;
+                        size -= length;
+                        continue;
+                    }
+                }
 
-            DataBlock currentDataBlock = new DataBlock();
-            ByteBuffer dataBuffer = ByteBuffer.allocate(BasicBlock.BLOCK_SIZE_BYTES);
-            for (String dataPointer: dataBlocks) {
                 _store.unserializeBlock(currentDataBlock, dataPointer);
                 dataBuffer.position(0);
-                size -= currentDataBlock.writeContent(dataBuffer, size);
+                long length = currentDataBlock.writeContent(dataBuffer, size);
+                size -= length;
                 dataBuffer.flip();
 
-                fileData.write(dataBuffer);
+                if (storedRun != null) {
+                    storedRun.skip(length);
+                }
+
+                while (dataBuffer.hasRemaining()) {
+                    position += fileData.write(dataBuffer, position);
+                }
                 dataBuffer.clear();
             }
 
+            if (storedRun != null) {
+                storedRun.flush();
+            }
+
+            // A file which ends in a hole still needs its full size
+            if (fileData.size() < position) {
+                fileData.write(ByteBuffer.allocate(1), position - 1);
+            }
+
             fileData.force(true);
         } finally {
             if (fileData != null) fileData.close();
@@ -0,0 +1,228 @@
+package com.kidneybone.snapshot;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.kidneybone.snapshot.blocks.BasicBlock;
+import com.kidneybone.snapshot.blocks.BlockHash;
+import com.kidneybone.snapshot.blocks.CommitBlock;
+import com.kidneybone.snapshot.blocks.DirectoryBlock;
+
+/**
+ * Lists the files which were added, removed or modified between two commits.
+ *
+ * Blocks are addressed by their contents, so two files with the same file
+ * block and size are the same, and only the manifests of the commits have to
+ * be read to find out which files changed. Comparing the data blocks of a
+ * modified file only reads its file blocks, never the data itself.
+ *
+ * When both commits are directory trees, the same goes for directories: one
+ * with the same address in both commits is skipped without being read.
+ */
+class CommitDiff {
+    private final BlockStore _store;
+    private final boolean _compareBlocks;
+
+    private int _added = 0;
+    private int _removed = 0;
+    private int _modified = 0;
+    private int _unchanged = 0;
+
+    public CommitDiff(BlockStore store, boolean compareBlocks) {
+        _store = store;
+        _compareBlocks = compareBlocks;
+    }
+
+    private static class FileEntry {
+        public final long size;
+        public final BlockHash fileBlock;
+
+        public FileEntry(long size, BlockHash fileBlock) {
+            this.size = size;
+            this.fileBlock = fileBlock;
+        }
+
+        public boolean sameAs(FileEntry other) {
+            return size == other.size && fileBlock.equals(other.fileBlock);
+        }
+    }
+
+    /**
+     * Prints the differences between the two commits, in path order.
+     */
+    public void run(BlockHash fromPointer, BlockHash toPointer) throws IOException {
+        CommitBlock fromCommit = readCommit(fromPointer);
+        CommitBlock toCommit = readCommit(toPointer);
+
+        System.out.printf("Comparing commit %s with commit %s\n", fromPointer, toPointer);
+
+        Chunking fromChunking = Chunking.forCommit(fromCommit);
+        Chunking toChunking = Chunking.forCommit(toCommit);
+        boolean canCompareBlocks = !fromChunking.isContentDefined() && !toChunking.isContentDefined();
+        if (_compareBlocks && !canCompareBlocks) {
+            System.out.printf("Block ranges are only listed when both commits use fixed size chunks\n");
+        }
+
+        if (ManifestReader.isTree(fromCommit) && ManifestReader.isTree(toCommit)) {
+            diffDirectories(fromCommit.getDataPointer(), toCommit.getDataPointer(), "", toChunking, canCompareBlocks);
+        } else {
+            diffEntries(readFiles(fromCommit), readFiles(toCommit), "", toChunking, canCompareBlocks);
+        }
+
+        System.out.printf("%d added, %d removed, %d modified, %d unchanged\n", _added, _removed, _modified, _unchanged);
+    }
+
+    /**
+     * Compares two sets of entries, keyed by their paths relative to the
+     * given directory path. Keys ending with a / are directories, which are
+     * only opened if their addresses differ.
+     */
+    private void diffEntries(TreeMap<String, FileEntry> fromFiles, TreeMap<String, FileEntry> toFiles,
+                             String directoryPath, Chunking chunking, boolean canCompareBlocks) throws IOException {
+        Iterator<Map.Entry<String, FileEntry>> fromIterator = fromFiles.entrySet().iterator();
+        Iterator<Map.Entry<String, FileEntry>> toIterator = toFiles.entrySet().iterator();
+        Map.Entry<String, FileEntry> from = next(fromIterator);
+        Map.Entry<String, FileEntry> to = next(toIterator);
+
+        while (from != null || to != null) {
+            int order = from == null ? 1 : to == null ? -1 : from.getKey().compareTo(to.getKey());
+
+            if (order < 0) {
+                reportAll(false, directoryPath + from.getKey(), from.getValue());
+                from = next(fromIterator);
+            } else if (order > 0) {
+                reportAll(true, directoryPath + to.getKey(), to.getValue());
+                to = next(toIterator);
+            } else {
+                String path = directoryPath + to.getKey();
+                FileEntry fromEntry = from.getValue();
+                FileEntry toEntry = to.getValue();
+
+                if (fromEntry.sameAs(toEntry)) {
+                    // A directory entry's size is the number of files in it
+                    _unchanged += isDirectory(path) ? toEntry.size : 1;
+                } else if (isDirectory(path)) {
+                    diffDirectories(fromEntry.fileBlock, toEntry.fileBlock, path, chunking, canCompareBlocks);
+                } else {
+                    System.out.printf("Modified %s (%d -> %d bytes)\n", path, fromEntry.size, toEntry.size);
+                    _modified++;
+
+                    if (_compareBlocks && canCompareBlocks) {
+                        printChangedRanges(fromEntry, toEntry, chunking);
+                    }
+                }
+
+                from = next(fromIterator);
+                to = next(toIterator);
+            }
+        }
+    }
+
+    private void diffDirectories(BlockHash fromPointer, BlockHash toPointer, String directoryPath,
+                                 Chunking chunking, boolean canCompareBlocks) throws IOException {
+        diffEntries(readDirectory(fromPointer), readDirectory(toPointer), directoryPath, chunking, canCompareBlocks);
+    }
+
+    private static boolean isDirectory(String path) {
+        return path.endsWith(DirectoryBlock.DIRECTORY_SUFFIX);
+    }
+
+    /**
+     * Reports a file that was added or removed, or every file under a
+     * directory that was.
+     */
+    private void reportAll(boolean added, String path, FileEntry entry) throws IOException {
+        if (!isDirectory(path)) {
+            if (added) {
+                System.out.printf("Added %s\n", path);
+                _added++;
+            } else {
+                System.out.printf("Removed %s\n", path);
+                _removed++;
+            }
+
+            return;
+        }
+
+        for (Map.Entry<String, FileEntry> child: readDirectory(entry.fileBlock).entrySet()) {
+            reportAll(added, path + child.getKey(), child.getValue());
+        }
+    }
+
+    /**
+     * Reads the entries of a directory block, and the blocks it continues in.
+     */
+    private TreeMap<String, FileEntry> readDirectory(BlockHash pointer) throws IOException {
+        TreeMap<String, FileEntry> entries = new TreeMap<String, FileEntry>();
+        BlockHash nextBlock = pointer;
+        while (!nextBlock.isEmpty()) {
+            DirectoryBlock directory = new DirectoryBlock(_store.getFormat());
+            _store.unserializeBlock(directory, nextBlock);
+
+            for (int i = 0; i < directory.size(); i++) {
+                entries.put(directory.getEntryPath(i), new FileEntry(directory.getEntrySize(i), directory.getEntryFilePointer(i)));
+            }
+
+            nextBlock = directory.getNextPointer();
+        }
+
+        return entries;
+    }
+
+    private static Map.Entry<String, FileEntry> next(Iterator<Map.Entry<String, FileEntry>> iterator) {
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    private CommitBlock readCommit(BlockHash pointer) throws IOException {
+        CommitBlock commit = new CommitBlock(_store.getFormat());
+        _store.unserializeBlock(commit, pointer);
+        return commit;
+    }
+
+    private TreeMap<String, FileEntry> readFiles(CommitBlock commit) throws IOException {
+        TreeMap<String, FileEntry> files = new TreeMap<String, FileEntry>();
+        new ManifestReader(_store, commit).forEachFile((path, size, fileBlock) -> {
+            files.put(path, new FileEntry(size, fileBlock));
+        });
+
+        return files;
+    }
+
+    /**
+     * Prints the byte ranges of a file which are covered by different data
+     * blocks in the two versions. Consecutive blocks are merged into one
+     * range.
+     */
+    private void printChangedRanges(FileEntry from, FileEntry to, Chunking chunking) throws IOException {
+        Commit reader = new Commit(_store, chunking);
+        ArrayList<BlockHash> fromBlocks = reader.readDataBlockPointers(from.fileBlock);
+        ArrayList<BlockHash> toBlocks = reader.readDataBlockPointers(to.fileBlock);
+
+        long blockSize = BasicBlock.BLOCK_SIZE_BYTES;
+        long shorter = Math.min(from.size, to.size);
+        long longer = Math.max(from.size, to.size);
+        long blocks = (longer + blockSize - 1) / blockSize;
+        long rangeStart = -1;
+
+        for (long i = 0; i <= blocks; i++) {
+            boolean changed = false;
+            if (i < blocks) {
+                // Data blocks are padded with zeroes, so the block where the
+                // shorter file ends can match even though its size changed
+                long start = i * blockSize;
+                changed = (shorter != longer && start + blockSize > shorter)
+                    || !fromBlocks.get((int) i).equals(toBlocks.get((int) i));
+            }
+
+            if (changed && rangeStart < 0) {
+                rangeStart = i * blockSize;
+            } else if (!changed && rangeStart >= 0) {
+                System.out.printf("    bytes %d-%d\n", rangeStart, Math.min(i * blockSize, longer) - 1);
+                rangeStart = -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.kidneybone.snapshot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.kidneybone.snapshot.blocks.BlockHash;
+import com.kidneybone.snapshot.blocks.DataBlock;
+import com.kidneybone.snapshot.blocks.FileBlock;
+import com.kidneybone.snapshot.codecs.Codecs;
+
+/**
+ * Stores a directory tree using several threads. The work is split into
+ * three stages:
+ *
+ * - A reader thread walks the tree and cuts each file into data blocks.
+ * - A pool of workers serializes, hashes and compresses each of those blocks.
+ * - The calling thread writes the compressed blocks to the store, and builds
+ *   the file blocks and commit data blocks that refer to them.
+ *
+ * The reader hands the writer a queue of pending blocks, in the order they
+ * appear in the tree, so the writer sees exactly what storeFileTree in
+ * Commit would have seen. The queue is bounded, so the reader stops reading
+ * whenever the workers or the writer fall behind.
+ */
+class CommitPipeline {
+    // Enough blocks to keep every worker busy while the writer catches up,
+    // without holding very much of the tree in memory
+    private static final int QUEUED_BLOCKS_PER_THREAD = 4;
+
+    private final BlockStore _store;
+    private final int _threads;
+    private final Chunking _chunking;
+    private final boolean _elideZeroBlocks;
+
+    // The hashes of blocks which a worker has compressed, but which the
+    // writer hasn't stored yet. Workers that come across one of these can
+    // skip compressing it again, since the writer will store it anyway.
+    private final ConcurrentHashMap<BlockHash, Boolean> _inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * An entry in the queue between the reader and the writer. It is either
+     * a block of data, the end of a file, an unchanged file taken from the
+     * parent commit, or the end of the tree.
+     */
+    private static class Item {
+        public final Future<PreparedBlock> block;
+        public final Path source;
+        public final String path;
+        public final long size;
+        public final BlockHash fileBlock;
+        public final Exception error;
+
+        private Item(Future<PreparedBlock> block, Path source, String path, long size, BlockHash fileBlock, Exception error) {
+            this.block = block;
+            this.source = source;
+            this.path = path;
+            this.size = size;
+            this.fileBlock = fileBlock;
+            this.error = error;
+        }
+
+        public static Item ofBlock(Future<PreparedBlock> block) {
+            return new Item(block, null, null, 0, null, null);
+        }
+
+        public static Item ofFileStart(Path source) {
+            return new Item(null, source, null, 0, null, null);
+        }
+
+        public static Item ofFileEnd(String path, long size) {
+            return new Item(null, null, path, size, null, null);
+        }
+
+        public static Item ofUnchangedFile(Path source, String path, Commit.FileInfo file) {
+            return new Item(null, source, path, file.size, file.fileBlock, null);
+        }
+
+        public static Item ofTreeEnd(Exception error) {
+            return new Item(null, null, null, 0, null, error);
+        }
+
+        public boolean isFileStart() {
+            return source != null && path == null;
+        }
+
+        public boolean isTreeEnd() {
+            return block == null && source == null && path == null;
+        }
+    }
+
+    public CommitPipeline(BlockStore store, int threads, Chunking chunking) {
+        _store = store;
+        _threads = threads;
+        _chunking = chunking;
+        _elideZeroBlocks = store.usesZeroBlocks();
+    }
+
+    /**
+     * Stores every file in the directory, adding them to the manifest, and
+     * returns the hash of the last block in it. The stat cache, if given, is
+     * only used by the reader.
+     */
+    public BlockHash storeFileTree(String baseDirectory, StatCache statCache, ManifestWriter manifest) throws IOException {
+        BlockingQueue<Item> queue = new ArrayBlockingQueue<Item>(_threads * QUEUED_BLOCKS_PER_THREAD);
+        ExecutorService workers = Executors.newFixedThreadPool(_threads);
+        Thread reader = new Thread(() -> readFileTree(baseDirectory, statCache, queue, workers), "snapshot-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        try {
+            return writeFileTree(queue, manifest);
+        } catch (InterruptedException err) {
+            throw new IOException("Interrupted while storing " + baseDirectory);
+        } finally {
+            reader.interrupt();
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * The reader stage. Any error is passed along to the writer, instead of
+     * being thrown, so that the writer doesn't wait forever for more items.
+     */
+    private void readFileTree(String baseDirectory, StatCache statCache, BlockingQueue<Item> queue, ExecutorService workers) {
+        Exception error = null;
+
+        try {
+            Commit.walkFileTree(baseDirectory, (path, relativePath) -> {
+                try {
+                    if (statCache != null) {
+                        StatCache.Entry attributes = StatCache.Entry.read(path);
+                        Commit.FileInfo unchanged = statCache.findUnchanged(relativePath, attributes);
+                        statCache.record(relativePath, attributes);
+
+                        if (unchanged != null) {
+                            queue.put(Item.ofUnchangedFile(path, relativePath, unchanged));
+                            return;
+                        }
+                    }
+
+                    readFile(path, relativePath, queue, workers);
+                } catch (InterruptedException err) {
+                    throw new IOException("Interrupted while reading " + path);
+                }
+            });
+        } catch (Exception err) {
+            error = err;
+        }
+
+        try {
+            queue.put(Item.ofTreeEnd(error));
+        } catch (InterruptedException err) {
+            // The writer has already given up, so there's nobody left to tell
+        }
+    }
+
+    private void readFile(Path filePath, String relativePath, BlockingQueue<Item> queue, ExecutorService workers)
+        throws IOException, InterruptedException {
+        try (FileChannel fileData = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            queue.put(Item.ofFileStart(filePath));
+
+            Commit.CountingChannel countedData = new Commit.CountingChannel(fileData);
+            Chunking.ChunkReader chunks = _chunking.newReader(countedData);
+
+            ByteBuffer chunk = chunks.nextChunk();
+            while (chunk != null) {
+                if (_elideZeroBlocks && _chunking.isZeroBlock(chunk)) {
+                    // There's nothing to store, so the writer only needs the
+                    // hash, just like for a block that's already in flight
+                    PreparedBlock zero = new PreparedBlock(BlockHash.ZERO_BLOCK, null, Codecs.NONE);
+                    queue.put(Item.ofBlock(CompletableFuture.completedFuture(zero)));
+                    chunk = chunks.nextChunk();
+                    continue;
+                }
+
+                // The reader reuses its buffer, so each chunk is copied into
+                // its own block before being handed to a worker
+                DataBlock data = _chunking.newBlock(chunk);
+                queue.put(Item.ofBlock(workers.submit(() -> prepareDataBlock(data))));
+                chunk = chunks.nextChunk();
+            }
+
+            queue.put(Item.ofFileEnd(relativePath, countedData.getBytesRead()));
+        }
+    }
+
+    /**
+     * The worker stage, which runs on the pool.
+     */
+    private PreparedBlock prepareDataBlock(DataBlock data) throws IOException {
+        PreparedBlock prepared = _store.prepareBlock(data);
+
+        // If another worker is already working on an identical block, then
+        // the only thing the writer needs from this one is its hash
+        if (_inFlight.putIfAbsent(prepared.hash, Boolean.TRUE) != null) {
+            return new PreparedBlock(prepared.hash, null, prepared.codec);
+        }
+
+        return prepared;
+    }
+
+    /**
+     * The writer stage, which runs on the calling thread.
+     */
+    private BlockHash writeFileTree(BlockingQueue<Item> queue, ManifestWriter manifest) throws IOException, InterruptedException {
+        FileBlock currentFileBlock = new FileBlock(_store.getFormat());
+
+        while (true) {
+            Item item = queue.take();
+
+            if (item.isTreeEnd()) {
+                if (item.error instanceof IOException) {
+                    throw (IOException) item.error;
+                } else if (item.error != null) {
+                    throw new IOException("Failed to read file tree: " + item.error.getMessage(), item.error);
+                }
+
+                return manifest.finish();
+            } else if (item.block != null) {
+                BlockHash dataHash = storeDataBlock(item.block);
+
+                if (currentFileBlock.isFull()) {
+                    BlockHash fileHash = _store.serializeBlock(currentFileBlock);
+                    currentFileBlock = new FileBlock(_store.getFormat(), fileHash);
+                }
+
+                currentFileBlock.registerBlock(dataHash);
+            } else if (item.isFileStart()) {
+                // The same messages as a serial commit, in the same order,
+                // since the writer sees files in the order they were read
+                System.out.printf("Storing file %s...\n", item.source);
+            } else if (item.fileBlock != null) {
+                manifest.addFile(item.path, item.size, item.fileBlock);
+                System.out.printf("Skipping unchanged file %s\n", item.source);
+            } else {
+                BlockHash fileHash = _store.serializeBlock(currentFileBlock);
+                manifest.addFile(item.path, item.size, fileHash);
+                System.out.printf("    Done\n");
+
+                currentFileBlock = new FileBlock(_store.getFormat());
+            }
+        }
+    }
+
+    private BlockHash storeDataBlock(Future<PreparedBlock> block) throws IOException, InterruptedException {
+        PreparedBlock prepared;
+        try {
+            prepared = block.get();
+        } catch (ExecutionException err) {
+            Throwable cause = err.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+
+            throw new IOException("Failed to prepare block: " + cause.getMessage(), cause);
+        }
+
+        if (prepared.data == null) {
+            return prepared.hash;
+        }
+
+        _store.storePreparedBlock(prepared);
+        _inFlight.remove(prepared.hash);
+        return prepared.hash;
+    }
+}
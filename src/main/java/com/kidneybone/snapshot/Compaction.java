@@ -0,0 +1,322 @@
+package com.kidneybone.snapshot;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import com.kidneybone.snapshot.blocks.BlockHash;
+import com.kidneybone.snapshot.blocks.CommitBlock;
+import com.kidneybone.snapshot.blocks.CommitDataBlock;
+import com.kidneybone.snapshot.blocks.DirectoryBlock;
+import com.kidneybone.snapshot.blocks.FileBlock;
+import com.kidneybone.snapshot.blocks.ManifestBlock;
+import com.kidneybone.snapshot.blocks.PathIndexBlock;
+
+/**
+ * Drops old commits from a store, and copies every block that the remaining
+ * commits and tags can still reach into another, empty store of the same
+ * version. Blocks which nothing refers to any more, like the files of the
+ * dropped commits or index blocks, are left behind.
+ *
+ * Copying is done in two passes. The first marks every live block by walking
+ * the commits, without reading data blocks, since their addresses are all in
+ * file blocks. Anything already marked is shared with a commit that was
+ * walked before, and so is everything under it. The second pass reads the
+ * index once to find where the live blocks are stored, and copies them as
+ * they are, still compressed, in the order they appear in the old file. The
+ * memory used is proportional to the number of live blocks.
+ *
+ * A commit refers to its parent by address, so dropping a commit changes the
+ * address of every kept commit after it. Those are the only blocks that are
+ * rewritten. Tagged commits are always kept, as is the newest commit.
+ *
+ * When repacking, one commit's blocks are copied first, in the order that
+ * restoring it reads them, so that a restore of it reads the new file almost
+ * from start to end. Everything else follows in its original order.
+ */
+class Compaction {
+    private final BlockStore _source;
+    private final BlockStore _target;
+    private final int _keepNewest;
+    private final long _keepSince;
+    private BlockHash _layoutCommit = BlockHash.EMPTY;
+
+    private final HashSet<BlockHash> _live = new HashSet<BlockHash>();
+    private final HashMap<BlockHash, BlockHash> _renamedCommits = new HashMap<BlockHash, BlockHash>();
+
+    private int _commitsKept = 0;
+    private int _commitsPruned = 0;
+    private long _blocksCopied = 0;
+    private long _bytesCopied = 0;
+
+    /**
+     * Creates a compaction which keeps the newest keepNewest commits, and
+     * any commit made at or after keepSince (in milliseconds since the
+     * epoch). A commit is only dropped if it falls outside both.
+     */
+    public Compaction(BlockStore source, BlockStore target, int keepNewest, long keepSince) {
+        _source = source;
+        _target = target;
+        _keepNewest = keepNewest;
+        _keepSince = keepSince;
+    }
+
+    /**
+     * Lays the given commit out first, in restore order. It has to be one
+     * of the commits that's kept.
+     */
+    public void setLayoutCommit(BlockHash commit) {
+        _layoutCommit = commit;
+    }
+
+    public void run() throws IOException {
+        ArrayList<BlockHash> commitHashes = new ArrayList<BlockHash>();
+        ArrayList<CommitBlock> commits = new ArrayList<CommitBlock>();
+
+        BlockHash nextCommit = _source.getHeader().getLastCommit();
+        while (!nextCommit.isEmpty()) {
+            CommitBlock commit = new CommitBlock(_source.getFormat());
+            _source.unserializeBlock(commit, nextCommit);
+            commitHashes.add(nextCommit);
+            commits.add(commit);
+
+            nextCommit = commit.getPreviousCommit();
+        }
+
+        if (!_layoutCommit.isEmpty() && !commitHashes.contains(_layoutCommit)) {
+            throw new IllegalArgumentException(_layoutCommit + " is not a commit in this snapshot");
+        }
+
+        HashSet<BlockHash> tagged = new HashSet<BlockHash>();
+        _source.forEachTag((name, commit) -> tagged.add(commit));
+
+        // Commits are linked from the newest, but each kept commit needs the
+        // new address of the one kept before it
+        BlockHash previous = BlockHash.EMPTY;
+        for (int i = commits.size() - 1; i >= 0; i--) {
+            CommitBlock commit = commits.get(i);
+            BlockHash commitHash = commitHashes.get(i);
+
+            boolean keep = i == 0 || i < _keepNewest || commit.getTimestamp() >= _keepSince ||
+                tagged.contains(commitHash) || commitHash.equals(_layoutCommit);
+            if (!keep) {
+                System.out.printf("Pruning commit %s\n", commitHash);
+                _commitsPruned++;
+                continue;
+            }
+
+            _commitsKept++;
+            markCommit(commit);
+
+            if (commit.getPreviousCommit().equals(previous)) {
+                _live.add(commitHash);
+                _renamedCommits.put(commitHash, commitHash);
+                previous = commitHash;
+            } else {
+                CommitBlock relinked = new CommitBlock(_target.getFormat(),
+                                                       commit.getTimestamp(),
+                                                       commit.getDataPointer(),
+                                                       previous,
+                                                       commit.getFlags(),
+                                                       commit.getPathIndex());
+                previous = _target.serializeBlock(relinked);
+                _renamedCommits.put(commitHash, previous);
+            }
+        }
+
+        copyLiveBlocks();
+        _target.getHeader().setLastCommit(previous);
+        copyTags();
+    }
+
+    /**
+     * Gets the address each kept commit has in the new store, keyed by its
+     * old address.
+     */
+    public HashMap<BlockHash, BlockHash> getRenamedCommits() {
+        return _renamedCommits;
+    }
+
+    public int getCommitsKept() {
+        return _commitsKept;
+    }
+
+    public int getCommitsPruned() {
+        return _commitsPruned;
+    }
+
+    public long getBlocksCopied() {
+        return _blocksCopied;
+    }
+
+    public long getBytesCopied() {
+        return _bytesCopied;
+    }
+
+    /**
+     * Marks a block as live, returning false if it was already marked or is
+     * one of the addresses which don't refer to a stored block.
+     */
+    private boolean mark(BlockHash hash) {
+        if (hash.isEmpty() || hash.isZeroBlock()) {
+            return false;
+        }
+
+        return _live.add(hash);
+    }
+
+    private void markCommit(CommitBlock commit) throws IOException {
+        if (ManifestReader.isTree(commit)) {
+            markDirectory(commit.getDataPointer());
+        } else if (ManifestReader.isCompact(commit)) {
+            markManifest(commit.getDataPointer());
+        } else {
+            markCommitData(commit.getDataPointer());
+        }
+
+        markPathIndex(commit.getPathIndex());
+    }
+
+    private void markDirectory(BlockHash pointer) throws IOException {
+        BlockHash nextBlock = pointer;
+        while (mark(nextBlock)) {
+            DirectoryBlock directory = new DirectoryBlock(_source.getFormat());
+            _source.unserializeBlock(directory, nextBlock);
+
+            for (int i = 0; i < directory.size(); i++) {
+                if (directory.isDirectoryEntry(i)) {
+                    markDirectory(directory.getEntryFilePointer(i));
+                } else {
+                    markFile(directory.getEntryFilePointer(i));
+                }
+            }
+
+            nextBlock = directory.getNextPointer();
+        }
+    }
+
+    private void markManifest(BlockHash pointer) throws IOException {
+        BlockHash nextBlock = pointer;
+        while (mark(nextBlock)) {
+            ManifestBlock manifest = new ManifestBlock(_source.getFormat());
+            _source.unserializeBlock(manifest, nextBlock);
+
+            for (int i = 0; i < manifest.size(); i++) {
+                markFile(manifest.getEntryFilePointer(i));
+            }
+
+            nextBlock = manifest.getNextPointer();
+        }
+    }
+
+    private void markCommitData(BlockHash pointer) throws IOException {
+        BlockHash nextBlock = pointer;
+        while (mark(nextBlock)) {
+            CommitDataBlock dataBlock = new CommitDataBlock(_source.getFormat());
+            _source.unserializeBlock(dataBlock, nextBlock);
+
+            for (int i = 0; i < dataBlock.size(); i++) {
+                markFile(dataBlock.getEntryFilePointer(i));
+            }
+
+            nextBlock = dataBlock.getNextPointer();
+        }
+    }
+
+    /**
+     * Marks a path index node and the nodes under it. The files in the
+     * leaves are already marked through the manifest.
+     */
+    private void markPathIndex(BlockHash pointer) throws IOException {
+        if (!mark(pointer)) {
+            return;
+        }
+
+        PathIndexBlock node = new PathIndexBlock(_source.getFormat());
+        _source.unserializeBlock(node, pointer);
+        if (node.isLeaf()) {
+            return;
+        }
+
+        for (int i = 0; i < node.size(); i++) {
+            markPathIndex(node.getEntryFilePointer(i));
+        }
+    }
+
+    /**
+     * Marks the chain of file blocks for a file, and the data blocks they
+     * point to, which are never read.
+     */
+    private void markFile(BlockHash pointer) throws IOException {
+        BlockHash nextBlock = pointer;
+        while (mark(nextBlock)) {
+            FileBlock fileBlock = new FileBlock(_source.getFormat());
+            _source.unserializeBlock(fileBlock, nextBlock);
+
+            for (int i = 0; i < fileBlock.size(); i++) {
+                mark(fileBlock.getEntryPointer(i));
+            }
+
+            nextBlock = fileBlock.getPreviousPointer();
+        }
+    }
+
+    /**
+     * Copies the marked blocks into the new store. The blocks of the commit
+     * being laid out go first, and the rest go in the order they're stored
+     * in the old one, so that it's read from start to end.
+     */
+    private void copyLiveBlocks() throws IOException {
+        int liveCount = _live.size();
+        ArrayList<BlockLayout> layouts = _source.findStoredBlocks(_live);
+        if (!_live.isEmpty()) {
+            throw new IOException(_live.size() + " of " + liveCount + " live blocks are missing from the index, " +
+                                  "including " + _live.iterator().next());
+        }
+
+        if (!_layoutCommit.isEmpty()) {
+            HashMap<BlockHash, BlockLayout> remaining = new HashMap<BlockHash, BlockLayout>();
+            for (BlockLayout layout: layouts) {
+                remaining.put(layout.hash, layout);
+            }
+
+            // The commit block itself is missing if it was rewritten
+            new RestoreOrder(_source).walk(_layoutCommit, hash -> {
+                BlockLayout layout = remaining.remove(hash);
+                if (layout != null) {
+                    copyBlock(layout);
+                }
+            });
+
+            layouts = new ArrayList<BlockLayout>(remaining.values());
+        }
+
+        layouts.sort((a, b) -> Long.compare(a.offset, b.offset));
+        for (BlockLayout layout: layouts) {
+            copyBlock(layout);
+        }
+    }
+
+    private void copyBlock(BlockLayout layout) throws IOException {
+        _target.storePreparedBlock(new PreparedBlock(layout.hash, _source.readBlockData(layout), layout.codec));
+        _blocksCopied++;
+        _bytesCopied += layout.size;
+    }
+
+    /**
+     * Adds the tags to the new store in the order they were created, so that
+     * a name which was tagged more than once still resolves the same way.
+     * Tags which don't point to a commit are dropped.
+     */
+    private void copyTags() throws IOException {
+        _source.forEachTag((name, commit) -> {
+            BlockHash renamed = _renamedCommits.get(commit);
+            if (renamed == null) {
+                System.out.printf("Dropping tag %s, which doesn't point to a commit\n", name);
+            } else {
+                _target.addTag(name, renamed);
+            }
+        });
+    }
+}
@@ -0,0 +1,171 @@
+package com.kidneybone.snapshot;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.kidneybone.snapshot.blocks.BlockHash;
+import com.kidneybone.snapshot.blocks.CommitBlock;
+import com.kidneybone.snapshot.blocks.DataBlock;
+import com.kidneybone.snapshot.blocks.FileBlock;
+
+/**
+ * Copies the commits and tags of one store into another store which uses a
+ * different block format.
+ *
+ * Hashes are part of the contents of every block that points to another
+ * block, so converting a block changes its hash, which in turn changes every
+ * block that points to it. The graph is rebuilt from the data blocks up,
+ * remembering the new hash of every old one so that blocks shared between
+ * files or commits are only converted once. Only blocks which can be reached
+ * from a commit end up in the new store.
+ */
+class FormatMigration {
+    private final BlockStore _source;
+    private final BlockStore _target;
+    private final HashMap<BlockHash, BlockHash> _rewritten = new HashMap<BlockHash, BlockHash>();
+    private final HashMap<BlockHash, BlockHash> _renamedCommits = new HashMap<BlockHash, BlockHash>();
+
+    // The path index built for each rewritten manifest, keyed by its new hash
+    private final HashMap<BlockHash, BlockHash> _pathIndexes = new HashMap<BlockHash, BlockHash>();
+
+    public FormatMigration(BlockStore source, BlockStore target) {
+        _source = source;
+        _target = target;
+    }
+
+    public void run() throws IOException {
+        ArrayList<BlockHash> commitHashes = new ArrayList<BlockHash>();
+        ArrayList<CommitBlock> commits = new ArrayList<CommitBlock>();
+
+        BlockHash nextCommit = _source.getHeader().getLastCommit();
+        while (!nextCommit.isEmpty()) {
+            CommitBlock commit = new CommitBlock(_source.getFormat());
+            _source.unserializeBlock(commit, nextCommit);
+            commitHashes.add(nextCommit);
+            commits.add(commit);
+
+            nextCommit = commit.getPreviousCommit();
+        }
+
+        // Every commit points to its parent, so the oldest has to be
+        // rewritten first
+        BlockHash previous = BlockHash.EMPTY;
+        for (int i = commits.size() - 1; i >= 0; i--) {
+            CommitBlock commit = commits.get(i);
+            System.out.printf("Migrating commit %s\n", commitHashes.get(i));
+
+            BlockHash dataPointer = rewriteManifest(commit, Chunking.forCommit(commit));
+            int manifestFlags = CommitBlock.FLAG_COMPACT_MANIFEST | CommitBlock.FLAG_DIRECTORY_TREE;
+            int flags = (commit.getFlags() & ~manifestFlags) | ManifestWriter.getCommitFlags(_target);
+            CommitBlock rewritten = new CommitBlock(_target.getFormat(),
+                                                    commit.getTimestamp(),
+                                                    dataPointer,
+                                                    previous,
+                                                    flags,
+                                                    _pathIndexes.getOrDefault(dataPointer, BlockHash.EMPTY));
+
+            previous = _target.serializeBlock(rewritten);
+            _rewritten.put(commitHashes.get(i), previous);
+            _renamedCommits.put(commitHashes.get(i), previous);
+        }
+
+        _target.getHeader().setLastCommit(previous);
+        rewriteTags();
+    }
+
+    /**
+     * Gets the address each commit has in the new store, keyed by its old
+     * address.
+     */
+    public HashMap<BlockHash, BlockHash> getRenamedCommits() {
+        return _renamedCommits;
+    }
+
+    /**
+     * Rewrites the blocks which list the files in a commit, keeping the files
+     * in the order they were originally added. The new store may also build a
+     * path index for them, or store them as a directory tree instead.
+     */
+    private BlockHash rewriteManifest(CommitBlock commit, Chunking chunking) throws IOException {
+        BlockHash rewritten = _rewritten.get(commit.getDataPointer());
+        if (rewritten != null) {
+            return rewritten;
+        }
+
+        ManifestWriter manifest = new ManifestWriter(_target);
+        new ManifestReader(_source, commit).forEachFileInOrder((path, size, filePointer) -> {
+            manifest.addFile(path, size, rewriteFile(filePointer, chunking));
+        });
+
+        rewritten = manifest.finish();
+        _rewritten.put(commit.getDataPointer(), rewritten);
+        _pathIndexes.put(rewritten, manifest.getPathIndex());
+        return rewritten;
+    }
+
+    private BlockHash rewriteFile(BlockHash filePointer, Chunking chunking) throws IOException {
+        BlockHash rewritten = _rewritten.get(filePointer);
+        if (rewritten != null) {
+            return rewritten;
+        }
+
+        FileBlock currentFileBlock = new FileBlock(_target.getFormat());
+        for (BlockHash dataPointer: new Commit(_source, chunking).readDataBlockPointers(filePointer)) {
+            BlockHash dataHash = rewriteData(dataPointer, chunking);
+
+            if (currentFileBlock.isFull()) {
+                BlockHash fileHash = _target.serializeBlock(currentFileBlock);
+                currentFileBlock = new FileBlock(_target.getFormat(), fileHash);
+            }
+
+            currentFileBlock.registerBlock(dataHash);
+        }
+
+        rewritten = _target.serializeBlock(currentFileBlock);
+        _rewritten.put(filePointer, rewritten);
+        return rewritten;
+    }
+
+    /**
+     * Copies a data block. Its contents don't change, but its hash does,
+     * since the formats compute hashes differently. Blocks of zeroes become
+     * zero blocks if the new store uses them.
+     */
+    private BlockHash rewriteData(BlockHash dataPointer, Chunking chunking) throws IOException {
+        if (dataPointer.isZeroBlock()) {
+            return dataPointer;
+        }
+
+        BlockHash rewritten = _rewritten.get(dataPointer);
+        if (rewritten != null) {
+            return rewritten;
+        }
+
+        DataBlock data = chunking.newBlock();
+        _source.unserializeBlock(data, dataPointer);
+
+        if (_target.usesZeroBlocks() && !chunking.isContentDefined() && data.isZero()) {
+            rewritten = BlockHash.ZERO_BLOCK;
+        } else {
+            rewritten = _target.serializeBlock(data);
+        }
+        _rewritten.put(dataPointer, rewritten);
+        return rewritten;
+    }
+
+    /**
+     * Adds the tags to the new store in the order they were created. Tags
+     * that point to something which wasn't migrated are dropped.
+     */
+    private void rewriteTags() throws IOException {
+        _source.forEachTag((name, commit) -> {
+            BlockHash rewritten = _rewritten.get(commit);
+            if (rewritten == null) {
+                System.out.printf("Dropping tag %s, which doesn't point to a commit\n", name);
+            } else {
+                _target.addTag(name, rewritten);
+            }
+        });
+    }
+}
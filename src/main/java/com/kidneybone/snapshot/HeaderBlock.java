@@ -1,30 +1,123 @@
 package com.kidneybone.snapshot;
 
-import static com.kidneybone.snapshot.blocks.BlockUtils.readHash;
-import static com.kidneybone.snapshot.blocks.BlockUtils.writeHash;
-
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 import com.kidneybone.snapshot.blocks.BasicBlock;
+import com.kidneybone.snapshot.blocks.BlockFormat;
+import com.kidneybone.snapshot.blocks.BlockHash;
 import com.kidneybone.snapshot.blocks.IndexBlock;
 import com.kidneybone.snapshot.blocks.TagBlock;
 
 public class HeaderBlock {
-    public static final int HEADER_SIZE_BYTES = BasicBlock.HASH_SIZE_BYTES + BasicBlock.BLOCK_SIZE_BYTES * 2;
+    /**
+     * The original format, where the index is only a chain of index blocks.
+     */
+    public static final int VERSION_INDEX_CHAIN = 1;
+
+    /**
+     * Adds a B+tree which covers all but the newest part of the index chain.
+     */
+    public static final int VERSION_INDEX_TREE = 2;
+
+    /**
+     * Stores hashes as 32 binary bytes instead of 64 hex digits, everywhere
+     * that blocks point to each other. The layout is otherwise the same as
+     * version 2.
+     */
+    public static final int VERSION_BINARY_HASHES = 3;
+
+    /**
+     * Lists the files of new commits in a tree of directory blocks instead of
+     * a flat manifest. The layout is otherwise the same as version 3; the new
+     * version only keeps older versions of snapshot from reading a directory
+     * block as a manifest.
+     */
+    public static final int VERSION_DIRECTORY_TREES = 4;
+
+    public static final int LATEST_VERSION = VERSION_DIRECTORY_TREES;
+
+    // Version 1 headers start with the address of the last commit, which is
+    // always hex, so the magic can never be mistaken for one
+    private static final byte[] MAGIC = "SNAPSHOT".getBytes(StandardCharsets.US_ASCII);
+
+    private static final int V1_SIZE_BYTES = sizeBytes(VERSION_INDEX_CHAIN);
+    private static final int V2_SIZE_BYTES = sizeBytes(VERSION_INDEX_TREE);
+
+    /**
+     * The most space any version of the header can take up.
+     */
+    public static final int HEADER_SIZE_BYTES = Math.max(V1_SIZE_BYTES, V2_SIZE_BYTES);
 
-    private String _lastCommit = BasicBlock.EMPTY_HASH;
-    private IndexBlock _rootIndex = new IndexBlock();
-    private TagBlock _rootTags = new TagBlock();
+    private int _version;
+    private BlockHash _lastCommit = BlockHash.EMPTY;
+    private IndexBlock _rootIndex;
+    private TagBlock _rootTags;
+
+    private BlockLayout _indexTreeRoot = null;
+    private BlockHash _mergedIndexTip = BlockHash.EMPTY;
+    private int _unmergedIndexBlocks = 0;
+
+    public HeaderBlock() {
+        this(LATEST_VERSION);
+    }
+
+    public HeaderBlock(int version) {
+        if (version < VERSION_INDEX_CHAIN || version > LATEST_VERSION) {
+            throw new IllegalArgumentException("Unsupported snapshot version " + version);
+        }
+
+        _version = version;
+        _rootIndex = new IndexBlock(getFormat());
+        _rootTags = new TagBlock(getFormat());
+    }
+
+    public int getVersion() {
+        return _version;
+    }
+
+    /**
+     * Gets the format of the hashes stored in the snapshot's blocks.
+     */
+    public BlockFormat getFormat() {
+        return formatOf(_version);
+    }
+
+    private static BlockFormat formatOf(int version) {
+        return version >= VERSION_BINARY_HASHES ? BlockFormat.BINARY : BlockFormat.HEX;
+    }
+
+    /**
+     * Gets the number of bytes that this header takes up at the start of the
+     * snapshot.
+     */
+    public int getSizeBytes() {
+        return sizeBytes(_version);
+    }
+
+    private static int sizeBytes(int version) {
+        int hashSize = formatOf(version).getHashSizeBytes();
+        if (version == VERSION_INDEX_CHAIN) {
+            return hashSize + BasicBlock.BLOCK_SIZE_BYTES * 2;
+        }
+
+        return MAGIC.length + 4 + hashSize + 8 + 4 + 4 + hashSize + 4 + BasicBlock.BLOCK_SIZE_BYTES * 2;
+    }
+
+    public boolean hasIndexTree() {
+        return _version >= VERSION_INDEX_TREE;
+    }
 
     public IndexBlock getRootIndex() {
         return _rootIndex;
     }
 
-    public String getLastCommit() {
+    public BlockHash getLastCommit() {
         return _lastCommit;
     }
 
-    public void setLastCommit(String value) {
+    public void setLastCommit(BlockHash value) {
         _lastCommit = value;
     }
 
@@ -32,11 +125,54 @@ public class HeaderBlock {
      * Replaces the current root index with a new, empty index block pointing
      * to the given hash.
      */
-    public IndexBlock linkInNewIndexBlock(String oldIndexHash) {
-        _rootIndex = new IndexBlock(oldIndexHash);
+    public IndexBlock linkInNewIndexBlock(BlockHash oldIndexHash) {
+        _rootIndex = new IndexBlock(getFormat(), oldIndexHash);
+        if (hasIndexTree()) {
+            _unmergedIndexBlocks++;
+        }
+
         return _rootIndex;
     }
 
+    /**
+     * Gets the root node of the index tree, or null if nothing has been
+     * merged into the tree yet.
+     */
+    public BlockLayout getIndexTreeRoot() {
+        return _indexTreeRoot;
+    }
+
+    /**
+     * Gets the hash of the newest index block whose entries have been merged
+     * into the index tree. Neither it nor anything older has to be scanned
+     * when looking up a block.
+     */
+    public BlockHash getMergedIndexTip() {
+        return _mergedIndexTip;
+    }
+
+    /**
+     * Gets the number of flushed index blocks which are newer than the merged
+     * index tip.
+     */
+    public int getUnmergedIndexBlocks() {
+        return _unmergedIndexBlocks;
+    }
+
+    /**
+     * Records that every index block up to and including the given one has
+     * been merged into the tree with the given root.
+     */
+    public void setIndexTree(BlockLayout root, BlockHash mergedTip) {
+        if (!hasIndexTree()) {
+            throw new IllegalStateException("Version " + _version + " snapshots do not have an index tree");
+        }
+
+        _indexTreeRoot = root;
+        _mergedIndexTip = mergedTip;
+        _unmergedIndexBlocks = 0;
+    }
+
     public TagBlock getRootTags() {
         return _rootTags;
     }
@@ -45,20 +181,83 @@ public class HeaderBlock {
      * Replaces the current root tags with a new, empty tag block pointing
      * to the given hash.
      */
-    public TagBlock linkInNewTagBlock(String oldTagHash) {
-        _rootTags = new TagBlock(oldTagHash);
+    public TagBlock linkInNewTagBlock(BlockHash oldTagHash) {
+        _rootTags = new TagBlock(getFormat(), oldTagHash);
         return _rootTags;
     }
 
+    /**
+     * Copies the tags from another header. This is only useful when copying
+     * the contents of one snapshot into another, since the tag blocks that
+     * the root tags link to must exist in both.
+     */
+    public void copyTagsFrom(HeaderBlock other) {
+        _rootTags = other._rootTags;
+    }
+
     public void serialize(ByteBuffer buffer) {
-        writeHash(buffer, _lastCommit);
+        BlockFormat format = getFormat();
+        if (_version == VERSION_INDEX_CHAIN) {
+            format.writeHash(buffer, _lastCommit);
+        } else {
+            buffer.put(MAGIC);
+            buffer.putInt(_version);
+            format.writeHash(buffer, _lastCommit);
+
+            if (_indexTreeRoot == null) {
+                buffer.putLong(0);
+                buffer.putInt(0);
+                buffer.putInt(0);
+            } else {
+                buffer.putLong(_indexTreeRoot.offset);
+                buffer.putInt(_indexTreeRoot.size);
+                buffer.putInt(_indexTreeRoot.codec);
+            }
+
+            format.writeHash(buffer, _mergedIndexTip);
+            buffer.putInt(_unmergedIndexBlocks);
+        }
+
         _rootIndex.serialize(buffer);
         _rootTags.serialize(buffer);
     }
 
     public void unserialize(ByteBuffer buffer) {
-        _lastCommit = readHash(buffer);
+        byte[] magic = new byte[MAGIC.length];
+        buffer.mark();
+        buffer.get(magic);
+
+        if (!Arrays.equals(magic, MAGIC)) {
+            buffer.reset();
+            _version = VERSION_INDEX_CHAIN;
+            _lastCommit = BlockFormat.HEX.readHash(buffer);
+            _indexTreeRoot = null;
+            _mergedIndexTip = BlockHash.EMPTY;
+            _unmergedIndexBlocks = 0;
+        } else {
+            _version = buffer.getInt();
+            if (_version < VERSION_INDEX_TREE || _version > LATEST_VERSION) {
+                throw new IllegalArgumentException("Unsupported snapshot version " + _version);
+            }
+
+            _lastCommit = getFormat().readHash(buffer);
+
+            long treeOffset = buffer.getLong();
+            int treeSize = buffer.getInt();
+            int treeCodec = buffer.getInt();
+            if (treeSize == 0) {
+                _indexTreeRoot = null;
+            } else {
+                _indexTreeRoot = new BlockLayout(BlockHash.EMPTY, treeOffset, treeSize, treeCodec);
+            }
+
+            _mergedIndexTip = getFormat().readHash(buffer);
+            _unmergedIndexBlocks = buffer.getInt();
+        }
+
+        _rootIndex = new IndexBlock(getFormat());
         _rootIndex.unserialize(buffer);
+        _rootTags = new TagBlock(getFormat());
         _rootTags.unserialize(buffer);
     }
 }
@@ -0,0 +1,210 @@
+package com.kidneybone.snapshot;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import com.kidneybone.snapshot.blocks.BlockHash;
+import com.kidneybone.snapshot.blocks.IndexNodeBlock;
+
+/**
+ * The copy-on-write B+tree used by version 2 and later stores to resolve hashes which
+ * have been merged out of the index chain.
+ *
+ * Nodes are referred to by layouts whose hash is the smallest key stored
+ * under that node, which is exactly what the parent needs to store for it.
+ * Nodes are never modified after they're written; merging entries into the
+ * tree writes new copies of every node along the paths to those entries, and
+ * produces a new root. Subtrees that no new entry falls into are shared with
+ * the old tree.
+ */
+class IndexTree {
+    private final BlockStore _store;
+
+    // Interior nodes are few and visited on every lookup, so they're kept
+    // around once loaded. Since nodes are never modified, they can be keyed
+    // by their offset.
+    private final HashMap<Long, IndexNodeBlock> _interiorCache = new HashMap<>();
+
+    public IndexTree(BlockStore store) {
+        _store = store;
+    }
+
+    /**
+     * Finds the layout of the given hash in the tree with the given root, or
+     * returns NOT_FOUND if the tree doesn't contain it.
+     */
+    public BlockLayout find(BlockLayout root, BlockHash hash) throws IOException {
+        if (root == null) {
+            return BlockLayout.NOT_FOUND;
+        }
+
+        IndexNodeBlock node = readNode(root);
+        while (!node.isLeaf()) {
+            int child = node.findFloorEntry(hash);
+            if (child == -1) {
+                return BlockLayout.NOT_FOUND;
+            }
+
+            node = readNode(entryOf(node, child));
+        }
+
+        int entry = node.findEntry(hash);
+        if (entry == -1) {
+            return BlockLayout.NOT_FOUND;
+        }
+
+        return entryOf(node, entry);
+    }
+
+    /**
+     * Adds the given entries, which must be sorted by hash, to the tree with
+     * the given root. Returns the root of the new tree.
+     */
+    public BlockLayout merge(BlockLayout root, List<BlockLayout> entries) throws IOException {
+        if (entries.isEmpty()) {
+            return root;
+        }
+
+        List<BlockLayout> level;
+        if (root == null) {
+            level = writeNodes(entries, true);
+        } else {
+            level = mergeNode(root, entries);
+        }
+
+        // Splitting the old root can leave several nodes at the top, which
+        // need new interior levels above them
+        while (level.size() > 1) {
+            level = writeNodes(level, false);
+        }
+
+        return level.get(0);
+    }
+
+    /**
+     * Merges entries into the subtree under the given node, returning the
+     * nodes that replace it. There is usually one, unless the node had to
+     * be split.
+     */
+    private List<BlockLayout> mergeNode(BlockLayout nodeRef, List<BlockLayout> entries) throws IOException {
+        IndexNodeBlock node = readNode(nodeRef);
+        ArrayList<BlockLayout> merged = new ArrayList<BlockLayout>();
+
+        if (node.isLeaf()) {
+            int existing = 0;
+            int added = 0;
+
+            while (existing < node.size() || added < entries.size()) {
+                if (added == entries.size()) {
+                    merged.add(entryOf(node, existing++));
+                } else if (existing == node.size()) {
+                    merged.add(entries.get(added++));
+                } else {
+                    int order = node.getEntryKey(existing).compareTo(entries.get(added).hash);
+                    if (order < 0) {
+                        merged.add(entryOf(node, existing++));
+                    } else if (order > 0) {
+                        merged.add(entries.get(added++));
+                    } else {
+                        // The block is already in the tree, so there's no
+                        // point in storing a second copy of its entry
+                        merged.add(entryOf(node, existing++));
+                        added++;
+                    }
+                }
+            }
+        } else {
+            // Each child gets the entries between its key and the next
+            // child's key. The first child also gets anything smaller than
+            // its own key, since there's nowhere else for them to go.
+            int start = 0;
+            for (int i = 0; i < node.size(); i++) {
+                int end = entries.size();
+                if (i + 1 < node.size()) {
+                    end = lowerBound(entries, start, node.getEntryKey(i + 1));
+                }
+
+                if (end > start) {
+                    merged.addAll(mergeNode(entryOf(node, i), entries.subList(start, end)));
+                } else {
+                    merged.add(entryOf(node, i));
+                }
+
+                start = end;
+            }
+        }
+
+        return writeNodes(merged, node.isLeaf());
+    }
+
+    /**
+     * Writes the entries into as few nodes as possible, sharing them evenly
+     * between nodes, and returns references to those nodes.
+     */
+    private List<BlockLayout> writeNodes(List<BlockLayout> entries, boolean isLeaf) throws IOException {
+        int capacity = IndexNodeBlock.entriesPerBlock(_store.getFormat());
+        int nodeCount = (entries.size() + capacity - 1) / capacity;
+        ArrayList<BlockLayout> nodes = new ArrayList<BlockLayout>();
+
+        int start = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            int end = (int) ((long) entries.size() * (i + 1) / nodeCount);
+
+            IndexNodeBlock node = new IndexNodeBlock(_store.getFormat(), isLeaf);
+            for (BlockLayout entry: entries.subList(start, end)) {
+                node.registerEntry(entry.hash, entry.offset, entry.size, entry.codec);
+            }
+
+            BlockLayout nodeRef = _store.appendBlock(node, entries.get(start).hash);
+            if (!isLeaf) {
+                _interiorCache.put(nodeRef.offset, node);
+            }
+
+            nodes.add(nodeRef);
+            start = end;
+        }
+
+        return nodes;
+    }
+
+    private IndexNodeBlock readNode(BlockLayout nodeRef) throws IOException {
+        IndexNodeBlock node = _interiorCache.get(nodeRef.offset);
+        if (node == null) {
+            node = new IndexNodeBlock(_store.getFormat());
+            _store.unserializeBlockAtOffset(node, nodeRef.offset, nodeRef.size, nodeRef.codec);
+            if (!node.isLeaf()) {
+                _interiorCache.put(nodeRef.offset, node);
+            }
+        }
+
+        return node;
+    }
+
+    private static BlockLayout entryOf(IndexNodeBlock node, int i) {
+        return new BlockLayout(node.getEntryKey(i),
+                               node.getEntryOffset(i),
+                               node.getEntrySize(i),
+                               node.getEntryCodec(i));
+    }
+
+    /**
+     * Finds the first entry at or after start whose hash isn't less than key.
+     */
+    private static int lowerBound(List<BlockLayout> entries, int start, BlockHash key) {
+        int low = start;
+        int high = entries.size();
+
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (entries.get(middle).hash.compareTo(key) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+}
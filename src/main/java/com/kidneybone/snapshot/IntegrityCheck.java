@@ -0,0 +1,449 @@
+package com.kidneybone.snapshot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.kidneybone.snapshot.blocks.BasicBlock;
+import com.kidneybone.snapshot.blocks.BlockFormat;
+import com.kidneybone.snapshot.blocks.BlockHash;
+import com.kidneybone.snapshot.blocks.BlockUtils;
+import com.kidneybone.snapshot.blocks.CommitBlock;
+import com.kidneybone.snapshot.blocks.PathIndexBlock;
+import com.kidneybone.snapshot.blocks.TagBlock;
+import com.kidneybone.snapshot.codecs.Codecs;
+
+/**
+ * Checks that every block in a store is intact, and that everything the
+ * commits and tags refer to is there, without restoring anything.
+ *
+ * The first pass sweeps the block pool in the order it's stored. The index is
+ * read once and sorted by offset, and the blocks are read in runs of several
+ * megabytes, which are handed to a pool of threads. Each block is inflated
+ * and hashed, and the hash has to match the address it's indexed under. In a
+ * quick check, blocks with a recorded checksum are only compared against
+ * that, so they don't have to be inflated or hashed at all.
+ *
+ * The second pass walks every commit, like a restore would, along with the
+ * path indexes and tags, and reports anything they refer to that isn't in the
+ * index. Blocks in the index that nothing refers to are orphans: they're
+ * harmless, and usually left behind by an interrupted commit, but only a
+ * prune gets rid of them.
+ *
+ * Index tree nodes aren't in the index, so they aren't checked.
+ */
+class IntegrityCheck {
+    // Blocks are read in runs of about this many bytes, and two blocks
+    // further apart than MAX_GAP_BYTES are read separately
+    private static final int BATCH_SIZE_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_GAP_BYTES = 1024 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> INFLATE_BUFFER =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocate(BasicBlock.BLOCK_SIZE_BYTES));
+
+    /**
+     * A run of blocks which are next to each other in the block pool, and
+     * what was found when they were checked.
+     */
+    private static class Batch {
+        public final ArrayList<BlockLayout> blocks = new ArrayList<BlockLayout>();
+        public ByteBuffer data = null;
+
+        public final ArrayList<String> problems = new ArrayList<String>();
+        public final ArrayList<BlockHash> checksummedHashes = new ArrayList<BlockHash>();
+        public final ArrayList<Integer> checksums = new ArrayList<Integer>();
+        public int blocksHashed = 0;
+        public int blocksChecksummed = 0;
+
+        public long getStart() {
+            return blocks.get(0).offset;
+        }
+
+        public long getEnd() {
+            BlockLayout last = blocks.get(blocks.size() - 1);
+            return last.offset + last.size;
+        }
+    }
+
+    private final BlockStore _store;
+    private final int _threads;
+    private final BlockChecksums _checksums;
+    private final boolean _quick;
+
+    private final HashSet<BlockHash> _indexed = new HashSet<BlockHash>();
+    private final HashSet<BlockHash> _reachable = new HashSet<BlockHash>();
+    private final HashSet<BlockHash> _missing = new HashSet<BlockHash>();
+    private final HashSet<BlockHash> _commitHashes = new HashSet<BlockHash>();
+
+    private long _blocksChecked = 0;
+    private long _bytesChecked = 0;
+    private long _blocksHashed = 0;
+    private long _blocksChecksummed = 0;
+    private long _sweepNanos = 0;
+    private int _tags = 0;
+    private long _corruptBlocks = 0;
+    private int _brokenCommits = 0;
+    private int _badTags = 0;
+    private long _orphanedBlocks = 0;
+    private long _orphanedBytes = 0;
+
+    /**
+     * Creates a check which hashes blocks on the given number of threads.
+     * Checksums of the blocks that pass are recorded in the given checksums,
+     * if there are any, and a quick check trusts the ones already there.
+     */
+    public IntegrityCheck(BlockStore store, int threads, BlockChecksums checksums, boolean quick) {
+        if (quick && checksums == null) {
+            throw new IllegalArgumentException("A quick check needs checksums to compare blocks against");
+        }
+
+        _store = store;
+        _threads = threads;
+        _checksums = checksums;
+        _quick = quick;
+    }
+
+    public void run() throws IOException {
+        HashSet<BlockHash> indexBlocks = new HashSet<BlockHash>();
+        ArrayList<BlockLayout> layouts = _store.listStoredBlocks(indexBlocks);
+        layouts.sort((a, b) -> Long.compare(a.offset, b.offset));
+        for (BlockLayout layout: layouts) {
+            _indexed.add(layout.hash);
+        }
+
+        long start = System.nanoTime();
+        sweep(layouts);
+        _sweepNanos = System.nanoTime() - start;
+
+        walkCommits();
+        walkTags();
+
+        for (BlockLayout layout: layouts) {
+            if (!_reachable.contains(layout.hash) && !indexBlocks.contains(layout.hash)) {
+                _orphanedBlocks++;
+                _orphanedBytes += layout.size;
+            }
+        }
+    }
+
+    /**
+     * Checks whether nothing at all was found wrong. Orphans don't count.
+     */
+    public boolean isClean() {
+        return _corruptBlocks == 0 && _missing.isEmpty() && _brokenCommits == 0 && _badTags == 0;
+    }
+
+    public long getBlocksChecked() {
+        return _blocksChecked;
+    }
+
+    public long getBytesChecked() {
+        return _bytesChecked;
+    }
+
+    /**
+     * Gets the number of blocks which were inflated and hashed, and the
+     * number which were only compared against their checksum.
+     */
+    public long getBlocksHashed() {
+        return _blocksHashed;
+    }
+
+    public long getBlocksChecksummed() {
+        return _blocksChecksummed;
+    }
+
+    /**
+     * Gets how long the sweep through the block pool took, which is most of
+     * the check.
+     */
+    public long getSweepNanos() {
+        return _sweepNanos;
+    }
+
+    public int getCommits() {
+        return _commitHashes.size();
+    }
+
+    public int getTags() {
+        return _tags;
+    }
+
+    public long getCorruptBlocks() {
+        return _corruptBlocks;
+    }
+
+    public int getMissingBlocks() {
+        return _missing.size();
+    }
+
+    public int getBrokenCommits() {
+        return _brokenCommits;
+    }
+
+    public int getBadTags() {
+        return _badTags;
+    }
+
+    public long getOrphanedBlocks() {
+        return _orphanedBlocks;
+    }
+
+    public long getOrphanedBytes() {
+        return _orphanedBytes;
+    }
+
+    /**
+     * Reads the blocks in runs and checks them on the thread pool. Only one
+     * run more than there are threads is in memory at once, so that the next
+     * run is read while the threads are busy, and reading then waits for the
+     * oldest run to be checked.
+     */
+    private void sweep(ArrayList<BlockLayout> layouts) throws IOException {
+        ExecutorService threads = Executors.newFixedThreadPool(_threads, task -> {
+            Thread thread = new Thread(task, "snapshot-fsck");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        ArrayDeque<Future<Batch>> inFlight = new ArrayDeque<Future<Batch>>();
+        try {
+            Batch batch = new Batch();
+            for (BlockLayout layout: layouts) {
+                if (!batch.blocks.isEmpty() &&
+                    (layout.offset - batch.getEnd() > MAX_GAP_BYTES ||
+                     layout.offset + layout.size - batch.getStart() > BATCH_SIZE_BYTES)) {
+                    submit(batch, threads, inFlight);
+                    batch = new Batch();
+                }
+
+                batch.blocks.add(layout);
+            }
+
+            if (!batch.blocks.isEmpty()) {
+                submit(batch, threads, inFlight);
+            }
+
+            while (!inFlight.isEmpty()) {
+                finish(inFlight.poll());
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    private void submit(Batch batch, ExecutorService threads, ArrayDeque<Future<Batch>> inFlight) throws IOException {
+        if (inFlight.size() > _threads) {
+            finish(inFlight.poll());
+        }
+
+        // Overlapping blocks would make the run longer than the file
+        long length = Math.max(batch.getEnd() - batch.getStart(), 0);
+        batch.data = _store.readRange(batch.getStart(), (int) length);
+        inFlight.add(threads.submit(() -> checkBatch(batch)));
+    }
+
+    /**
+     * Waits for a batch to be checked and adds up what was found.
+     */
+    private void finish(Future<Batch> future) throws IOException {
+        Batch batch;
+        try {
+            batch = future.get();
+        } catch (InterruptedException err) {
+            throw new IOException("Interrupted while checking blocks");
+        } catch (ExecutionException err) {
+            throw new IOException("Failed to check blocks: " + err.getCause().getMessage(), err.getCause());
+        }
+
+        for (String problem: batch.problems) {
+            System.out.println(problem);
+        }
+
+        for (int i = 0; i < batch.checksummedHashes.size(); i++) {
+            _checksums.record(batch.checksummedHashes.get(i), batch.checksums.get(i));
+        }
+
+        for (BlockLayout layout: batch.blocks) {
+            _bytesChecked += layout.size;
+        }
+
+        _blocksChecked += batch.blocks.size();
+        _blocksHashed += batch.blocksHashed;
+        _blocksChecksummed += batch.blocksChecksummed;
+        _corruptBlocks += batch.problems.size();
+
+        batch.data = null;
+    }
+
+    /**
+     * Checks each block in a batch. This runs on the thread pool, so it only
+     * reads the checksums, and leaves recording new ones to the caller.
+     */
+    private Batch checkBatch(Batch batch) {
+        BlockFormat format = _store.getFormat();
+        long start = batch.getStart();
+
+        for (BlockLayout layout: batch.blocks) {
+            if (layout.offset + layout.size - start > batch.data.limit()) {
+                batch.problems.add(String.format("Block %s at offset %d is past the end of the file",
+                                                 layout.hash, layout.offset));
+                continue;
+            }
+
+            ByteBuffer stored = BlockUtils.slice(batch.data, (int) (layout.offset - start), layout.size);
+            int checksum = _checksums != null ? BlockChecksums.checksum(stored) : 0;
+            boolean hasChecksum = _checksums != null && _checksums.contains(layout.hash);
+
+            if (_quick && hasChecksum && _checksums.get(layout.hash) == checksum) {
+                batch.blocksChecksummed++;
+                continue;
+            }
+
+            batch.blocksHashed++;
+            String problem = verifyBlock(format, layout, stored);
+            if (problem != null) {
+                batch.problems.add(String.format("Block %s at offset %d %s", layout.hash, layout.offset, problem));
+            } else if (_checksums != null && (!hasChecksum || _checksums.get(layout.hash) != checksum)) {
+                batch.checksummedHashes.add(layout.hash);
+                batch.checksums.add(checksum);
+            }
+        }
+
+        return batch;
+    }
+
+    /**
+     * Inflates a block and checks that it hashes to its address, returning
+     * what's wrong with it, or null if nothing is.
+     */
+    private static String verifyBlock(BlockFormat format, BlockLayout layout, ByteBuffer stored) {
+        ByteBuffer block;
+        if (layout.codec == Codecs.NONE) {
+            if (stored.remaining() != BasicBlock.BLOCK_SIZE_BYTES) {
+                return String.format("is stored uncompressed with size %d, should be %d",
+                                     stored.remaining(), BasicBlock.BLOCK_SIZE_BYTES);
+            }
+
+            block = stored.duplicate();
+            block.position(block.limit());
+        } else {
+            block = INFLATE_BUFFER.get();
+            block.clear();
+
+            int size;
+            try {
+                size = Codecs.forId(layout.codec).decompress(stored.duplicate(), block);
+            } catch (IOException | RuntimeException err) {
+                return "could not be decompressed: " + err.getMessage();
+            }
+
+            if (size != BasicBlock.BLOCK_SIZE_BYTES) {
+                return String.format("has size %d after decompression, should be %d",
+                                     size, BasicBlock.BLOCK_SIZE_BYTES);
+            }
+        }
+
+        BlockHash hash = format.hashOfLastBlock(block);
+        return hash.equals(layout.hash) ? null : "has contents which hash to " + hash;
+    }
+
+    /**
+     * Walks every commit, newest first, marking what it refers to as
+     * reachable. A commit that can't be read ends the walk, since the older
+     * commits can only be found through it.
+     */
+    private void walkCommits() {
+        RestoreOrder order = new RestoreOrder(_store);
+        BlockHash nextCommit = _store.getHeader().getLastCommit();
+
+        while (!nextCommit.isEmpty()) {
+            BlockHash commitHash = nextCommit;
+            CommitBlock commit = new CommitBlock(_store.getFormat());
+            try {
+                checkReference(commitHash, "the commit history");
+                _store.unserializeBlock(commit, commitHash);
+            } catch (IOException | RuntimeException err) {
+                System.out.printf("Could not read commit %s, so older commits weren't checked: %s\n",
+                                  commitHash, err.getMessage());
+                _brokenCommits++;
+                return;
+            }
+
+            _commitHashes.add(commitHash);
+            try {
+                order.walk(commitHash, hash -> checkReference(hash, "commit " + commitHash));
+                walkPathIndex(commit.getPathIndex(), commitHash);
+            } catch (IOException | RuntimeException err) {
+                System.out.printf("Could not walk all of commit %s: %s\n", commitHash, err.getMessage());
+                _brokenCommits++;
+            }
+
+            nextCommit = commit.getPreviousCommit();
+        }
+    }
+
+    /**
+     * Marks a path index node and the nodes under it as reachable. The files
+     * in the leaves are already covered by the commit's manifest.
+     */
+    private void walkPathIndex(BlockHash pointer, BlockHash commitHash) throws IOException {
+        if (pointer.isEmpty() || _reachable.contains(pointer)) {
+            return;
+        }
+
+        checkReference(pointer, "the path index of commit " + commitHash);
+        PathIndexBlock node = new PathIndexBlock(_store.getFormat());
+        _store.unserializeBlock(node, pointer);
+        if (node.isLeaf()) {
+            return;
+        }
+
+        for (int i = 0; i < node.size(); i++) {
+            walkPathIndex(node.getEntryFilePointer(i), commitHash);
+        }
+    }
+
+    /**
+     * Marks the flushed tag blocks as reachable, and checks that every tag
+     * names a commit in the history.
+     */
+    private void walkTags() {
+        try {
+            BlockHash nextTags = _store.getHeader().getRootTags().getNextPointer();
+            while (!nextTags.isEmpty() && !_reachable.contains(nextTags)) {
+                checkReference(nextTags, "the tags");
+                TagBlock tags = new TagBlock(_store.getFormat());
+                _store.unserializeBlock(tags, nextTags);
+                nextTags = tags.getNextPointer();
+            }
+
+            _store.forEachTag((name, commit) -> {
+                _tags++;
+                if (!_commitHashes.contains(commit)) {
+                    System.out.printf("Tag %s points to %s, which isn't a commit in the history\n", name, commit);
+                    _badTags++;
+                }
+            });
+        } catch (IOException | RuntimeException err) {
+            System.out.printf("Could not read the tags: %s\n", err.getMessage());
+            _badTags++;
+        }
+    }
+
+    /**
+     * Marks a block as reachable, and reports it if it isn't in the index.
+     */
+    private void checkReference(BlockHash hash, String referrer) {
+        _reachable.add(hash);
+        if (!_indexed.contains(hash) && _missing.add(hash)) {
+            System.out.printf("Block %s, referred to by %s, is missing\n", hash, referrer);
+        }
+    }
+}
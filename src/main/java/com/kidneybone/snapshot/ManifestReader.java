@@ -0,0 +1,219 @@
+package com.kidneybone.snapshot;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import com.kidneybone.snapshot.blocks.BlockHash;
+import com.kidneybone.snapshot.blocks.CommitBlock;
+import com.kidneybone.snapshot.blocks.CommitDataBlock;
+import com.kidneybone.snapshot.blocks.DirectoryBlock;
+import com.kidneybone.snapshot.blocks.ManifestBlock;
+import com.kidneybone.snapshot.blocks.PathIndexBlock;
+
+/**
+ * Walks the blocks which list the files in a commit, whether those are a
+ * chain of commit data blocks or compact manifest blocks, or a tree of
+ * directory blocks.
+ */
+class ManifestReader {
+    /**
+     * Called for each file in the manifest, in the order they're stored.
+     */
+    interface FileVisitor {
+        void visit(String path, long size, BlockHash fileBlock) throws IOException;
+    }
+
+    private final BlockStore _store;
+    private final CommitBlock _commit;
+
+    public ManifestReader(BlockStore store, CommitBlock commit) {
+        _store = store;
+        _commit = commit;
+    }
+
+    /**
+     * Checks whether the commit's files are listed in manifest blocks.
+     */
+    public static boolean isCompact(CommitBlock commit) {
+        return (commit.getFlags() & CommitBlock.FLAG_COMPACT_MANIFEST) != 0;
+    }
+
+    /**
+     * Checks whether the commit's files are listed in directory blocks.
+     */
+    public static boolean isTree(CommitBlock commit) {
+        return (commit.getFlags() & CommitBlock.FLAG_DIRECTORY_TREE) != 0;
+    }
+
+    public void forEachFile(FileVisitor visitor) throws IOException {
+        if (isTree(_commit)) {
+            walkDirectory(_commit.getDataPointer(), "", null, visitor);
+            return;
+        }
+
+        forEachEntry((index, path, size, fileBlock) -> visitor.visit(path, size, fileBlock));
+    }
+
+    /**
+     * Visits the files whose paths match the filter, or every file if it's
+     * null. Commits with a path index only read the parts of the index that
+     * can hold a match, and visit the files in path order.
+     */
+    public void forEachFile(PathFilter filter, FileVisitor visitor) throws IOException {
+        if (filter == null) {
+            forEachFile(visitor);
+        } else if (isTree(_commit)) {
+            walkDirectory(_commit.getDataPointer(), "", filter, visitor);
+        } else if (_commit.getPathIndex().isEmpty()) {
+            forEachFile((path, size, fileBlock) -> {
+                if (filter.matches(path)) {
+                    visitor.visit(path, size, fileBlock);
+                }
+            });
+        } else {
+            searchPathIndex(_commit.getPathIndex(), filter, visitor);
+        }
+    }
+
+    /**
+     * Visits the files under the directory with the given path, which is
+     * either empty or ends with a /. If there's a filter, directories which
+     * can't hold a match aren't read, and only the files which match it are
+     * visited.
+     */
+    private void walkDirectory(BlockHash pointer, String directoryPath, PathFilter filter, FileVisitor visitor) throws IOException {
+        BlockHash nextBlock = pointer;
+        while (!nextBlock.isEmpty()) {
+            DirectoryBlock directory = new DirectoryBlock(_store.getFormat());
+            _store.unserializeBlock(directory, nextBlock);
+
+            for (int i = 0; i < directory.size(); i++) {
+                String path = directoryPath + directory.getEntryPath(i);
+
+                if (directory.isDirectoryEntry(i)) {
+                    if (filter == null || filter.couldMatchUnder(path)) {
+                        walkDirectory(directory.getEntryFilePointer(i), path, filter, visitor);
+                    }
+                } else if (filter == null || filter.matches(path)) {
+                    visitor.visit(path, directory.getEntrySize(i), directory.getEntryFilePointer(i));
+                }
+            }
+
+            nextBlock = directory.getNextPointer();
+        }
+    }
+
+    /**
+     * Visits the matching files under a node of the path index. The index is
+     * sorted, so every path starting with the filter's prefix is in one range
+     * of it, and only the children which overlap that range are read.
+     */
+    private void searchPathIndex(BlockHash pointer, PathFilter filter, FileVisitor visitor) throws IOException {
+        PathIndexBlock node = new PathIndexBlock(_store.getFormat());
+        _store.unserializeBlock(node, pointer);
+        String prefix = filter.getLiteralPrefix();
+
+        for (int i = 0; i < node.size(); i++) {
+            String path = node.getEntryPath(i);
+
+            // Past the range, so nothing after this can match either
+            if (path.compareTo(prefix) > 0 && !path.startsWith(prefix)) {
+                return;
+            }
+
+            if (node.isLeaf()) {
+                if (filter.matches(path)) {
+                    visitor.visit(path, node.getEntrySize(i), node.getEntryFilePointer(i));
+                }
+
+                continue;
+            }
+
+            // A child holds the paths from its first one up to the first one
+            // of the next child, so it can be skipped if that's still before
+            // the range starts
+            boolean endsBeforeRange = i + 1 < node.size() && node.getEntryPath(i + 1).compareTo(prefix) <= 0;
+            if (!endsBeforeRange) {
+                searchPathIndex(node.getEntryFilePointer(i), filter, visitor);
+            }
+        }
+    }
+
+    /**
+     * Visits the files in the order they were added to the manifest. The
+     * chain starts from the last block written, so the whole chain is read
+     * before any file is visited.
+     */
+    public void forEachFileInOrder(FileVisitor visitor) throws IOException {
+        // Trees aren't stored in the order files were added, but they are
+        // always walked in the same order
+        if (isTree(_commit)) {
+            forEachFile(visitor);
+            return;
+        }
+
+        ArrayList<ArrayList<Entry>> blocks = new ArrayList<ArrayList<Entry>>();
+        forEachEntry((index, path, size, fileBlock) -> {
+            if (index == 0) {
+                blocks.add(new ArrayList<Entry>());
+            }
+
+            blocks.get(blocks.size() - 1).add(new Entry(path, size, fileBlock));
+        });
+
+        for (int i = blocks.size() - 1; i >= 0; i--) {
+            for (Entry entry: blocks.get(i)) {
+                visitor.visit(entry.path, entry.size, entry.fileBlock);
+            }
+        }
+    }
+
+    private static class Entry {
+        public final String path;
+        public final long size;
+        public final BlockHash fileBlock;
+
+        public Entry(String path, long size, BlockHash fileBlock) {
+            this.path = path;
+            this.size = size;
+            this.fileBlock = fileBlock;
+        }
+    }
+
+    /**
+     * Called for each file along with its position in its block.
+     */
+    private interface EntryVisitor {
+        void visit(int index, String path, long size, BlockHash fileBlock) throws IOException;
+    }
+
+    private void forEachEntry(EntryVisitor visitor) throws IOException {
+        BlockHash nextBlock = _commit.getDataPointer();
+
+        if (isCompact(_commit)) {
+            while (!nextBlock.isEmpty()) {
+                ManifestBlock manifest = new ManifestBlock(_store.getFormat());
+                _store.unserializeBlock(manifest, nextBlock);
+
+                for (int i = 0; i < manifest.size(); i++) {
+                    visitor.visit(i, manifest.getEntryPath(i), manifest.getEntrySize(i), manifest.getEntryFilePointer(i));
+                }
+
+                nextBlock = manifest.getNextPointer();
+            }
+
+            return;
+        }
+
+        while (!nextBlock.isEmpty()) {
+            CommitDataBlock dataBlock = new CommitDataBlock(_store.getFormat());
+            _store.unserializeBlock(dataBlock, nextBlock);
+
+            for (int i = 0; i < dataBlock.size(); i++) {
+                visitor.visit(i, dataBlock.getEntryPath(i), dataBlock.getEntrySize(i), dataBlock.getEntryFilePointer(i));
+            }
+
+            nextBlock = dataBlock.getNextPointer();
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package com.kidneybone.snapshot;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import com.kidneybone.snapshot.blocks.BlockHash;
+import com.kidneybone.snapshot.blocks.CommitBlock;
+import com.kidneybone.snapshot.blocks.CommitDataBlock;
+import com.kidneybone.snapshot.blocks.DirectoryBlock;
+import com.kidneybone.snapshot.blocks.ManifestBlock;
+import com.kidneybone.snapshot.blocks.PathIndexBlock;
+
+/**
+ * Builds the chain of blocks which lists the files in a commit, storing each
+ * block as soon as it fills up. Stores that support them get compact manifest
+ * blocks, and older stores get commit data blocks.
+ *
+ * Stores with compact manifests also get a path index for every commit. The
+ * files are kept in memory until the manifest is finished, and then sorted
+ * and written out as a tree of path index blocks.
+ *
+ * Stores with directory trees get neither. Their files are kept in memory
+ * the same way, and then written out as one directory block per directory,
+ * starting from the deepest ones.
+ */
+class ManifestWriter {
+    private final BlockStore _store;
+    private final boolean _isCompact;
+    private final boolean _isTree;
+    private CommitDataBlock _currentBlock = null;
+    private ManifestBlock _currentManifest = null;
+    private ArrayList<Entry> _entries = null;
+    private BlockHash _pathIndex = BlockHash.EMPTY;
+
+    private static class Entry {
+        public final String path;
+        public final long size;
+        public final BlockHash pointer;
+
+        public Entry(String path, long size, BlockHash pointer) {
+            this.path = path;
+            this.size = size;
+            this.pointer = pointer;
+        }
+    }
+
+    public ManifestWriter(BlockStore store) {
+        _store = store;
+        _isTree = store.usesDirectoryTrees();
+        _isCompact = !_isTree && store.usesCompactManifests();
+
+        if (_isTree) {
+            _entries = new ArrayList<Entry>();
+        } else if (_isCompact) {
+            _currentManifest = new ManifestBlock(store.getFormat());
+            _entries = new ArrayList<Entry>();
+        } else {
+            _currentBlock = new CommitDataBlock(store.getFormat());
+        }
+    }
+
+    /**
+     * Gets the flags to store in a commit whose manifest was written to the
+     * given store.
+     */
+    public static int getCommitFlags(BlockStore store) {
+        if (store.usesDirectoryTrees()) {
+            return CommitBlock.FLAG_DIRECTORY_TREE;
+        }
+
+        return store.usesCompactManifests() ? CommitBlock.FLAG_COMPACT_MANIFEST : 0;
+    }
+
+    public void addFile(String path, long size, BlockHash fileBlock) throws IOException {
+        if (_isTree) {
+            _entries.add(new Entry(path, size, fileBlock));
+            return;
+        }
+
+        if (_isCompact) {
+            if (!_currentManifest.hasRoomFor(path, size)) {
+                BlockHash manifestHash = _store.serializeBlock(_currentManifest);
+                _currentManifest = new ManifestBlock(_store.getFormat(), manifestHash);
+            }
+
+            _currentManifest.registerFile(path, size, fileBlock);
+            _entries.add(new Entry(path, size, fileBlock));
+            return;
+        }
+
+        if (_currentBlock.isFull()) {
+            BlockHash dataHash = _store.serializeBlock(_currentBlock);
+            _currentBlock = new CommitDataBlock(_store.getFormat(), dataHash);
+        }
+
+        _currentBlock.registerFile(path, size, fileBlock);
+    }
+
+    /**
+     * Stores the last block in the chain and returns its hash, which is what
+     * the commit block should point to. The path index is stored too, if
+     * there is one. For directory trees, the hash is that of the root
+     * directory.
+     */
+    public BlockHash finish() throws IOException {
+        if (_isTree) {
+            ArrayList<Entry> entries = _entries;
+            _entries = null;
+            entries.sort((a, b) -> a.path.compareTo(b.path));
+            return writeDirectory(entries, 0, entries.size(), 0).pointer;
+        }
+
+        if (_isCompact) {
+            BlockHash manifestHash = _store.serializeBlock(_currentManifest);
+            _pathIndex = writePathIndex();
+            return manifestHash;
+        }
+
+        return _store.serializeBlock(_currentBlock);
+    }
+
+    /**
+     * Gets the root of the path index stored by finish, or the empty hash if
+     * no index was stored.
+     */
+    public BlockHash getPathIndex() {
+        return _pathIndex;
+    }
+
+    /**
+     * Sorts the files by path and stores them in leaf blocks, then stores the
+     * first path of each leaf in the level above, and so on until a level
+     * fits in a single block, which is the root.
+     */
+    private BlockHash writePathIndex() throws IOException {
+        if (_entries.isEmpty()) {
+            return BlockHash.EMPTY;
+        }
+
+        ArrayList<Entry> entries = _entries;
+        _entries = null;
+        entries.sort((a, b) -> a.path.compareTo(b.path));
+
+        int level = 0;
+        while (true) {
+            ArrayList<Entry> parents = new ArrayList<Entry>();
+            PathIndexBlock block = new PathIndexBlock(_store.getFormat(), level);
+            String firstPath = null;
+            long files = 0;
+
+            for (Entry entry: entries) {
+                if (!block.hasRoomFor(entry.path, entry.size)) {
+                    parents.add(new Entry(firstPath, files, _store.serializeBlock(block)));
+                    block = new PathIndexBlock(_store.getFormat(), level);
+                    firstPath = null;
+                    files = 0;
+                }
+
+                block.registerFile(entry.path, entry.size, entry.pointer);
+                if (firstPath == null) {
+                    firstPath = entry.path;
+                }
+
+                // Entries above the leaves hold the number of files under them
+                files += level == 0 ? 1 : entry.size;
+            }
+
+            BlockHash blockHash = _store.serializeBlock(block);
+            if (parents.isEmpty()) {
+                return blockHash;
+            }
+
+            parents.add(new Entry(firstPath, files, blockHash));
+            entries = parents;
+            level++;
+        }
+    }
+
+    /**
+     * Stores the directory holding the given range of sorted files, along
+     * with every directory under it, and returns its entry in its parent.
+     * The files all start with the same prefix, which is the path of the
+     * directory.
+     *
+     * Sorting by path puts the files under each subdirectory next to each
+     * other, and puts the entries of each directory in order by name, since
+     * / is the only character that names can't contain.
+     */
+    private Entry writeDirectory(ArrayList<Entry> files, int start, int end, int prefixLength) throws IOException {
+        ArrayList<Entry> entries = new ArrayList<Entry>();
+        long fileCount = 0;
+
+        int i = start;
+        while (i < end) {
+            String path = files.get(i).path;
+            int separator = path.indexOf('/', prefixLength);
+            if (separator < 0) {
+                Entry file = files.get(i);
+                entries.add(new Entry(path.substring(prefixLength), file.size, file.pointer));
+                fileCount++;
+                i++;
+                continue;
+            }
+
+            String directoryPath = path.substring(0, separator + 1);
+            int directoryEnd = i + 1;
+            while (directoryEnd < end && files.get(directoryEnd).path.startsWith(directoryPath)) {
+                directoryEnd++;
+            }
+
+            Entry directory = writeDirectory(files, i, directoryEnd, directoryPath.length());
+            entries.add(new Entry(directoryPath.substring(prefixLength), directory.size, directory.pointer));
+            fileCount += directory.size;
+            i = directoryEnd;
+        }
+
+        return new Entry(null, fileCount, writeDirectoryBlocks(entries));
+    }
+
+    /**
+     * Stores the entries of a directory, in as many blocks as they need. The
+     * blocks are chained from the first entries to the last, so they're
+     * stored in reverse, and the hash of the first block is returned.
+     */
+    private BlockHash writeDirectoryBlocks(ArrayList<Entry> entries) throws IOException {
+        ArrayList<Integer> blockStarts = new ArrayList<Integer>();
+        blockStarts.add(0);
+
+        DirectoryBlock block = new DirectoryBlock(_store.getFormat());
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            if (!block.hasRoomFor(entry.path, entry.size)) {
+                blockStarts.add(i);
+                block = new DirectoryBlock(_store.getFormat());
+            }
+
+            block.registerFile(entry.path, entry.size, entry.pointer);
+        }
+
+        BlockHash nextBlock = BlockHash.EMPTY;
+        int blockEnd = entries.size();
+        for (int i = blockStarts.size() - 1; i >= 0; i--) {
+            block = new DirectoryBlock(_store.getFormat(), nextBlock);
+            for (int j = blockStarts.get(i); j < blockEnd; j++) {
+                Entry entry = entries.get(j);
+                block.registerFile(entry.path, entry.size, entry.pointer);
+            }
+
+            nextBlock = _store.serializeBlock(block);
+            blockEnd = blockStarts.get(i);
+        }
+
+        return nextBlock;
+    }
+}
@@ -0,0 +1,74 @@
+package com.kidneybone.snapshot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+import com.kidneybone.snapshot.blocks.BasicBlock;
+import com.kidneybone.snapshot.blocks.BlockUtils;
+
+/**
+ * Reads stored blocks directly out of memory mapped regions of the snapshot
+ * file, instead of copying them into a buffer first. The file is mapped in
+ * large windows the first time something in them is read. A window that was
+ * mapped while the file was shorter is mapped again once a read needs the
+ * part that was missing.
+ *
+ * Each window overlaps the next one by a full block, so that a block which
+ * starts in a window always ends in it too.
+ */
+class MappedReader {
+    private static final long WINDOW_BYTES = 64L * 1024 * 1024;
+    private static final long WINDOW_OVERLAP_BYTES = BasicBlock.BLOCK_SIZE_BYTES;
+
+    private final FileChannel _channel;
+    private final AppendBuffer _appendBuffer;
+    private final HashMap<Long, MappedByteBuffer> _windows = new HashMap<Long, MappedByteBuffer>();
+    private long _windowsMapped = 0;
+
+    public MappedReader(FileChannel channel, AppendBuffer appendBuffer) {
+        _channel = channel;
+        _appendBuffer = appendBuffer;
+    }
+
+    /**
+     * Gets a buffer holding the given range of the file. It's a view of the
+     * mapped file, so it must only be read.
+     */
+    public ByteBuffer slice(long offset, int size) throws IOException {
+        if (size > WINDOW_OVERLAP_BYTES) {
+            throw new IllegalArgumentException("Cannot map " + size + " bytes, must be at most " + WINDOW_OVERLAP_BYTES);
+        }
+
+        // Anything still waiting to be appended isn't in the file yet
+        _appendBuffer.ensureWritten(offset, size);
+
+        long index = offset / WINDOW_BYTES;
+        int start = (int) (offset - index * WINDOW_BYTES);
+        return BlockUtils.slice(getWindow(index, start + size), start, size);
+    }
+
+    private synchronized MappedByteBuffer getWindow(long index, int neededBytes) throws IOException {
+        MappedByteBuffer window = _windows.get(index);
+        if (window != null && window.capacity() >= neededBytes) {
+            return window;
+        }
+
+        long start = index * WINDOW_BYTES;
+        long length = Math.min(WINDOW_BYTES + WINDOW_OVERLAP_BYTES, _channel.size() - start);
+        if (length < neededBytes) {
+            throw new IOException("Cannot read past the end of the snapshot file");
+        }
+
+        window = _channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        _windows.put(index, window);
+        _windowsMapped++;
+        return window;
+    }
+
+    public synchronized long getWindowsMapped() {
+        return _windowsMapped;
+    }
+}
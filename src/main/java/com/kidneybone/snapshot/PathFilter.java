@@ -0,0 +1,85 @@
+package com.kidneybone.snapshot;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+
+/**
+ * Chooses files from a commit by matching their relative paths against a
+ * glob, such as etc/app/** or *.conf. A * doesn't match across a /, while a
+ * ** does.
+ *
+ * Whatever comes before the first wildcard is a prefix that every matching
+ * path starts with, which is what lets the path index skip straight to the
+ * files that could match.
+ */
+class PathFilter {
+    private static final String WILDCARDS = "*?[{\\";
+
+    private final String _glob;
+    private final String _literalPrefix;
+    private final PathMatcher _matcher;
+
+    private PathFilter(String glob, String literalPrefix, PathMatcher matcher) {
+        _glob = glob;
+        _literalPrefix = literalPrefix;
+        _matcher = matcher;
+    }
+
+
+    /**
+     * Creates a filter from a glob. A leading / is ignored, since the paths
+     * in a commit are relative to the directory it was made from.
+     */
+    public static PathFilter parse(String glob) {
+        while (glob.startsWith("/")) {
+            glob = glob.substring(1);
+        }
+
+        if (glob.isEmpty()) {
+            throw new IllegalArgumentException("Path patterns cannot be empty");
+        }
+
+        int literalLength = 0;
+        while (literalLength < glob.length() && WILDCARDS.indexOf(glob.charAt(literalLength)) < 0) {
+            literalLength++;
+        }
+
+        return new PathFilter(glob, glob.substring(0, literalLength),
+                              FileSystems.getDefault().getPathMatcher("glob:" + glob));
+    }
+
+    /**
+     * Creates a filter which only matches the given path, even if it has
+     * characters which would be wildcards in a glob.
+     */
+    public static PathFilter exact(String path) {
+        while (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+
+        String exactPath = path;
+        return new PathFilter(path, path, candidate -> candidate.toString().equals(exactPath));
+    }
+
+    public String getLiteralPrefix() {
+        return _literalPrefix;
+    }
+
+    /**
+     * Checks whether any path under the directory with the given path, which
+     * ends with a /, could match.
+     */
+    public boolean couldMatchUnder(String directoryPath) {
+        return directoryPath.startsWith(_literalPrefix) || _literalPrefix.startsWith(directoryPath);
+    }
+
+    public boolean matches(String path) {
+        return path.startsWith(_literalPrefix) && _matcher.matches(Path.of(path));
+    }
+
+    @Override
+    public String toString() {
+        return _glob;
+    }
+}
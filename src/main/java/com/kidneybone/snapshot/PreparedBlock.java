@@ -0,0 +1,22 @@
+package com.kidneybone.snapshot;
+
+import java.nio.ByteBuffer;
+
+import com.kidneybone.snapshot.blocks.BlockHash;
+
+/**
+ * A block which has been serialized, hashed and compressed, but which hasn't
+ * been written to the block pool yet. Preparing a block doesn't touch the
+ * store at all, so it can be done on any thread.
+ */
+class PreparedBlock {
+    public final BlockHash hash;
+    public final ByteBuffer data;
+    public final int codec;
+
+    public PreparedBlock(BlockHash hash, ByteBuffer data, int codec) {
+        this.hash = hash;
+        this.data = data;
+        this.codec = codec;
+    }
+}
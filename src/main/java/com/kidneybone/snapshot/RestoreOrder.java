@@ -0,0 +1,186 @@
+package com.kidneybone.snapshot;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import com.kidneybone.snapshot.blocks.BlockHash;
+import com.kidneybone.snapshot.blocks.CommitBlock;
+import com.kidneybone.snapshot.blocks.CommitDataBlock;
+import com.kidneybone.snapshot.blocks.DirectoryBlock;
+import com.kidneybone.snapshot.blocks.FileBlock;
+import com.kidneybone.snapshot.blocks.ManifestBlock;
+
+/**
+ * Lists the blocks of a commit in the order that restoring it with one
+ * thread reads them: the commit, then each block of the manifest or
+ * directory followed by the files listed in it, and for each file its chain
+ * of file blocks followed by its data blocks. Each block is only listed the
+ * first time it's read, since later reads of a shared block are usually
+ * served from the block cache.
+ *
+ * Repacking lays a commit out in this order, and measuring how far the
+ * offsets of the blocks jump around in it tells how much a restore has to
+ * seek.
+ */
+class RestoreOrder {
+    interface BlockVisitor {
+        void visit(BlockHash hash) throws IOException;
+    }
+
+    /**
+     * How far a restore of a commit jumps around the snapshot file. A seek is
+     * any read that doesn't start where the one before it ended, and its
+     * distance is how far away it starts.
+     */
+    static class Seeks {
+        public long blocks = 0;
+        public long bytes = 0;
+        public long seeks = 0;
+        public long distance = 0;
+
+        /**
+         * Gets the seek distance relative to the amount of data read, which
+         * doesn't depend on the size of the commit.
+         */
+        public double getDistanceRatio() {
+            return bytes == 0 ? 0 : (double) distance / bytes;
+        }
+    }
+
+    private final BlockStore _store;
+    private final HashSet<BlockHash> _visited = new HashSet<BlockHash>();
+    private BlockVisitor _visitor = null;
+
+    public RestoreOrder(BlockStore store) {
+        _store = store;
+    }
+
+    /**
+     * Visits the blocks of the commit in restore order. Blocks visited by an
+     * earlier walk with the same instance aren't visited again.
+     */
+    public void walk(BlockHash commitPointer, BlockVisitor visitor) throws IOException {
+        _visitor = visitor;
+        if (!visit(commitPointer)) {
+            return;
+        }
+
+        CommitBlock commit = new CommitBlock(_store.getFormat());
+        _store.unserializeBlock(commit, commitPointer);
+
+        if (ManifestReader.isTree(commit)) {
+            walkDirectory(commit.getDataPointer());
+        } else if (ManifestReader.isCompact(commit)) {
+            walkManifest(commit.getDataPointer());
+        } else {
+            walkCommitData(commit.getDataPointer());
+        }
+    }
+
+    /**
+     * Measures how much restoring the commit seeks.
+     */
+    public static Seeks measure(BlockStore store, BlockHash commitPointer) throws IOException {
+        Seeks seeks = new Seeks();
+        long[] lastEnd = { -1 };
+
+        new RestoreOrder(store).walk(commitPointer, hash -> {
+            BlockLayout layout = store.findStoredBlock(hash);
+            if (lastEnd[0] >= 0 && layout.offset != lastEnd[0]) {
+                seeks.seeks++;
+                seeks.distance += Math.abs(layout.offset - lastEnd[0]);
+            }
+
+            seeks.blocks++;
+            seeks.bytes += layout.size;
+            lastEnd[0] = layout.offset + layout.size;
+        });
+
+        return seeks;
+    }
+
+    /**
+     * Passes the block to the visitor, unless it was already visited or
+     * isn't stored at all. Returns whether it was visited.
+     */
+    private boolean visit(BlockHash hash) throws IOException {
+        if (hash.isEmpty() || hash.isZeroBlock() || !_visited.add(hash)) {
+            return false;
+        }
+
+        _visitor.visit(hash);
+        return true;
+    }
+
+    private void walkDirectory(BlockHash pointer) throws IOException {
+        BlockHash nextBlock = pointer;
+        while (visit(nextBlock)) {
+            DirectoryBlock directory = new DirectoryBlock(_store.getFormat());
+            _store.unserializeBlock(directory, nextBlock);
+
+            for (int i = 0; i < directory.size(); i++) {
+                if (directory.isDirectoryEntry(i)) {
+                    walkDirectory(directory.getEntryFilePointer(i));
+                } else {
+                    walkFile(directory.getEntryFilePointer(i));
+                }
+            }
+
+            nextBlock = directory.getNextPointer();
+        }
+    }
+
+    private void walkManifest(BlockHash pointer) throws IOException {
+        BlockHash nextBlock = pointer;
+        while (visit(nextBlock)) {
+            ManifestBlock manifest = new ManifestBlock(_store.getFormat());
+            _store.unserializeBlock(manifest, nextBlock);
+
+            for (int i = 0; i < manifest.size(); i++) {
+                walkFile(manifest.getEntryFilePointer(i));
+            }
+
+            nextBlock = manifest.getNextPointer();
+        }
+    }
+
+    private void walkCommitData(BlockHash pointer) throws IOException {
+        BlockHash nextBlock = pointer;
+        while (visit(nextBlock)) {
+            CommitDataBlock dataBlock = new CommitDataBlock(_store.getFormat());
+            _store.unserializeBlock(dataBlock, nextBlock);
+
+            for (int i = 0; i < dataBlock.size(); i++) {
+                walkFile(dataBlock.getEntryFilePointer(i));
+            }
+
+            nextBlock = dataBlock.getNextPointer();
+        }
+    }
+
+    /**
+     * Visits the file blocks of a file from the last one back, which is how
+     * the chain is read, and then its data blocks from the start of the
+     * file.
+     */
+    private void walkFile(BlockHash pointer) throws IOException {
+        ArrayList<BlockHash> dataBlocks = new ArrayList<BlockHash>();
+
+        BlockHash nextBlock = pointer;
+        while (visit(nextBlock)) {
+            FileBlock fileBlock = new FileBlock(_store.getFormat());
+            _store.unserializeBlock(fileBlock, nextBlock);
+
+            for (int i = fileBlock.size() - 1; i >= 0; i--) {
+                dataBlocks.add(fileBlock.getEntryPointer(i));
+            }
+
+            nextBlock = fileBlock.getPreviousPointer();
+        }
+
+        for (int i = dataBlocks.size() - 1; i >= 0; i--) {
+            visit(dataBlocks.get(i));
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package com.kidneybone.snapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.kidneybone.snapshot.blocks.BasicBlock;
+import com.kidneybone.snapshot.blocks.BlockHash;
+import com.kidneybone.snapshot.blocks.CommitBlock;
+import com.kidneybone.snapshot.blocks.DataBlock;
+import com.kidneybone.snapshot.codecs.Codecs;
+
+/**
+ * Restores a directory tree using several threads.
+ *
+ * The calling thread reads the commit data and file blocks, creates each
+ * output file at its full size, and splits its data blocks into runs. Each
+ * run is restored by a worker, which reads and inflates its data blocks and
+ * writes them to their final positions in the file. Since every read from the
+ * snapshot and every write to an output file is positional, the workers never
+ * have to coordinate with each other.
+ */
+class RestorePipeline {
+    // Small files are restored by a single worker, while large ones are
+    // shared between workers in runs of this many blocks (1 MB)
+    private static final int BLOCKS_PER_RUN = 16;
+
+    private static final int QUEUED_RUNS_PER_THREAD = 4;
+
+    private final BlockStore _store;
+    private final int _threads;
+    private final Chunking _chunking;
+    private final AtomicReference<IOException> _error = new AtomicReference<>();
+
+    // Output files which haven't been reported as restored yet, in the order
+    // they were started. Guarded by its own lock, as is each file's finished
+    // flag.
+    private final ArrayDeque<OutputFile> _unreported = new ArrayDeque<OutputFile>();
+
+    /**
+     * An output file which is being written by one or more workers. The last
+     * worker to finish closes it.
+     */
+    private static class OutputFile {
+        public final Path path;
+        public final FileChannel channel;
+        public final long size;
+        public final AtomicInteger remainingRuns;
+        public boolean finished = false;
+
+        public OutputFile(Path path, FileChannel channel, long size, int runs) {
+            this.path = path;
+            this.channel = channel;
+            this.size = size;
+            this.remainingRuns = new AtomicInteger(runs);
+        }
+    }
+
+    public RestorePipeline(BlockStore store, int threads, Chunking chunking) {
+        _store = store;
+        _threads = threads;
+        _chunking = chunking;
+    }
+
+    public void restoreFileTree(String baseDirectory, CommitBlock commitBlock, PathFilter filter) throws IOException {
+        Commit commit = new Commit(_store);
+        ExecutorService workers = Executors.newFixedThreadPool(_threads);
+
+        // Keeps the calling thread from reading the whole commit into the
+        // work queue before the workers have had a chance to start on it
+        Semaphore queuedRuns = new Semaphore(_threads * QUEUED_RUNS_PER_THREAD);
+
+        try {
+            new ManifestReader(_store, commitBlock).forEachFile(filter, (filePath, size, filePointer) -> {
+                if (_error.get() != null) {
+                    return;
+                }
+
+                Path path = Path.of(baseDirectory, filePath);
+                new File(path.getParent().toString()).mkdirs();
+
+                ArrayList<BlockHash> dataBlocks = commit.readDataBlockPointers(filePointer);
+
+                // Where a chunk starts depends on the length of every chunk
+                // before it, which isn't known until they're read, so files
+                // with content-defined chunks are restored by a single worker
+                int blocksPerRun = _chunking.isContentDefined() ? Math.max(dataBlocks.size(), 1) : BLOCKS_PER_RUN;
+                OutputFile output = createOutputFile(path, size, dataBlocks.size(), blocksPerRun);
+
+                if (dataBlocks.isEmpty()) {
+                    finishFile(output);
+                    return;
+                }
+
+                for (int start = 0; start < dataBlocks.size(); start += blocksPerRun) {
+                    int end = Math.min(start + blocksPerRun, dataBlocks.size());
+                    List<BlockHash> run = dataBlocks.subList(start, end);
+                    int firstBlock = start;
+
+                    try {
+                        queuedRuns.acquire();
+                    } catch (InterruptedException err) {
+                        IOException error = new IOException("Interrupted while restoring " + path);
+                        _error.compareAndSet(null, error);
+
+                        // The runs that won't be submitted never finish the
+                        // file, so they're counted off here to make sure
+                        // whichever run finishes last still closes it
+                        int unsubmittedRuns = (dataBlocks.size() - start + blocksPerRun - 1) / blocksPerRun;
+                        if (output.remainingRuns.addAndGet(-unsubmittedRuns) == 0) {
+                            finishFile(output);
+                        }
+
+                        throw error;
+                    }
+
+                    workers.submit(() -> {
+                        try {
+                            restoreRun(output, run, firstBlock);
+                        } finally {
+                            queuedRuns.release();
+                        }
+                    });
+                }
+            });
+        } finally {
+            workers.shutdown();
+            try {
+                workers.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            } catch (InterruptedException err) {
+                workers.shutdownNow();
+                throw new IOException("Interrupted while waiting for restore to finish");
+            }
+        }
+
+        IOException error = _error.get();
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Creates the output file and extends it to its full size, so that the
+     * workers can fill it in any order.
+     */
+    private OutputFile createOutputFile(Path path, long size, int blocks, int blocksPerRun) throws IOException {
+        FileChannel channel = FileChannel.open(path,
+                                               StandardOpenOption.WRITE,
+                                               StandardOpenOption.CREATE,
+                                               StandardOpenOption.TRUNCATE_EXISTING);
+
+        if (size > 0) {
+            channel.write(ByteBuffer.allocate(1), size - 1);
+        }
+
+        int runs = (blocks + blocksPerRun - 1) / blocksPerRun;
+        OutputFile output = new OutputFile(path, channel, size, runs);
+        synchronized (_unreported) {
+            _unreported.add(output);
+        }
+
+        return output;
+    }
+
+    /**
+     * Restores a run of consecutive data blocks from a file, starting with
+     * the data block at the given index.
+     */
+    private void restoreRun(OutputFile output, List<BlockHash> run, int firstBlock) {
+        try {
+            if (_error.get() == null) {
+                DataBlock dataBlock = _chunking.newBlock();
+                ByteBuffer dataBuffer = ByteBuffer.allocate(BasicBlock.BLOCK_SIZE_BYTES);
+                long position = (long) firstBlock * BasicBlock.BLOCK_SIZE_BYTES;
+                StoredRun storedRun = StoredRun.start(_store, _chunking, output.channel, position);
+
+                for (BlockHash dataPointer: run) {
+                    // The file was extended without writing anything, so a
+                    // zero block is already a hole
+                    if (dataPointer.isZeroBlock()) {
+                        long length = Math.min(output.size - position, BasicBlock.BLOCK_SIZE_BYTES);
+                        if (storedRun != null) {
+                            storedRun.skip(length);
+                        }
+                        position += length;
+                        continue;
+                    }
+
+                    if (storedRun != null) {
+                        BlockLayout layout = _store.findStoredBlock(dataPointer);
+                        if (layout.codec == Codecs.NONE) {
+                            long length = Math.min(output.size - position, BasicBlock.BLOCK_SIZE_BYTES);
+                            storedRun.add(layout.offset, length);
+                            position += length;
+                            continue;
+                        }
+                    }
+
+                    _store.unserializeBlock(dataBlock, dataPointer);
+
+                    dataBuffer.clear();
+                    dataBlock.writeContent(dataBuffer, output.size - position);
+                    dataBuffer.flip();
+
+                    if (storedRun != null) {
+                        storedRun.skip(dataBuffer.remaining());
+                    }
+
+                    while (dataBuffer.hasRemaining()) {
+                        position += output.channel.write(dataBuffer, position);
+                    }
+                }
+
+                if (storedRun != null) {
+                    storedRun.flush();
+                }
+            }
+        } catch (IOException err) {
+            _error.compareAndSet(null, err);
+        } catch (RuntimeException err) {
+            _error.compareAndSet(null, new IOException("Failed to restore " + output.path + ": " + err.getMessage(), err));
+        }
+
+        if (output.remainingRuns.decrementAndGet() == 0) {
+            finishFile(output);
+        }
+    }
+
+    private void finishFile(OutputFile output) {
+        try {
+            output.channel.force(true);
+        } catch (IOException err) {
+            _error.compareAndSet(null, err);
+        } finally {
+            try {
+                output.channel.close();
+            } catch (IOException err) {
+                _error.compareAndSet(null, err);
+            }
+        }
+
+        reportFinished(output);
+    }
+
+    /**
+     * Prints the same messages as a serial restore, in the same order. Files
+     * finish in any order, so each one waits to be reported until every file
+     * started before it has been. Nothing more is reported after an error.
+     */
+    private void reportFinished(OutputFile output) {
+        synchronized (_unreported) {
+            output.finished = true;
+            while (!_unreported.isEmpty() && _unreported.peek().finished && _error.get() == null) {
+                System.out.printf("Restoring file %s...\n", _unreported.poll().path);
+                System.out.printf("    Done\n");
+            }
+        }
+    }
+}
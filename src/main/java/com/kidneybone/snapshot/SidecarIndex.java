@@ -0,0 +1,269 @@
+package com.kidneybone.snapshot;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.kidneybone.snapshot.blocks.BlockHash;
+
+/**
+ * A sorted copy of the index which lives next to the snapshot file, in the
+ * spirit of git's pack indexes. It is memory-mapped and binary searched, so
+ * that a new process can resolve hashes without decoding the index chain.
+ *
+ * The sidecar only covers the index blocks that have been flushed into the
+ * block pool, since those can never change. It records the hash of the most
+ * recently flushed index block (the tip) so that the store can tell how much
+ * of the chain it covers:
+ *
+ * - If the tip matches the root index's next pointer, the sidecar is current.
+ * - If the tip is found further down the chain, the sidecar is only missing
+ *   the blocks above it and can be extended with just those.
+ * - Otherwise it belongs to some other snapshot and has to be rebuilt.
+ *
+ * The layout of the file is:
+ *
+ * - The magic bytes SSIDX001
+ * - The tip hash, as 64 ASCII hex digits regardless of the snapshot's format
+ * - The number of entries (int)
+ * - A fan-out table of 256 ints, where entry N is the number of entries
+ *   whose binary hash starts with a byte less than or equal to N
+ * - The entries, sorted by binary hash, each being the 32-byte hash, the
+ *   offset (long), the size (int) and the block's codec (int)
+ */
+class SidecarIndex {
+    private static final byte[] MAGIC = "SSIDX001".getBytes(StandardCharsets.US_ASCII);
+    private static final int FANOUT_ENTRIES = 256;
+    private static final int DIGEST_SIZE_BYTES = BlockHash.SIZE_BYTES;
+    private static final int ENTRY_SIZE_BYTES = DIGEST_SIZE_BYTES + 8 + 4 + 4;
+    private static final int FANOUT_OFFSET = MAGIC.length + BlockHash.HEX_SIZE_CHARS + 4;
+    private static final int ENTRIES_OFFSET = FANOUT_OFFSET + FANOUT_ENTRIES * 4;
+
+    // Hashes sort the same way as the unsigned bytes they're made of
+    private static final Comparator<BlockLayout> BINARY_ORDER = new Comparator<BlockLayout>() {
+        @Override
+        public int compare(BlockLayout a, BlockLayout b) {
+            return a.hash.compareTo(b.hash);
+        }
+    };
+
+    private final Path _path;
+    private MappedByteBuffer _buffer = null;
+    private BlockHash _tip = BlockHash.EMPTY;
+    private int _count = 0;
+
+    public SidecarIndex(Path path) {
+        _path = path;
+    }
+
+    /**
+     * Gets the conventional location of the sidecar for a snapshot file.
+     */
+    public static Path pathFor(Path snapshotFile) {
+        return snapshotFile.resolveSibling(snapshotFile.getFileName() + ".ssidx");
+    }
+
+    public Path getPath() {
+        return _path;
+    }
+
+    public boolean isLoaded() {
+        return _buffer != null;
+    }
+
+    /**
+     * Gets the hash of the newest flushed index block covered by this sidecar.
+     */
+    public BlockHash getTip() {
+        return _tip;
+    }
+
+    public int size() {
+        return _count;
+    }
+
+    /**
+     * Maps the sidecar file into memory. Returns false, leaving the sidecar
+     * unloaded, if the file doesn't exist or isn't well-formed.
+     */
+    public boolean load() throws IOException {
+        _buffer = null;
+        _tip = BlockHash.EMPTY;
+        _count = 0;
+
+        if (!Files.exists(_path)) {
+            return false;
+        }
+
+        try (FileChannel channel = FileChannel.open(_path, StandardOpenOption.READ)) {
+            if (channel.size() < ENTRIES_OFFSET) {
+                return false;
+            }
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                return false;
+            }
+
+            byte[] tipBytes = new byte[BlockHash.HEX_SIZE_CHARS];
+            buffer.get(tipBytes);
+            String tip = new String(tipBytes, StandardCharsets.US_ASCII);
+            int count = buffer.getInt();
+
+            if (!BlockHash.isValid(tip) ||
+                count < 0 || channel.size() != ENTRIES_OFFSET + (long) count * ENTRY_SIZE_BYTES) {
+                return false;
+            }
+
+            _buffer = buffer;
+            _tip = BlockHash.parse(tip);
+            _count = count;
+            return true;
+        }
+    }
+
+    /**
+     * Finds the layout of the given hash, or returns NOT_FOUND if the
+     * sidecar doesn't contain it.
+     */
+    public BlockLayout find(BlockHash hash) {
+        int bucket = hash.getByte(0);
+
+        int low = bucket == 0 ? 0 : _buffer.getInt(FANOUT_OFFSET + (bucket - 1) * 4);
+        int high = _buffer.getInt(FANOUT_OFFSET + bucket * 4) - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int entryOffset = ENTRIES_OFFSET + middle * ENTRY_SIZE_BYTES;
+            int order = compareDigestAt(entryOffset, hash);
+
+            if (order < 0) {
+                low = middle + 1;
+            } else if (order > 0) {
+                high = middle - 1;
+            } else {
+                return readEntry(entryOffset, hash);
+            }
+        }
+
+        return BlockLayout.NOT_FOUND;
+    }
+
+    /**
+     * Writes a new sidecar covering the chain up to the given tip, and maps
+     * it in place of the current one.
+     *
+     * If extend is true, the entries already in the sidecar are kept and the
+     * new entries are merged in with them. Otherwise the new entries must
+     * cover the entire chain.
+     */
+    public void rewrite(BlockHash tip, List<BlockLayout> newEntries, boolean extend) throws IOException {
+        ArrayList<BlockLayout> added = new ArrayList<BlockLayout>(newEntries);
+        Collections.sort(added, BINARY_ORDER);
+
+        int oldCount = extend && isLoaded() ? _count : 0;
+
+        int[] fanout = new int[FANOUT_ENTRIES];
+        for (int i = 0; i < oldCount; i++) {
+            fanout[_buffer.get(ENTRIES_OFFSET + i * ENTRY_SIZE_BYTES) & 0xff]++;
+        }
+
+        for (BlockLayout entry: added) {
+            fanout[entry.hash.getByte(0)]++;
+        }
+
+        for (int i = 1; i < FANOUT_ENTRIES; i++) {
+            fanout[i] += fanout[i - 1];
+        }
+
+        Path tempPath = _path.resolveSibling(_path.getFileName() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+            output.write(MAGIC);
+            output.write(tip.toString().getBytes(StandardCharsets.US_ASCII));
+            output.writeInt(oldCount + added.size());
+            for (int count: fanout) {
+                output.writeInt(count);
+            }
+
+            // Both the old entries and the new ones are sorted, so they can
+            // be merged as they're written out
+            int oldIndex = 0;
+            int newIndex = 0;
+            byte[] oldDigest = new byte[DIGEST_SIZE_BYTES];
+
+            while (oldIndex < oldCount || newIndex < added.size()) {
+                boolean takeOld;
+                if (oldIndex == oldCount) {
+                    takeOld = false;
+                } else if (newIndex == added.size()) {
+                    takeOld = true;
+                } else {
+                    BlockHash newHash = added.get(newIndex).hash;
+                    takeOld = compareDigestAt(ENTRIES_OFFSET + oldIndex * ENTRY_SIZE_BYTES, newHash) <= 0;
+                }
+
+                if (takeOld) {
+                    ByteBuffer entry = _buffer.duplicate();
+                    entry.position(ENTRIES_OFFSET + oldIndex * ENTRY_SIZE_BYTES);
+                    entry.get(oldDigest);
+                    output.write(oldDigest);
+                    output.writeLong(entry.getLong());
+                    output.writeInt(entry.getInt());
+                    output.writeInt(entry.getInt());
+                    oldIndex++;
+                } else {
+                    BlockLayout layout = added.get(newIndex);
+                    output.write(layout.hash.toBytes());
+                    output.writeLong(layout.offset);
+                    output.writeInt(layout.size);
+                    output.writeInt(layout.codec);
+                    newIndex++;
+                }
+            }
+        }
+
+        Files.move(tempPath, _path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (!load()) {
+            throw new IOException("Failed to load sidecar index after writing it: " + _path);
+        }
+    }
+
+    /**
+     * Compares the digest of the entry at the given offset to the given
+     * hash, treating both as unsigned.
+     */
+    private int compareDigestAt(int entryOffset, BlockHash hash) {
+        for (int i = 0; i < 4; i++) {
+            int order = Long.compareUnsigned(_buffer.getLong(entryOffset + i * 8), hash.getWord(i));
+            if (order != 0) {
+                return order;
+            }
+        }
+
+        return 0;
+    }
+
+    private BlockLayout readEntry(int entryOffset, BlockHash hash) {
+        int fieldOffset = entryOffset + DIGEST_SIZE_BYTES;
+        long offset = _buffer.getLong(fieldOffset);
+        int size = _buffer.getInt(fieldOffset + 8);
+        int codec = _buffer.getInt(fieldOffset + 12);
+        return new BlockLayout(hash, offset, size, codec);
+    }
+}
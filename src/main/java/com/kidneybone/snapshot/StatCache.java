@@ -0,0 +1,269 @@
+package com.kidneybone.snapshot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.kidneybone.snapshot.blocks.BlockHash;
+
+/**
+ * Remembers what the files in the last committed directory looked like, so
+ * that an incremental commit can tell which files haven't changed without
+ * reading them. Like git's index, it lives next to the snapshot file and is
+ * only a cache: if it's missing or describes some other commit, every file is
+ * simply read again.
+ *
+ * A file is considered unchanged if its size, modification time, change time
+ * and file key (the device and inode on Unix) all match what was recorded,
+ * and the parent commit has a file at the same path with the same size. Its
+ * file block is then taken from the parent commit. The change time is what
+ * catches a file rewritten in place with its old modification time put back,
+ * as cp -p or an archive extractor would do; it's only available on Unix,
+ * and elsewhere is recorded as zero.
+ *
+ * The layout of the file is:
+ *
+ * - The magic bytes SSTAT002
+ * - The hash of the commit it describes, as 64 ASCII hex digits
+ * - The absolute path of the directory that was committed (UTF)
+ * - The number of entries (int)
+ * - The entries, each being the relative path (UTF), the size (long), the
+ *   modification time and change time in nanoseconds (long) and the file
+ *   key (UTF)
+ */
+class StatCache {
+    private static final byte[] MAGIC = "SSTAT002".getBytes(StandardCharsets.US_ASCII);
+
+    // A file modified this close to the start of a commit could be modified
+    // again without its timestamps changing, on file systems with coarse
+    // timestamps. Those files aren't recorded, so they're read again
+    // by the next commit.
+    private static final long RACY_WINDOW_MILLIS = 2000;
+
+    /**
+     * The metadata recorded for a file.
+     */
+    static class Entry {
+        public final long size;
+        public final long modifiedNanos;
+        public final long changedNanos;
+        public final String fileKey;
+
+        public Entry(long size, long modifiedNanos, long changedNanos, String fileKey) {
+            this.size = size;
+            this.modifiedNanos = modifiedNanos;
+            this.changedNanos = changedNanos;
+            this.fileKey = fileKey;
+        }
+
+        /**
+         * Reads the metadata of a file. On Unix everything comes from the
+         * same stat call, change time included.
+         */
+        public static Entry read(Path path) throws IOException {
+            if (!path.getFileSystem().supportedFileAttributeViews().contains("unix")) {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                return new Entry(attributes.size(),
+                                 attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                                 0,
+                                 toKey(attributes.fileKey()));
+            }
+
+            Map<String, Object> attributes = Files.readAttributes(path, "unix:size,lastModifiedTime,ctime,fileKey");
+            return new Entry((Long) attributes.get("size"),
+                             ((FileTime) attributes.get("lastModifiedTime")).to(TimeUnit.NANOSECONDS),
+                             ((FileTime) attributes.get("ctime")).to(TimeUnit.NANOSECONDS),
+                             toKey(attributes.get("fileKey")));
+        }
+
+        private static String toKey(Object fileKey) {
+            return fileKey == null ? "" : fileKey.toString();
+        }
+
+        /**
+         * Gets the later of the modification and change times, in milliseconds.
+         */
+        public long getLastChangeMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(Math.max(modifiedNanos, changedNanos));
+        }
+
+        public boolean matches(Entry other) {
+            return size == other.size && modifiedNanos == other.modifiedNanos &&
+                changedNanos == other.changedNanos && fileKey.equals(other.fileKey);
+        }
+    }
+
+    private final Path _path;
+    private String _baseDirectory = null;
+    private long _startMillis = 0;
+    private HashMap<String, Entry> _previous = new HashMap<String, Entry>();
+    private HashMap<String, Entry> _current = new HashMap<String, Entry>();
+    private Map<String, Commit.FileInfo> _parentFiles = null;
+
+    public StatCache(Path path) {
+        _path = path;
+    }
+
+    /**
+     * Gets the conventional location of the stat cache for a snapshot file.
+     */
+    public static Path pathFor(Path snapshotFile) {
+        return snapshotFile.resolveSibling(snapshotFile.getFileName() + ".sstat");
+    }
+
+    /**
+     * Prepares to record the files of a new commit of the given directory.
+     * If parentFiles is given, files which match the cache are taken from it
+     * instead of being read; it should only be given when the parent commit
+     * was stored the same way as the new one will be.
+     */
+    public void begin(String baseDirectory, BlockHash parentCommit, Map<String, Commit.FileInfo> parentFiles) throws IOException {
+        _baseDirectory = Path.of(baseDirectory).toAbsolutePath().normalize().toString();
+        _startMillis = System.currentTimeMillis();
+        _previous = new HashMap<String, Entry>();
+        _current = new HashMap<String, Entry>();
+        _parentFiles = parentFiles;
+
+        if (parentFiles != null) {
+            load(parentCommit);
+        }
+    }
+
+    /**
+     * Reads the cache, but only keeps its entries if it describes the given
+     * commit of the same directory.
+     */
+    private void load(BlockHash commit) throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(_path)))) {
+            byte[] magic = new byte[MAGIC.length];
+            input.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                return;
+            }
+
+            byte[] cachedCommit = new byte[BlockHash.HEX_SIZE_CHARS];
+            input.readFully(cachedCommit);
+            if (!commit.toString().equals(new String(cachedCommit, StandardCharsets.US_ASCII)) ||
+                !_baseDirectory.equals(input.readUTF())) {
+                return;
+            }
+
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                String relativePath = input.readUTF();
+                _previous.put(relativePath, new Entry(input.readLong(), input.readLong(), input.readLong(), input.readUTF()));
+            }
+        } catch (NoSuchFileException | EOFException err) {
+            // A missing or truncated cache just means every file is read
+            _previous.clear();
+        }
+    }
+
+    /**
+     * Gets the parent commit's copy of the file, if the file hasn't changed
+     * since the parent commit was made. Otherwise returns null.
+     */
+    public Commit.FileInfo findUnchanged(String relativePath, Entry current) {
+        if (_parentFiles == null) {
+            return null;
+        }
+
+        Entry previous = _previous.get(relativePath);
+        Commit.FileInfo parentFile = _parentFiles.get(relativePath);
+        if (previous == null || parentFile == null) {
+            return null;
+        }
+
+        if (!previous.matches(current) || parentFile.size != current.size) {
+            return null;
+        }
+
+        return parentFile;
+    }
+
+    /**
+     * Records the metadata of a file in the new commit. The metadata should
+     * be read before the file's contents, so that a change made while it's
+     * being read shows up as a different modification time next time.
+     */
+    public void record(String relativePath, Entry entry) {
+        if (entry.getLastChangeMillis() > _startMillis - RACY_WINDOW_MILLIS) {
+            return;
+        }
+
+        _current.put(relativePath, entry);
+    }
+
+    /**
+     * Points the cache at the new address of the commit it describes, after
+     * a prune has rewritten that commit. A cache describing a commit that
+     * isn't in the map is left alone, and will be ignored as usual.
+     */
+    public void renameCommit(Map<BlockHash, BlockHash> renamed) throws IOException {
+        byte[] contents;
+        try {
+            contents = Files.readAllBytes(_path);
+        } catch (NoSuchFileException err) {
+            return;
+        }
+
+        int hashEnd = MAGIC.length + BlockHash.HEX_SIZE_CHARS;
+        if (contents.length < hashEnd || !Arrays.equals(Arrays.copyOf(contents, MAGIC.length), MAGIC)) {
+            return;
+        }
+
+        String cachedCommit = new String(contents, MAGIC.length, BlockHash.HEX_SIZE_CHARS, StandardCharsets.US_ASCII);
+        if (!BlockHash.isValid(cachedCommit)) {
+            return;
+        }
+
+        BlockHash newCommit = renamed.get(BlockHash.parse(cachedCommit));
+        if (newCommit == null || newCommit.toString().equals(cachedCommit)) {
+            return;
+        }
+
+        byte[] newHash = newCommit.toString().getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(newHash, 0, contents, MAGIC.length, newHash.length);
+
+        Path tempPath = _path.resolveSibling(_path.getFileName() + ".tmp");
+        Files.write(tempPath, contents);
+        Files.move(tempPath, _path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Replaces the cache with the files recorded for the given commit.
+     */
+    public void finish(BlockHash commit) throws IOException {
+        Path tempPath = _path.resolveSibling(_path.getFileName() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+            output.write(MAGIC);
+            output.write(commit.toString().getBytes(StandardCharsets.US_ASCII));
+            output.writeUTF(_baseDirectory);
+            output.writeInt(_current.size());
+
+            for (Map.Entry<String, Entry> file: _current.entrySet()) {
+                output.writeUTF(file.getKey());
+                output.writeLong(file.getValue().size);
+                output.writeLong(file.getValue().modifiedNanos);
+                output.writeLong(file.getValue().changedNanos);
+                output.writeUTF(file.getValue().fileKey);
+            }
+        }
+
+        Files.move(tempPath, _path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
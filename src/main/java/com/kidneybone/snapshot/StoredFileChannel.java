@@ -0,0 +1,343 @@
+package com.kidneybone.snapshot;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.kidneybone.snapshot.blocks.BasicBlock;
+import com.kidneybone.snapshot.blocks.BlockHash;
+import com.kidneybone.snapshot.blocks.BlockUtils;
+import com.kidneybone.snapshot.blocks.DataBlock;
+import com.kidneybone.snapshot.blocks.FileBlock;
+
+/**
+ * Reads a stored file from any position, without restoring it. The chain of
+ * file blocks is walked once when the channel is opened, and the addresses
+ * of the data blocks are kept in a flat array of longs. Only the data blocks
+ * that a read touches are inflated.
+ *
+ * With fixed size chunks, the block holding a position is found by division.
+ * Content-defined chunks can have any length, so their offsets are recorded
+ * as the chunks are read, and seeking past the last chunk read means reading
+ * the chunks in between.
+ *
+ * When a block is read right after the one before it, the next few blocks
+ * are inflated on other threads while the caller works through this one, so
+ * a sequential read goes through the file several blocks at a time.
+ */
+class StoredFileChannel implements SeekableByteChannel {
+    private static final int WORDS_PER_HASH = 4;
+    private static final int READ_AHEAD_BLOCKS = 4;
+
+    private final BlockStore _store;
+    private final Chunking _chunking;
+    private final long _size;
+
+    // The address of data block i is in words 4i to 4i+3
+    private final long[] _blockWords;
+    private final int _blockCount;
+
+    // Where each block starts in the file, for content-defined chunks. Only
+    // the first _knownOffsets are filled in.
+    private long[] _offsets = null;
+    private int _knownOffsets = 0;
+
+    private long _position = 0;
+    private boolean _isOpen = true;
+
+    private int _currentIndex = -1;
+    private ByteBuffer _currentBlock = null;
+
+    // Blocks being read ahead, starting with the one at _readAheadStart
+    private ExecutorService _readAheadThreads = null;
+    private final ArrayDeque<Future<ByteBuffer>> _readAhead = new ArrayDeque<Future<ByteBuffer>>();
+    private int _readAheadStart = 0;
+    private long _blocksRead = 0;
+    private long _blocksReadAhead = 0;
+
+    public StoredFileChannel(BlockStore store, Chunking chunking, BlockHash filePointer, long size) throws IOException {
+        _store = store;
+        _chunking = chunking;
+        _size = size;
+
+        long[] words = new long[WORDS_PER_HASH * FileBlock.entriesPerBlock(store.getFormat())];
+        int count = 0;
+
+        // The chain starts from the end of the file, so the addresses are
+        // collected backwards and then reversed
+        BlockHash nextBlock = filePointer;
+        while (!nextBlock.isEmpty()) {
+            FileBlock fileBlock = new FileBlock(store.getFormat());
+            store.unserializeBlock(fileBlock, nextBlock);
+
+            for (int i = fileBlock.size() - 1; i >= 0; i--) {
+                if ((count + 1) * WORDS_PER_HASH > words.length) {
+                    words = Arrays.copyOf(words, words.length * 2);
+                }
+
+                BlockHash pointer = fileBlock.getEntryPointer(i);
+                for (int word = 0; word < WORDS_PER_HASH; word++) {
+                    words[count * WORDS_PER_HASH + word] = pointer.getWord(word);
+                }
+                count++;
+            }
+
+            nextBlock = fileBlock.getPreviousPointer();
+        }
+
+        for (int i = 0, j = count - 1; i < j; i++, j--) {
+            for (int word = 0; word < WORDS_PER_HASH; word++) {
+                long swap = words[i * WORDS_PER_HASH + word];
+                words[i * WORDS_PER_HASH + word] = words[j * WORDS_PER_HASH + word];
+                words[j * WORDS_PER_HASH + word] = swap;
+            }
+        }
+
+        _blockWords = words;
+        _blockCount = count;
+
+        if (chunking.isContentDefined()) {
+            _offsets = new long[count + 1];
+            _knownOffsets = 1;
+        }
+    }
+
+    private BlockHash getBlockPointer(int index) {
+        int start = index * WORDS_PER_HASH;
+        return BlockHash.of(_blockWords[start], _blockWords[start + 1], _blockWords[start + 2], _blockWords[start + 3]);
+    }
+
+    @Override
+    public int read(ByteBuffer buffer) throws IOException {
+        ensureOpen();
+
+        if (_position >= _size) {
+            return -1;
+        }
+
+        int total = 0;
+        while (buffer.hasRemaining() && _position < _size) {
+            int index = findBlock(_position);
+            ByteBuffer block = getBlock(index);
+
+            int offset = (int) (_position - getBlockStart(index));
+            int length = (int) Math.min(Math.min(buffer.remaining(), block.limit() - offset), _size - _position);
+            if (length <= 0) {
+                throw new IOException("Data block " + index + " ends before the end of the file");
+            }
+
+            buffer.put(BlockUtils.slice(block, offset, length));
+            _position += length;
+            total += length;
+        }
+
+        return total;
+    }
+
+    /**
+     * Gets the index of the block holding the given position, which must be
+     * before the end of the file.
+     */
+    private int findBlock(long position) throws IOException {
+        if (!_chunking.isContentDefined()) {
+            return (int) (position / BasicBlock.BLOCK_SIZE_BYTES);
+        }
+
+        // Chunks are read in order until one is found that ends after the
+        // position
+        while (_offsets[_knownOffsets - 1] <= position && _knownOffsets <= _blockCount) {
+            getBlock(_knownOffsets - 1);
+        }
+
+        int index = Arrays.binarySearch(_offsets, 0, _knownOffsets, position);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    private long getBlockStart(int index) {
+        if (!_chunking.isContentDefined()) {
+            return (long) index * BasicBlock.BLOCK_SIZE_BYTES;
+        }
+
+        return _offsets[index];
+    }
+
+    /**
+     * Gets the contents of a data block, reading it if it's not the current
+     * block or the one that was read ahead.
+     */
+    private ByteBuffer getBlock(int index) throws IOException {
+        if (index >= _blockCount) {
+            throw new IOException("File has " + _blockCount + " data blocks, but a read needs block " + index);
+        }
+
+        if (index == _currentIndex) {
+            return _currentBlock;
+        }
+
+        boolean isSequential = index == _currentIndex + 1;
+        ByteBuffer block;
+        if (!_readAhead.isEmpty() && _readAheadStart == index) {
+            block = waitForReadAhead();
+        } else {
+            cancelReadAhead();
+            block = readBlock(index);
+        }
+
+        _currentIndex = index;
+        _currentBlock = block;
+        _blocksRead++;
+
+        if (_offsets != null && index + 1 == _knownOffsets) {
+            _offsets[_knownOffsets] = _offsets[index] + block.limit();
+            _knownOffsets++;
+        }
+
+        if (isSequential) {
+            startReadAhead(index + 1);
+        }
+
+        return block;
+    }
+
+    private ByteBuffer readBlock(int index) throws IOException {
+        BlockHash pointer = getBlockPointer(index);
+        ByteBuffer contents = ByteBuffer.allocate(BasicBlock.BLOCK_SIZE_BYTES);
+
+        // Zero blocks aren't stored, but they're always a full block long,
+        // since only fixed size chunks use them
+        if (pointer.isZeroBlock()) {
+            return contents;
+        }
+
+        DataBlock block = _chunking.newBlock();
+        _store.unserializeBlock(block, pointer);
+        block.writeContent(contents, block.getLength());
+        contents.flip();
+        return contents;
+    }
+
+    /**
+     * Reads ahead up to READ_AHEAD_BLOCKS blocks from the given one, not
+     * counting those already being read.
+     */
+    private void startReadAhead(int index) {
+        if (_readAheadThreads == null) {
+            _readAheadThreads = Executors.newFixedThreadPool(READ_AHEAD_BLOCKS, task -> {
+                Thread thread = new Thread(task, "snapshot-read-ahead");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        if (_readAhead.isEmpty()) {
+            _readAheadStart = index;
+        }
+
+        int next = _readAheadStart + _readAhead.size();
+        while (_readAhead.size() < READ_AHEAD_BLOCKS && next < _blockCount) {
+            int blockIndex = next++;
+            _readAhead.add(_readAheadThreads.submit(() -> readBlock(blockIndex)));
+        }
+    }
+
+    private ByteBuffer waitForReadAhead() throws IOException {
+        Future<ByteBuffer> readAhead = _readAhead.poll();
+        _readAheadStart++;
+        _blocksReadAhead++;
+
+        try {
+            return readAhead.get();
+        } catch (InterruptedException err) {
+            throw new IOException("Interrupted while reading ahead");
+        } catch (ExecutionException err) {
+            if (err.getCause() instanceof IOException) {
+                throw (IOException) err.getCause();
+            }
+
+            throw new IOException("Failed to read ahead: " + err.getCause().getMessage(), err.getCause());
+        }
+    }
+
+    private void cancelReadAhead() {
+        for (Future<ByteBuffer> readAhead: _readAhead) {
+            readAhead.cancel(false);
+        }
+
+        _readAhead.clear();
+    }
+
+    /**
+     * Gets the number of data blocks that reads have gone through, and how
+     * many of those had already been read ahead.
+     */
+    public long getBlocksRead() {
+        return _blocksRead;
+    }
+
+    public long getBlocksReadAhead() {
+        return _blocksReadAhead;
+    }
+
+    @Override
+    public int write(ByteBuffer buffer) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return _position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long position) throws IOException {
+        ensureOpen();
+        if (position < 0) {
+            throw new IllegalArgumentException("Cannot seek to " + position + ", must be non-negative");
+        }
+
+        _position = position;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        return _size;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return _isOpen;
+    }
+
+    @Override
+    public void close() {
+        _isOpen = false;
+        cancelReadAhead();
+        _currentBlock = null;
+
+        if (_readAheadThreads != null) {
+            _readAheadThreads.shutdownNow();
+        }
+    }
+
+    private void ensureOpen() throws ClosedChannelException {
+        if (!_isOpen) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.kidneybone.snapshot;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Copies the contents of uncompressed data blocks into a restored file
+ * without decoding them. A data block stores its part of the file as it is,
+ * so when it wasn't compressed, its contents can go straight from the block
+ * pool into the file. Blocks which were stored one after another are copied
+ * in a single transfer.
+ *
+ * Only the transfers move the file's position, and they lock the file while
+ * they do, so other threads can keep writing to it at explicit positions.
+ */
+class StoredRun {
+    private final BlockStore _store;
+    private final FileChannel _target;
+    private long _targetPosition;
+    private long _offset = 0;
+    private long _length = 0;
+
+    private StoredRun(BlockStore store, FileChannel target, long targetPosition) {
+        _store = store;
+        _target = target;
+        _targetPosition = targetPosition;
+    }
+
+    /**
+     * Starts an empty run which writes to the target from the given
+     * position. Chunk blocks start with their length rather than their
+     * contents, so there's no run for files stored with those.
+     */
+    public static StoredRun start(BlockStore store, Chunking chunking, FileChannel target, long targetPosition) {
+        if (chunking.isContentDefined()) {
+            return null;
+        }
+
+        return new StoredRun(store, target, targetPosition);
+    }
+
+    /**
+     * Adds the first length bytes of an uncompressed block stored at the
+     * given offset to the run. If it doesn't follow on from the run, the
+     * run is copied first and a new one is started.
+     */
+    public void add(long offset, long length) throws IOException {
+        if (_length > 0 && _offset + _length != offset) {
+            flush();
+        }
+
+        if (_length == 0) {
+            _offset = offset;
+        }
+
+        _length += length;
+    }
+
+    /**
+     * Copies the run, and moves past the given number of bytes which the
+     * caller writes itself.
+     */
+    public void skip(long length) throws IOException {
+        flush();
+        _targetPosition += length;
+    }
+
+    /**
+     * Copies whatever is in the run into the target.
+     */
+    public void flush() throws IOException {
+        if (_length == 0) {
+            return;
+        }
+
+        // Leaves the file positioned after the run, so that a caller writing
+        // sequentially carries on from the right place
+        synchronized (_target) {
+            _target.position(_targetPosition);
+            _store.transferStoredData(_offset, _length, _target);
+            _target.position(_targetPosition + _length);
+        }
+
+        _targetPosition += _length;
+        _length = 0;
+    }
+}
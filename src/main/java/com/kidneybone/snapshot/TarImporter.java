@@ -0,0 +1,392 @@
+package com.kidneybone.snapshot;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.kidneybone.snapshot.blocks.BasicBlock;
+import com.kidneybone.snapshot.blocks.BlockHash;
+
+/**
+ * Stores the files in a tar stream as a commit, reading each one straight
+ * from the stream. Nothing is staged on disk, and the only data held in
+ * memory is the current header and whatever the chunk reader buffers.
+ *
+ * Both ustar and GNU archives are understood, including GNU long names and
+ * the path and size records of pax headers. Regular files are stored, hard
+ * links reuse the file block of the file they link to, and everything else
+ * (directories, symlinks, devices) is skipped. When a path appears more than
+ * once, the last entry wins, as it would if the archive were extracted.
+ */
+class TarImporter {
+    private static final int RECORD_SIZE = 512;
+
+    // GNU long names and pax headers are read into memory, so they're
+    // limited to a sane size
+    private static final int MAX_METADATA_SIZE = 1024 * 1024;
+
+    private static final byte TYPE_FILE = '0';
+    private static final byte TYPE_OLD_FILE = 0;
+    private static final byte TYPE_HARD_LINK = '1';
+    private static final byte TYPE_CONTIGUOUS_FILE = '7';
+    private static final byte TYPE_DIRECTORY = '5';
+    private static final byte TYPE_GNU_LONG_NAME = 'L';
+    private static final byte TYPE_GNU_LONG_LINK = 'K';
+    private static final byte TYPE_PAX_HEADER = 'x';
+    private static final byte TYPE_PAX_GLOBAL_HEADER = 'g';
+
+    private final Commit _commit;
+    private final ByteBuffer _header = ByteBuffer.allocate(RECORD_SIZE);
+    private final ByteBuffer _skipBuffer = ByteBuffer.allocate(BasicBlock.BLOCK_SIZE_BYTES);
+
+    private ReadableByteChannel _input = null;
+
+    public TarImporter(BlockStore store, Chunking chunking) {
+        _commit = new Commit(store, chunking);
+    }
+
+    /**
+     * The parts of a header which can be overridden by the entries before
+     * it, which is how GNU long names and pax headers work.
+     */
+    private static class Overrides {
+        public String path = null;
+        public String linkPath = null;
+        public long size = -1;
+    }
+
+    /**
+     * Reads the whole stream, adds its files to the manifest, and returns
+     * the hash of the manifest.
+     */
+    public BlockHash run(ReadableByteChannel input, ManifestWriter manifest) throws IOException {
+        _input = input;
+
+        LinkedHashMap<String, Commit.FileInfo> files = new LinkedHashMap<String, Commit.FileInfo>();
+        Overrides overrides = new Overrides();
+
+        while (readHeader()) {
+            byte type = _header.get(156);
+            long headerSize = readNumber(124, 12);
+
+            if (type == TYPE_GNU_LONG_NAME) {
+                overrides.path = readMetadataString(headerSize);
+                continue;
+            } else if (type == TYPE_GNU_LONG_LINK) {
+                overrides.linkPath = readMetadataString(headerSize);
+                continue;
+            } else if (type == TYPE_PAX_HEADER) {
+                readPaxHeader(headerSize, overrides);
+                continue;
+            }
+
+            String path = overrides.path != null ? overrides.path : readPath();
+            String linkPath = overrides.linkPath != null ? overrides.linkPath : readString(157, 100);
+            long size = overrides.size >= 0 ? overrides.size : headerSize;
+            overrides = new Overrides();
+
+            String cleanPath = cleanPath(path);
+            if (type == TYPE_PAX_GLOBAL_HEADER || type == TYPE_DIRECTORY) {
+                skipEntry(size);
+            } else if (cleanPath == null) {
+                System.out.printf("Skipping entry %s, which is outside the archive\n", path);
+                skipEntry(size);
+            } else if (type == TYPE_FILE || type == TYPE_OLD_FILE || type == TYPE_CONTIGUOUS_FILE) {
+                System.out.printf("Storing file %s...\n", cleanPath);
+                files.put(cleanPath, storeEntry(size));
+                System.out.printf("    Done\n");
+            } else if (type == TYPE_HARD_LINK && files.containsKey(cleanPath(linkPath))) {
+                files.put(cleanPath, files.get(cleanPath(linkPath)));
+                skipEntry(size);
+            } else {
+                System.out.printf("Skipping %s, which isn't a regular file\n", cleanPath);
+                skipEntry(size);
+            }
+        }
+
+        for (Map.Entry<String, Commit.FileInfo> file: files.entrySet()) {
+            manifest.addFile(file.getKey(), file.getValue().size, file.getValue().fileBlock);
+        }
+
+        return manifest.finish();
+    }
+
+    /**
+     * Makes a path from an archive relative, returning null if it's empty or
+     * would climb out of the directory it's restored into.
+     */
+    static String cleanPath(String path) {
+        StringBuilder cleaned = new StringBuilder();
+        for (String part: path.split("/")) {
+            if (part.isEmpty() || part.equals(".")) {
+                continue;
+            } else if (part.equals("..")) {
+                return null;
+            }
+
+            if (cleaned.length() > 0) {
+                cleaned.append('/');
+            }
+            cleaned.append(part);
+        }
+
+        return cleaned.length() == 0 ? null : cleaned.toString();
+    }
+
+    /**
+     * Reads the next header into _header, returning false at the end of the
+     * archive, which is marked by a record of zeroes.
+     */
+    private boolean readHeader() throws IOException {
+        _header.clear();
+        while (_header.hasRemaining()) {
+            if (_input.read(_header) < 0) {
+                if (_header.position() == 0) {
+                    // Some writers leave off the records marking the end
+                    return false;
+                }
+
+                throw new EOFException("Tar stream ends partway through a header");
+            }
+        }
+
+        boolean isZero = true;
+        long checksum = 0;
+        for (int i = 0; i < RECORD_SIZE; i++) {
+            int value = _header.get(i) & 0xFF;
+            isZero &= value == 0;
+
+            // The checksum is computed as if its own field were spaces
+            checksum += i >= 148 && i < 156 ? ' ' : value;
+        }
+
+        if (isZero) {
+            return false;
+        }
+
+        if (checksum != readNumber(148, 8)) {
+            throw new IOException("Tar header has a bad checksum, so this is not a tar stream or it is corrupt");
+        }
+
+        return true;
+    }
+
+    /**
+     * Reads the path of the entry, which ustar archives can split between
+     * the name and prefix fields.
+     */
+    private String readPath() {
+        String name = readString(0, 100);
+        boolean isUstar = readString(257, 6).equals("ustar");
+        if (!isUstar || _header.get(345) == 0) {
+            return name;
+        }
+
+        return readString(345, 155) + "/" + name;
+    }
+
+    private String readString(int offset, int length) {
+        int end = offset;
+        while (end < offset + length && _header.get(end) != 0) {
+            end++;
+        }
+
+        return new String(_header.array(), offset, end - offset, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a number field, which is either octal digits or, for numbers too
+     * big for them, a big-endian binary number marked by the top bit of the
+     * first byte.
+     */
+    private long readNumber(int offset, int length) throws IOException {
+        if ((_header.get(offset) & 0x80) != 0) {
+            long value = _header.get(offset) & 0x7F;
+            for (int i = offset + 1; i < offset + length; i++) {
+                value = (value << 8) | (_header.get(i) & 0xFF);
+            }
+
+            return value;
+        }
+
+        long value = 0;
+        for (int i = offset; i < offset + length; i++) {
+            byte digit = _header.get(i);
+            if (digit == 0 || digit == ' ') {
+                if (value > 0) {
+                    break;
+                }
+            } else if (digit >= '0' && digit <= '7') {
+                value = (value << 3) + (digit - '0');
+            } else {
+                throw new IOException("Tar header has a bad number field at offset " + offset);
+            }
+        }
+
+        return value;
+    }
+
+    /**
+     * Stores the data of the current entry as a file, reading no further
+     * than its end.
+     */
+    private Commit.FileInfo storeEntry(long size) throws IOException {
+        EntryChannel entry = new EntryChannel(size);
+        Commit.FileInfo fileInfo = _commit.storeStream(entry);
+        if (fileInfo.size != size) {
+            throw new EOFException("Tar stream ends partway through an entry");
+        }
+
+        skipPadding(size);
+        return fileInfo;
+    }
+
+    private void skipEntry(long size) throws IOException {
+        skipBytes(size);
+        skipPadding(size);
+    }
+
+    private void skipPadding(long size) throws IOException {
+        skipBytes((RECORD_SIZE - size % RECORD_SIZE) % RECORD_SIZE);
+    }
+
+    private void skipBytes(long count) throws IOException {
+        while (count > 0) {
+            _skipBuffer.clear();
+            _skipBuffer.limit((int) Math.min(count, _skipBuffer.capacity()));
+            int read = _input.read(_skipBuffer);
+            if (read < 0) {
+                throw new EOFException("Tar stream ends partway through an entry");
+            }
+
+            count -= read;
+        }
+    }
+
+    private byte[] readMetadata(long size) throws IOException {
+        if (size > MAX_METADATA_SIZE) {
+            throw new IOException("Tar metadata entry of " + size + " bytes is too large");
+        }
+
+        ByteBuffer metadata = ByteBuffer.allocate((int) size);
+        while (metadata.hasRemaining()) {
+            if (_input.read(metadata) < 0) {
+                throw new EOFException("Tar stream ends partway through an entry");
+            }
+        }
+
+        skipPadding(size);
+        return metadata.array();
+    }
+
+    /**
+     * Reads a GNU long name, which is stored as the data of its own entry.
+     */
+    private String readMetadataString(long size) throws IOException {
+        byte[] data = readMetadata(size);
+        int length = 0;
+        while (length < data.length && data[length] != 0) {
+            length++;
+        }
+
+        return new String(data, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the records of a pax header, each of which looks like
+     * "LENGTH KEY=VALUE\n" where LENGTH counts the whole record.
+     */
+    private void readPaxHeader(long size, Overrides overrides) throws IOException {
+        byte[] data = readMetadata(size);
+        int offset = 0;
+
+        while (offset < data.length) {
+            int space = offset;
+            while (space < data.length && data[space] != ' ') {
+                space++;
+            }
+
+            int length;
+            try {
+                length = Integer.parseInt(new String(data, offset, space - offset, StandardCharsets.US_ASCII));
+            } catch (NumberFormatException err) {
+                throw new IOException("Tar pax header has a bad record length");
+            }
+
+            if (length <= space - offset || offset + length > data.length) {
+                throw new IOException("Tar pax header has a bad record length");
+            }
+
+            // The record ends with a newline, which isn't part of the value
+            String keyValue = new String(data, space + 1, offset + length - space - 2, StandardCharsets.UTF_8);
+            int equals = keyValue.indexOf('=');
+
+            if (equals > 0) {
+                String key = keyValue.substring(0, equals);
+                String value = keyValue.substring(equals + 1);
+
+                if (key.equals("path")) {
+                    overrides.path = value;
+                } else if (key.equals("linkpath")) {
+                    overrides.linkPath = value;
+                } else if (key.equals("size")) {
+                    try {
+                        overrides.size = Long.parseLong(value);
+                    } catch (NumberFormatException err) {
+                        throw new IOException("Tar pax header has a bad size: " + value);
+                    }
+                }
+            }
+
+            offset += length;
+        }
+    }
+
+    /**
+     * Reads the data of the current entry, and reports the end of the stream
+     * once the entry's size has been read.
+     */
+    private class EntryChannel implements ReadableByteChannel {
+        private long _remaining;
+
+        public EntryChannel(long size) {
+            _remaining = size;
+        }
+
+        @Override
+        public int read(ByteBuffer buffer) throws IOException {
+            if (_remaining == 0) {
+                return -1;
+            }
+
+            int limit = buffer.limit();
+            if (buffer.remaining() > _remaining) {
+                buffer.limit(buffer.position() + (int) _remaining);
+            }
+
+            try {
+                int read = _input.read(buffer);
+                if (read > 0) {
+                    _remaining -= read;
+                }
+
+                return read;
+            } finally {
+                buffer.limit(limit);
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return _input.isOpen();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -1,16 +1,19 @@
 package com.kidneybone.snapshot;
 
-import static com.kidneybone.snapshot.blocks.BlockUtils.hashBlock;
-import static com.kidneybone.snapshot.blocks.BlockUtils.isEmptyHash;
-
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
+import com.kidneybone.snapshot.blocks.BasicBlock;
+import com.kidneybone.snapshot.blocks.BlockHash;
 import com.kidneybone.snapshot.blocks.CommitBlock;
 import com.kidneybone.snapshot.blocks.CommitDataBlock;
+import com.kidneybone.snapshot.blocks.DirectoryBlock;
 import com.kidneybone.snapshot.blocks.FileBlock;
 import com.kidneybone.snapshot.blocks.IndexBlock;
+import com.kidneybone.snapshot.blocks.ManifestBlock;
+import com.kidneybone.snapshot.blocks.PathIndexBlock;
 import com.kidneybone.snapshot.blocks.TagBlock;
+import com.kidneybone.snapshot.codecs.Codecs;
 
 public class Visualizer {
     private BlockStore _store;
@@ -31,12 +34,20 @@ public class Visualizer {
             .replace("}", "\\}");
     }
 
-    private String escapeHash(String hash) {
-        return escapeGraphLabel(hash.substring(0, 6));
+    private String escapeGraphLabel(BlockHash hash) {
+        return escapeGraphLabel(hash.toString());
+    }
+
+    private String escapeHash(BlockHash hash) {
+        return escapeGraphLabel(hash.toString().substring(0, 6));
+    }
+
+    private BlockHash hashBlock(BasicBlock block) {
+        return _store.getFormat().hashBlock(block);
     }
 
     private void visualizeFile(FileBlock file) throws Exception {
-        String fileHash = hashBlock(file);
+        BlockHash fileHash = hashBlock(file);
         StringBuilder blockLabel = new StringBuilder();
         blockLabel.append("Kind: file | Hash: ").append(escapeHash(fileHash));
         blockLabel.append(" | Size: ").append(file.size());
@@ -64,7 +75,7 @@ public class Visualizer {
     }
 
     private void visualizeCommitData(CommitDataBlock commitData) throws Exception {
-        String dataHash = hashBlock(commitData);
+        BlockHash dataHash = hashBlock(commitData);
         StringBuilder blockLabel = new StringBuilder();
         blockLabel.append("Kind: commitdata | Hash: ").append(escapeHash(dataHash));
         blockLabel.append(" | Size: ").append(commitData.size());
@@ -89,15 +100,15 @@ public class Visualizer {
                           blockLabel.toString());
 
         for (int i = 0; i < commitData.size(); i++) {
-            FileBlock file = new FileBlock();
-            String lastFileHash = commitData.getEntryFilePointer(i);
+            FileBlock file = new FileBlock(_store.getFormat());
+            BlockHash lastFileHash = commitData.getEntryFilePointer(i);
 
-            while (!isEmptyHash(lastFileHash)) {
+            while (!lastFileHash.isEmpty()) {
                 _store.unserializeBlock(file, commitData.getEntryFilePointer(i));
                 visualizeFile(file);
 
                 lastFileHash = file.getPreviousPointer();
-                file = new FileBlock();
+                file = new FileBlock(_store.getFormat());
             }
 
             System.out.printf("\"%s\":\"file%d\"\n -> \"%s\";\n",
@@ -111,8 +122,150 @@ public class Visualizer {
                           escapeGraphLabel(commitData.getNextPointer()));
     }
 
+    private void visualizeManifest(ManifestBlock manifest) throws Exception {
+        BlockHash manifestHash = hashBlock(manifest);
+        StringBuilder blockLabel = new StringBuilder();
+        blockLabel.append("Kind: manifest | Hash: ").append(escapeHash(manifestHash));
+        blockLabel.append(" | Size: ").append(manifest.size());
+
+        for (int i = 0; i < manifest.size(); i++) {
+            blockLabel.append("| { Path: ");
+            blockLabel.append(escapeGraphLabel(manifest.getEntryPath(i)));
+            blockLabel.append(" | Size: ");
+            blockLabel.append(manifest.getEntrySize(i));
+
+            String node = "<file" + i + ">";
+            blockLabel.append(" | ").append(node).append(" File: ");
+            blockLabel.append(escapeHash(manifest.getEntryFilePointer(i)));
+            blockLabel.append("}");
+        }
+
+        blockLabel.append(" | <next> Next: ");
+        blockLabel.append(escapeHash(manifest.getNextPointer()));
+
+        System.out.printf("\"%s\" [label=\"%s\"];\n",
+                          escapeGraphLabel(manifestHash),
+                          blockLabel.toString());
+
+        for (int i = 0; i < manifest.size(); i++) {
+            FileBlock file = new FileBlock(_store.getFormat());
+            BlockHash lastFileHash = manifest.getEntryFilePointer(i);
+
+            while (!lastFileHash.isEmpty()) {
+                _store.unserializeBlock(file, lastFileHash);
+                visualizeFile(file);
+
+                lastFileHash = file.getPreviousPointer();
+                file = new FileBlock(_store.getFormat());
+            }
+
+            System.out.printf("\"%s\":\"file%d\"\n -> \"%s\";\n",
+                              escapeGraphLabel(manifestHash),
+                              i,
+                              escapeGraphLabel(manifest.getEntryFilePointer(i)));
+        }
+
+        System.out.printf("\"%s\":next -> \"%s\"\n",
+                          escapeGraphLabel(manifestHash),
+                          escapeGraphLabel(manifest.getNextPointer()));
+    }
+
+    private void visualizeDirectory(BlockHash directoryHash) throws Exception {
+        DirectoryBlock directory = new DirectoryBlock(_store.getFormat());
+        _store.unserializeBlock(directory, directoryHash);
+
+        StringBuilder blockLabel = new StringBuilder();
+        blockLabel.append("Kind: directory | Hash: ").append(escapeHash(directoryHash));
+        blockLabel.append(" | Size: ").append(directory.size());
+
+        for (int i = 0; i < directory.size(); i++) {
+            blockLabel.append("| { Name: ");
+            blockLabel.append(escapeGraphLabel(directory.getEntryPath(i)));
+            blockLabel.append(directory.isDirectoryEntry(i) ? " | Files: " : " | Size: ");
+            blockLabel.append(directory.getEntrySize(i));
+
+            String node = "<entry" + i + ">";
+            blockLabel.append(" | ").append(node).append(directory.isDirectoryEntry(i) ? " Directory: " : " File: ");
+            blockLabel.append(escapeHash(directory.getEntryFilePointer(i)));
+            blockLabel.append("}");
+        }
+
+        blockLabel.append(" | <next> Next: ");
+        blockLabel.append(escapeHash(directory.getNextPointer()));
+
+        System.out.printf("\"%s\" [label=\"%s\"];\n",
+                          escapeGraphLabel(directoryHash),
+                          blockLabel.toString());
+
+        for (int i = 0; i < directory.size(); i++) {
+            BlockHash entryHash = directory.getEntryFilePointer(i);
+            if (directory.isDirectoryEntry(i)) {
+                visualizeDirectory(entryHash);
+            } else {
+                BlockHash lastFileHash = entryHash;
+                while (!lastFileHash.isEmpty()) {
+                    FileBlock file = new FileBlock(_store.getFormat());
+                    _store.unserializeBlock(file, lastFileHash);
+                    visualizeFile(file);
+
+                    lastFileHash = file.getPreviousPointer();
+                }
+            }
+
+            System.out.printf("\"%s\":\"entry%d\"\n -> \"%s\";\n",
+                              escapeGraphLabel(directoryHash),
+                              i,
+                              escapeGraphLabel(entryHash));
+        }
+
+        if (!directory.getNextPointer().isEmpty()) {
+            visualizeDirectory(directory.getNextPointer());
+            System.out.printf("\"%s\":next -> \"%s\"\n",
+                              escapeGraphLabel(directoryHash),
+                              escapeGraphLabel(directory.getNextPointer()));
+        }
+    }
+
+    private void visualizePathIndex(BlockHash indexHash) throws Exception {
+        PathIndexBlock index = new PathIndexBlock(_store.getFormat());
+        _store.unserializeBlock(index, indexHash);
+
+        StringBuilder blockLabel = new StringBuilder();
+        blockLabel.append("Kind: pathindex | Hash: ").append(escapeHash(indexHash));
+        blockLabel.append(" | Level: ").append(index.getLevel());
+        blockLabel.append(" | Size: ").append(index.size());
+
+        for (int i = 0; i < index.size(); i++) {
+            blockLabel.append("| { Path: ");
+            blockLabel.append(escapeGraphLabel(index.getEntryPath(i)));
+            blockLabel.append(index.isLeaf() ? " | Size: " : " | Files: ");
+            blockLabel.append(index.getEntrySize(i));
+
+            String node = "<entry" + i + ">";
+            blockLabel.append(" | ").append(node).append(index.isLeaf() ? " File: " : " Child: ");
+            blockLabel.append(escapeHash(index.getEntryFilePointer(i)));
+            blockLabel.append("}");
+        }
+
+        System.out.printf("\"%s\" [label=\"%s\"];\n",
+                          escapeGraphLabel(indexHash),
+                          blockLabel.toString());
+
+        // The file blocks themselves are drawn with the manifest
+        for (int i = 0; i < index.size(); i++) {
+            if (!index.isLeaf()) {
+                visualizePathIndex(index.getEntryFilePointer(i));
+            }
+
+            System.out.printf("\"%s\":\"entry%d\"\n -> \"%s\";\n",
+                              escapeGraphLabel(indexHash),
+                              i,
+                              escapeGraphLabel(index.getEntryFilePointer(i)));
+        }
+    }
+
     private void visualizeCommit(CommitBlock commit) throws Exception {
-        String commitHash = hashBlock(commit);
+        BlockHash commitHash = hashBlock(commit);
         Date commitDate = new Date(commit.getTimestamp());
 
         System.out.printf("\"%s\" [label=\"Kind: commit | Hash: %s | Timestamp: %s | <data> Data: %s | <prev> Parent: %s \"];\n",
@@ -122,14 +275,26 @@ public class Visualizer {
                           escapeHash(commit.getDataPointer()),
                           escapeHash(commit.getPreviousCommit()));
 
-        CommitDataBlock commitData = new CommitDataBlock();
-        String lastCommitDataHash = commit.getDataPointer();
-        while (!isEmptyHash(lastCommitDataHash)) {
-            _store.unserializeBlock(commitData, lastCommitDataHash);
-            visualizeCommitData(commitData);
+        BlockHash lastCommitDataHash = commit.getDataPointer();
+        if (ManifestReader.isTree(commit)) {
+            visualizeDirectory(lastCommitDataHash);
+            lastCommitDataHash = BlockHash.EMPTY;
+        }
+
+        while (!lastCommitDataHash.isEmpty()) {
+            if (ManifestReader.isCompact(commit)) {
+                ManifestBlock manifest = new ManifestBlock(_store.getFormat());
+                _store.unserializeBlock(manifest, lastCommitDataHash);
+                visualizeManifest(manifest);
 
-            lastCommitDataHash = commitData.getNextPointer();
-            commitData = new CommitDataBlock();
+                lastCommitDataHash = manifest.getNextPointer();
+            } else {
+                CommitDataBlock commitData = new CommitDataBlock(_store.getFormat());
+                _store.unserializeBlock(commitData, lastCommitDataHash);
+                visualizeCommitData(commitData);
+
+                lastCommitDataHash = commitData.getNextPointer();
+            }
         }
 
         System.out.printf("\"%s\":prev -> \"%s\";\n",
@@ -138,10 +303,17 @@ public class Visualizer {
         System.out.printf("\"%s\":data -> \"%s\";\n",
                           escapeGraphLabel(commitHash),
                           escapeGraphLabel(commit.getDataPointer()));
+
+        if (!commit.getPathIndex().isEmpty()) {
+            visualizePathIndex(commit.getPathIndex());
+            System.out.printf("\"%s\" -> \"%s\";\n",
+                              escapeGraphLabel(commitHash),
+                              escapeGraphLabel(commit.getPathIndex()));
+        }
     }
 
     private void visualizeTags(TagBlock tags) throws Exception {
-        String tagHash = hashBlock(tags);
+        BlockHash tagHash = hashBlock(tags);
         StringBuilder blockLabel = new StringBuilder();
         blockLabel.append("Kind: tags | Hash: ").append(escapeHash(tagHash));
         blockLabel.append(" | Size: ").append(tags.size());
@@ -172,7 +344,7 @@ public class Visualizer {
     }
 
     private void visualizeIndex(IndexBlock index) throws Exception {
-        String indexHash = hashBlock(index);
+        BlockHash indexHash = hashBlock(index);
         StringBuilder blockLabel = new StringBuilder();
         blockLabel.append("Kind: index | Hash: ").append(escapeHash(indexHash));
         blockLabel.append(" | Size: ").append(index.size());
@@ -182,8 +354,10 @@ public class Visualizer {
             blockLabel.append(escapeHash(index.getEntryPointer(i)));
             blockLabel.append(" ").append("@ ");
             blockLabel.append(index.getEntryOffset(i));
-            if (index.getEntryIsCompressed(i)) {
+            if (index.getEntryCodec(i) == Codecs.DEFLATE) {
                 blockLabel.append(" (zip)");
+            } else if (index.getEntryCodec(i) == Codecs.LZ) {
+                blockLabel.append(" (lz)");
             }
             blockLabel.append("}");
         }
@@ -210,26 +384,26 @@ public class Visualizer {
         System.out.println("rankdir=LR");
         System.out.println("node [shape=record];");
 
-        String nextCommitHash = _store.getHeader().getLastCommit();
-        CommitBlock commit = new CommitBlock();
+        BlockHash nextCommitHash = _store.getHeader().getLastCommit();
+        CommitBlock commit = new CommitBlock(_store.getFormat());
 
-        while (!isEmptyHash(nextCommitHash)) {
+        while (!nextCommitHash.isEmpty()) {
             _store.unserializeBlock(commit, nextCommitHash);
             visualizeCommit(commit);
 
             nextCommitHash = commit.getPreviousCommit();
-            commit = new CommitBlock();
+            commit = new CommitBlock(_store.getFormat());
         }
 
         TagBlock tags = _store.getHeader().getRootTags();
         while (tags != null) {
             visualizeTags(tags);
 
-            String nextTags = tags.getNextPointer();
-            if (isEmptyHash(nextTags)) {
+            BlockHash nextTags = tags.getNextPointer();
+            if (nextTags.isEmpty()) {
                 tags = null;
             } else {
-                tags = new TagBlock();
+                tags = new TagBlock(_store.getFormat());
                 _store.unserializeBlock(tags, nextTags);
             }
         }
@@ -238,11 +412,11 @@ public class Visualizer {
         while (index != null) {
             visualizeIndex(index);
 
-            String nextIndex = index.getNextPointer();
-            if (isEmptyHash(nextIndex)) {
+            BlockHash nextIndex = index.getNextPointer();
+            if (nextIndex.isEmpty()) {
                 index = null;
             } else {
-                index = new IndexBlock();
+                index = new IndexBlock(_store.getFormat());
                 _store.unserializeBlock(index, nextIndex);
             }
         }
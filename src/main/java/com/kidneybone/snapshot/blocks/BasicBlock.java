@@ -9,11 +9,33 @@ import java.nio.ByteBuffer;
  */
 public abstract class BasicBlock {
     public static final int BLOCK_SIZE_BYTES = 64 * 1024;
-    public static final String EMPTY_HASH = "0000000000000000000000000000000000000000000000000000000000000000";
 
-    // The 256-bit hash can be represented in 32 binary bytes, or 64 ASCII
-    // bytes since each byte consists of two characters
-    public static final int HASH_SIZE_BYTES = 64;
+    // The format of the hashes stored in the block, which decides its layout
+    protected final BlockFormat _format;
+
+    /**
+     * Creates a block which doesn't store any hashes, so has the same layout
+     * in every format.
+     */
+    protected BasicBlock() {
+        _format = null;
+    }
+
+    protected BasicBlock(BlockFormat format) {
+        if (format == null) {
+            throw new IllegalArgumentException("Blocks which store hashes must have a format");
+        }
+
+        _format = format;
+    }
+
+    /**
+     * Gets the format of the hashes stored in the block, or null if it
+     * doesn't store any.
+     */
+    public BlockFormat getFormat() {
+        return _format;
+    }
 
     protected abstract void toBuffer(ByteBuffer buffer);
     protected abstract void fromBuffer(ByteBuffer buffer);
@@ -28,7 +50,7 @@ public abstract class BasicBlock {
 
         int wrote = end - start;
         if (wrote < BLOCK_SIZE_BYTES) {
-            buffer.put(new byte[BLOCK_SIZE_BYTES - wrote]);
+            BlockUtils.writeZeros(buffer, BLOCK_SIZE_BYTES - wrote);
         }
     }
 
@@ -0,0 +1,142 @@
+package com.kidneybone.snapshot.blocks;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * How block hashes are computed and how they are stored inside blocks. A
+ * snapshot uses one format throughout, which is decided by its version.
+ */
+public enum BlockFormat {
+    /**
+     * Used by version 1 and 2 snapshots. Hashes are stored as 64 ASCII hex
+     * digits, and were always computed such that each byte of the digest
+     * only contributes its low nibble. That's kept so that existing blocks
+     * keep the same addresses.
+     */
+    HEX(BlockHash.HEX_SIZE_CHARS),
+
+    /**
+     * Used by version 3 snapshots. Hashes are the full SHA-256 digest, stored
+     * as 32 raw bytes.
+     */
+    BINARY(BlockHash.SIZE_BYTES);
+
+    // Getting a digest is surprisingly expensive, so each thread keeps its
+    // own, along with somewhere to put its output
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(BlockFormat::newDigest);
+    private static final ThreadLocal<byte[]> DIGEST_BYTES = ThreadLocal.withInitial(() -> new byte[BlockHash.SIZE_BYTES]);
+
+    private final int _hashSizeBytes;
+
+    private BlockFormat(int hashSizeBytes) {
+        _hashSizeBytes = hashSizeBytes;
+    }
+
+    /**
+     * Gets the number of bytes a hash takes up when stored in a block.
+     */
+    public int getHashSizeBytes() {
+        return _hashSizeBytes;
+    }
+
+    /**
+     * Reads a hash from the buffer and returns it.
+     */
+    public BlockHash readHash(ByteBuffer buffer) {
+        if (this == BINARY) {
+            return BlockHash.read(buffer);
+        }
+
+        // Arguments are evaluated from left to right, so the words are read
+        // in order
+        return BlockHash.of(readHexWord(buffer), readHexWord(buffer), readHexWord(buffer), readHexWord(buffer));
+    }
+
+    /**
+     * Reads one word of a hash, as 16 hex digits.
+     */
+    private static long readHexWord(ByteBuffer buffer) {
+        long word = 0;
+        for (int i = 0; i < 16; i++) {
+            int digit = Character.digit((char) buffer.get(), 16);
+            if (digit == -1) {
+                throw new IllegalArgumentException("Found a hash containing something other than hex digits");
+            }
+
+            word = (word << 4) | digit;
+        }
+
+        return word;
+    }
+
+    /**
+     * Writes a hash to the buffer.
+     */
+    public void writeHash(ByteBuffer buffer, BlockHash hash) {
+        if (this == BINARY) {
+            hash.write(buffer);
+            return;
+        }
+
+        for (int i = 0; i < BlockHash.SIZE_BYTES; i++) {
+            int value = hash.getByte(i);
+            buffer.put(hexDigit(value >>> 4));
+            buffer.put(hexDigit(value & 0xf));
+        }
+    }
+
+    private static byte hexDigit(int value) {
+        return (byte) (value < 10 ? '0' + value : 'A' + value - 10);
+    }
+
+    /**
+     * Serializes the block and gets the hash of its contents.
+     */
+    public BlockHash hashBlock(BasicBlock block) {
+        ByteBuffer buffer = ByteBuffer.allocate(BasicBlock.BLOCK_SIZE_BYTES);
+        block.serialize(buffer);
+        return hashOfLastBlock(buffer);
+    }
+
+    /**
+     * Computes a hash from the block most recently written to the byte
+     * stream.
+     */
+    public BlockHash hashOfLastBlock(ByteBuffer buffer) {
+        buffer.flip();
+
+        // Digesting the buffer directly, instead of copying it somewhere
+        // first, means that blocks can be hashed from more than one thread
+        MessageDigest digest = DIGEST.get();
+        byte[] digestBytes = DIGEST_BYTES.get();
+        digest.update(buffer);
+        try {
+            digest.digest(digestBytes, 0, digestBytes.length);
+        } catch (DigestException err) {
+            throw new IllegalStateException("Could not finish SHA-256 digest", err);
+        }
+
+        buffer.rewind();
+
+        if (this == HEX) {
+            for (int i = 0; i < digestBytes.length; i++) {
+                digestBytes[i] = (byte) ((digestBytes[i] & 0xf) << 4);
+            }
+        }
+
+        return BlockHash.fromBytes(digestBytes);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException err) {
+            // This is impossible, SHA-256 is required to be part of any Java
+            // 7 implementation.
+            throw new IllegalStateException("SHA-256 is not available", err);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.kidneybone.snapshot.blocks;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The address of a block, which is a 256-bit digest of its contents. Hashes
+ * are stored as four longs so that they can be compared, hashed and used as
+ * map keys without going through strings; they are only turned into hex when
+ * they're shown to a person.
+ *
+ * Hashes order the same way as the bytes of the digest do when compared as
+ * unsigned values, which is also the order of their hex forms.
+ */
+public final class BlockHash implements Comparable<BlockHash> {
+    public static final int SIZE_BYTES = 32;
+    public static final int HEX_SIZE_CHARS = SIZE_BYTES * 2;
+
+    /**
+     * The all-zeroes hash, which stands for "no block" wherever a pointer is
+     * optional.
+     */
+    public static final BlockHash EMPTY = new BlockHash(0, 0, 0, 0);
+
+    /**
+     * The all-ones hash, which file blocks use in place of a data block that
+     * is entirely zeroes. No such block is ever stored. Hex hashes can't
+     * collide with it, since the low nibble of every byte of their digest is
+     * zero.
+     */
+    public static final BlockHash ZERO_BLOCK = new BlockHash(-1L, -1L, -1L, -1L);
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private final long _word0;
+    private final long _word1;
+    private final long _word2;
+    private final long _word3;
+
+    private BlockHash(long word0, long word1, long word2, long word3) {
+        _word0 = word0;
+        _word1 = word1;
+        _word2 = word2;
+        _word3 = word3;
+    }
+
+    /**
+     * Creates a hash from its four longs, in the order getWord returns them.
+     */
+    public static BlockHash of(long word0, long word1, long word2, long word3) {
+        return new BlockHash(word0, word1, word2, word3);
+    }
+
+    /**
+     * Creates a hash from its 32 bytes.
+     */
+    public static BlockHash fromBytes(byte[] bytes) {
+        if (bytes.length != SIZE_BYTES) {
+            throw new IllegalArgumentException("Hashes must be " + SIZE_BYTES + " bytes");
+        }
+
+        return of(getLong(bytes, 0), getLong(bytes, 8), getLong(bytes, 16), getLong(bytes, 24));
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xff);
+        }
+
+        return value;
+    }
+
+    /**
+     * Reads the 32 bytes of a hash from the buffer.
+     */
+    public static BlockHash read(ByteBuffer buffer) {
+        return new BlockHash(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+    }
+
+    /**
+     * Parses a hash from its hex form, in either upper or lower case.
+     */
+    public static BlockHash parse(CharSequence hex) {
+        if (hex.length() != HEX_SIZE_CHARS) {
+            throw new IllegalArgumentException("Hashes must be " + HEX_SIZE_CHARS + " hex digits");
+        }
+
+        long[] words = new long[4];
+        for (int i = 0; i < HEX_SIZE_CHARS; i++) {
+            int digit = Character.digit(hex.charAt(i), 16);
+            if (digit == -1) {
+                throw new IllegalArgumentException("Hashes must only contain hex digits");
+            }
+
+            words[i / 16] = (words[i / 16] << 4) | digit;
+        }
+
+        return new BlockHash(words[0], words[1], words[2], words[3]);
+    }
+
+    /**
+     * Checks whether the string is the hex form of a hash.
+     */
+    public static boolean isValid(CharSequence hex) {
+        if (hex.length() != HEX_SIZE_CHARS) {
+            return false;
+        }
+
+        for (int i = 0; i < HEX_SIZE_CHARS; i++) {
+            if (Character.digit(hex.charAt(i), 16) == -1) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Writes the 32 bytes of the hash to the buffer.
+     */
+    public void write(ByteBuffer buffer) {
+        buffer.putLong(_word0);
+        buffer.putLong(_word1);
+        buffer.putLong(_word2);
+        buffer.putLong(_word3);
+    }
+
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE_BYTES);
+        write(buffer);
+        return buffer.array();
+    }
+
+    /**
+     * Gets one of the four longs that make up the hash, starting with the
+     * most significant.
+     */
+    public long getWord(int i) {
+        switch (i) {
+            case 0:
+                return _word0;
+            case 1:
+                return _word1;
+            case 2:
+                return _word2;
+            case 3:
+                return _word3;
+            default:
+                throw new IndexOutOfBoundsException("Hashes only have 4 words");
+        }
+    }
+
+    /**
+     * Gets one of the 32 bytes of the hash, as an unsigned value.
+     */
+    public int getByte(int i) {
+        return (int) (getWord(i / 8) >>> (56 - (i % 8) * 8)) & 0xff;
+    }
+
+    public boolean isEmpty() {
+        return (_word0 | _word1 | _word2 | _word3) == 0;
+    }
+
+    public boolean isZeroBlock() {
+        return (_word0 & _word1 & _word2 & _word3) == -1L;
+    }
+
+    @Override
+    public int compareTo(BlockHash other) {
+        int order = Long.compareUnsigned(_word0, other._word0);
+        if (order == 0) {
+            order = Long.compareUnsigned(_word1, other._word1);
+        }
+
+        if (order == 0) {
+            order = Long.compareUnsigned(_word2, other._word2);
+        }
+
+        if (order == 0) {
+            order = Long.compareUnsigned(_word3, other._word3);
+        }
+
+        return order;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        } else if (!(other instanceof BlockHash)) {
+            return false;
+        }
+
+        BlockHash hash = (BlockHash) other;
+        return _word0 == hash._word0 && _word1 == hash._word1 && _word2 == hash._word2 && _word3 == hash._word3;
+    }
+
+    @Override
+    public int hashCode() {
+        // Digests are already uniformly distributed, so any of their bits
+        // make a good hash code. The last word is used since the hashes of
+        // version 1 and 2 snapshots have no entropy in the low bits of each
+        // byte.
+        return (int) (_word3 ^ (_word3 >>> 36));
+    }
+
+    /**
+     * Gets the upper-case hex form of the hash.
+     */
+    @Override
+    public String toString() {
+        char[] hex = new char[HEX_SIZE_CHARS];
+        for (int i = 0; i < SIZE_BYTES; i++) {
+            int value = getByte(i);
+            hex[i * 2] = HEX_DIGITS[value >>> 4];
+            hex[i * 2 + 1] = HEX_DIGITS[value & 0xf];
+        }
+
+        return new String(hex);
+    }
+}
@@ -2,79 +2,90 @@ package com.kidneybone.snapshot.blocks;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 
 public class BlockUtils {
-    private static final byte[] LAST_BLOCK_BUFFER = new byte[BasicBlock.BLOCK_SIZE_BYTES];
-    private static final byte[] LAST_HASH_BUFFER = new byte[BasicBlock.HASH_SIZE_BYTES];
+    // Never written to, so it can be shared by every thread that needs to
+    // pad something out with zeroes
+    private static final byte[] ZEROS = new byte[BasicBlock.BLOCK_SIZE_BYTES];
 
     /**
-     * Serializes the block and gets the hash of its contents.
+     * Encodes the string and returns its byte[] equivalent
      */
-    public static String hashBlock(BasicBlock block) {
-        ByteBuffer buffer = ByteBuffer.allocate(BasicBlock.BLOCK_SIZE_BYTES);
-        block.serialize(buffer);
-        return hashOfLastBlock(buffer);
+    public static byte[] utf8Encode(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
     }
 
     /**
-     * Computes a hash from the block most recently written to the byte
-     * stream.
+     * Decodes the byte[] and returns their String equivalent
      */
-    public static String hashOfLastBlock(ByteBuffer buffer) {
-        buffer.flip();
-        buffer.get(LAST_BLOCK_BUFFER);
-
-        MessageDigest digest = null;
-        try {
-            digest = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException err) {
-            // This is impossible, SHA-256 is required to be part of any Java
-            // 7 implementation.
-        }
-
-        byte[] digestBytes = digest.digest(LAST_BLOCK_BUFFER);
-        StringBuilder digestString = new StringBuilder();
-        for (byte digestByte: digestBytes) {
-            int firstNibble = digestByte & 0xf;
-            int secondNibble = (digestByte << 4) & 0xf;
+    public static String utf8Decode(byte[] value, int offset, int length) {
+        return new String(value, offset, length, StandardCharsets.UTF_8);
+    }
 
-            if (firstNibble < 10) {
-                digestString.append((char) (firstNibble + '0'));
-            } else {
-                digestString.append((char) (firstNibble - 10 + 'A'));
-            }
+    /**
+     * Reads a string from the buffer, which is either zero-terminated or has
+     * the given maximum length.
+     */
+    public static String readCString(ByteBuffer buffer, int maxLength) {
+        int start = buffer.position();
+        int firstZero = 0;
+        for (; firstZero < maxLength && buffer.get(start + firstZero) != 0; firstZero++);
 
-            if (secondNibble < 10) {
-                digestString.append((char)(secondNibble + '0'));
-            } else {
-                digestString.append((char)(secondNibble - 10 + 'A'));
-            }
+        buffer.position(start + maxLength);
+        if (firstZero == 0) {
+            return "";
+        } else if (buffer.hasArray()) {
+            return utf8Decode(buffer.array(), buffer.arrayOffset() + start, firstZero);
+        } else {
+            byte[] stringBuffer = new byte[firstZero];
+            buffer.duplicate().position(start).get(stringBuffer);
+            return utf8Decode(stringBuffer, 0, firstZero);
         }
-
-        buffer.rewind();
-        return digestString.toString();
     }
 
     /**
-     * Checks that the input valid is the empty pointer.
+     * Writes a string to the buffer, and zero-terminates it if it is belong
+     * the given maximum length.
      */
-    public static boolean isEmptyHash(String pointer) {
-        return pointer.equals(BasicBlock.EMPTY_HASH);
+    public static void writeCString(ByteBuffer buffer, String value, int maxLength) {
+        byte[] encoded = utf8Encode(value);
+        int length = Math.min(encoded.length, maxLength);
+        buffer.put(encoded, 0, length);
+        writeZeros(buffer, maxLength - length);
     }
 
     /**
-     * Checks that the input value is a valid SHA256 hex digest.
+     * Checks whether everything between the position and limit of the buffer
+     * is zero. Arrays.mismatch compares many bytes at a time, which makes
+     * this far quicker than hashing the same bytes.
      */
-    public static boolean isValidHash(String pointer) {
-        if (pointer.length() != BasicBlock.HASH_SIZE_BYTES) return false;
-        pointer = pointer.toUpperCase();
+    public static boolean isZero(ByteBuffer buffer) {
+        int start = buffer.position();
+        int end = buffer.limit();
+
+        if (buffer.hasArray()) {
+            byte[] array = buffer.array();
+            int offset = buffer.arrayOffset();
+            for (int i = start; i < end; i += ZEROS.length) {
+                int length = Math.min(end - i, ZEROS.length);
+                if (Arrays.mismatch(array, offset + i, offset + i + length, ZEROS, 0, length) != -1) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        int i = start;
+        for (; i + 8 <= end; i += 8) {
+            if (buffer.getLong(i) != 0) {
+                return false;
+            }
+        }
 
-        for (int i = 0; i < BasicBlock.HASH_SIZE_BYTES; i++) {
-            char c = pointer.charAt(i);
-            if (!Character.isDigit(c) && !(c >= 'A' && c <= 'F')) {
+        for (; i < end; i++) {
+            if (buffer.get(i) != 0) {
                 return false;
             }
         }
@@ -83,58 +94,68 @@ public class BlockUtils {
     }
 
     /**
-     * Encodes the string and returns its byte[] equivalent
+     * Gets a buffer sharing the given range of another buffer's contents,
+     * counted from the start of the buffer. The buffer's own position and
+     * limit are left alone, so it can be shared between threads.
      */
-    public static byte[] utf8Encode(String value) {
-        return value.getBytes(StandardCharsets.UTF_8);
+    public static ByteBuffer slice(ByteBuffer buffer, int index, int length) {
+        return buffer.duplicate().position(index).limit(index + length).slice();
     }
 
     /**
-     * Decodes the byte[] and returns their String equivalent
+     * Writes the given number of zero bytes to the buffer.
      */
-    public static String utf8Decode(byte[] value, int offset, int length) {
-        return new String(value, offset, length, StandardCharsets.UTF_8);
+    public static void writeZeros(ByteBuffer buffer, int count) {
+        while (count > 0) {
+            int length = Math.min(count, ZEROS.length);
+            buffer.put(ZEROS, 0, length);
+            count -= length;
+        }
     }
 
     /**
-     * Reads a string from the buffer, which is either zero-terminated or has
-     * the given maximum length.
+     * Writes a non-negative integer seven bits at a time, starting with the
+     * lowest, with the high bit of every byte but the last set.
      */
-    public static String readCString(ByteBuffer buffer, int maxLength) {
-        byte[] stringBuffer = new byte[maxLength];
-        buffer.get(stringBuffer);
-
-        int firstZero = 0;
-        for (; firstZero < maxLength && stringBuffer[firstZero] != 0; firstZero++);
+    public static void writeVarLong(ByteBuffer buffer, long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Cannot store negative values as varints");
+        }
 
-        if (firstZero == 0) {
-            return "";
-        } else {
-            return utf8Decode(stringBuffer, 0, firstZero);
+        while ((value & ~0x7fL) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
         }
-    }
 
-    /**
-     * Writes a string to the buffer, and zero-terminates it if it is belong
-     * the given maximum length.
-     */
-    public static void writeCString(ByteBuffer buffer, String value, int maxLength) {
-        byte[] encodedBuffer = Arrays.copyOf(utf8Encode(value), maxLength);
-        buffer.put(encodedBuffer);
+        buffer.put((byte) value);
     }
 
     /**
-     * Reads a hash from the buffer and returns it.
+     * Reads an integer written by writeVarLong.
      */
-    public static String readHash(ByteBuffer buffer) {
-        buffer.get(LAST_HASH_BUFFER);
-        return utf8Decode(LAST_HASH_BUFFER, 0, LAST_HASH_BUFFER.length);
+    public static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte next = buffer.get();
+            value |= (long) (next & 0x7f) << shift;
+            if ((next & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new IllegalArgumentException("Found a varint longer than 10 bytes");
     }
 
     /**
-     * Writes a hash to the buffer.
+     * Gets the number of bytes writeVarLong uses for the value.
      */
-    public static void writeHash(ByteBuffer buffer, String hash) {
-        buffer.put(utf8Encode(hash.toUpperCase()));
+    public static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+
+        return size;
     }
 }
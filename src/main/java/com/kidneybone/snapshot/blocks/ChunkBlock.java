@@ -0,0 +1,61 @@
+package com.kidneybone.snapshot.blocks;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A data block which records how much content it holds. Content-defined
+ * chunking cuts files into pieces of varying sizes, so unlike plain data
+ * blocks, the size of every piece has to be stored and not just the size of
+ * the whole file.
+ */
+public class ChunkBlock extends DataBlock {
+    public static final int LENGTH_SIZE_BYTES = 4;
+    public static final int MAX_LENGTH = BLOCK_SIZE_BYTES - LENGTH_SIZE_BYTES;
+
+    private int _length;
+
+    public ChunkBlock() {
+        super();
+        _length = 0;
+    }
+
+    /**
+     * Creates a chunk holding everything between the position and limit of
+     * the buffer.
+     */
+    public ChunkBlock(ByteBuffer buffer) {
+        super();
+        setContents(buffer);
+    }
+
+    @Override
+    public void setContents(ByteBuffer buffer) {
+        if (buffer.remaining() > MAX_LENGTH) {
+            throw new IllegalArgumentException("Cannot store chunk, must be at most " + MAX_LENGTH + " bytes");
+        }
+
+        _length = buffer.remaining();
+        buffer.get(_contents, 0, _length);
+    }
+
+    @Override
+    public int getLength() {
+        return _length;
+    }
+
+    @Override
+    protected void toBuffer(ByteBuffer buffer) {
+        buffer.putInt(_length);
+        buffer.put(_contents, 0, _length);
+    }
+
+    @Override
+    protected void fromBuffer(ByteBuffer buffer) {
+        _length = buffer.getInt();
+        if (_length < 0 || _length > MAX_LENGTH) {
+            throw new IllegalArgumentException("Chunk has invalid length " + _length);
+        }
+
+        buffer.get(_contents, 0, _length);
+    }
+}
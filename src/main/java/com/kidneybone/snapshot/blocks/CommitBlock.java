@@ -1,8 +1,5 @@
 package com.kidneybone.snapshot.blocks;
 
-import static com.kidneybone.snapshot.blocks.BlockUtils.readHash;
-import static com.kidneybone.snapshot.blocks.BlockUtils.writeHash;
-
 import java.nio.ByteBuffer;
 
 /*
@@ -12,45 +9,105 @@ import java.nio.ByteBuffer;
  */
 
 public class CommitBlock extends BasicBlock {
+    /**
+     * The commit's files are cut into chunk blocks by content-defined
+     * chunking, instead of into fixed size data blocks.
+     */
+    public static final int FLAG_CONTENT_DEFINED_CHUNKS = 1;
+
+    /**
+     * The commit's files are listed in manifest blocks, instead of in commit
+     * data blocks.
+     */
+    public static final int FLAG_COMPACT_MANIFEST = 2;
+
+    /**
+     * The commit has a path index, whose address is stored after the flags.
+     */
+    public static final int FLAG_PATH_INDEX = 4;
+
+    /**
+     * The commit data address points to the directory block of the root of
+     * the commit, instead of to a manifest.
+     */
+    public static final int FLAG_DIRECTORY_TREE = 8;
+
     private long _timestamp;
-    private String _dataPointer;
-    private String _prevCommit;
+    private BlockHash _dataPointer;
+    private BlockHash _prevCommit;
+
+    // Stored after the other fields, so commits written before flags existed
+    // read back with none set
+    private int _flags;
+    private BlockHash _pathIndex;
+
+    public CommitBlock(BlockFormat format) {
+        this(format, 0, BlockHash.EMPTY, BlockHash.EMPTY, 0);
+    }
 
-    public CommitBlock() {
-        _timestamp = 0;
-        _dataPointer = EMPTY_HASH;
-        _prevCommit = EMPTY_HASH;
+    public CommitBlock(BlockFormat format, long timestamp, BlockHash dataPointer, BlockHash prevCommit) {
+        this(format, timestamp, dataPointer, prevCommit, 0);
     }
 
-    public CommitBlock(long timestamp, String dataPointer, String prevCommit) {
+    public CommitBlock(BlockFormat format, long timestamp, BlockHash dataPointer, BlockHash prevCommit, int flags) {
+        this(format, timestamp, dataPointer, prevCommit, flags, BlockHash.EMPTY);
+    }
+
+    /**
+     * Creates a commit with a path index. The flag is set to match, so an
+     * empty pointer means the commit has no index.
+     */
+    public CommitBlock(BlockFormat format, long timestamp, BlockHash dataPointer, BlockHash prevCommit, int flags, BlockHash pathIndex) {
+        super(format);
         _timestamp = timestamp;
         _dataPointer = dataPointer;
         _prevCommit = prevCommit;
+        _pathIndex = pathIndex;
+        _flags = pathIndex.isEmpty() ? flags & ~FLAG_PATH_INDEX : flags | FLAG_PATH_INDEX;
     }
 
     public long getTimestamp() {
         return _timestamp;
     }
 
-    public String getDataPointer() {
+    public BlockHash getDataPointer() {
         return _dataPointer;
     }
 
-    public String getPreviousCommit() {
+    public BlockHash getPreviousCommit() {
         return _prevCommit;
     }
 
+    public int getFlags() {
+        return _flags;
+    }
+
+    /**
+     * Gets the root of the commit's path index, or the empty hash if it
+     * doesn't have one.
+     */
+    public BlockHash getPathIndex() {
+        return _pathIndex;
+    }
+
     @Override
     protected void toBuffer(ByteBuffer buffer) {
         buffer.putLong(_timestamp);
-        writeHash(buffer, _dataPointer);
-        writeHash(buffer, _prevCommit);
+        _format.writeHash(buffer, _dataPointer);
+        _format.writeHash(buffer, _prevCommit);
+        buffer.putInt(_flags);
+
+        if ((_flags & FLAG_PATH_INDEX) != 0) {
+            _format.writeHash(buffer, _pathIndex);
+        }
     }
 
     @Override
     protected void fromBuffer(ByteBuffer buffer) {
         _timestamp = buffer.getLong();
-        _dataPointer = readHash(buffer);
-        _prevCommit = readHash(buffer);
+        _dataPointer = _format.readHash(buffer);
+        _prevCommit = _format.readHash(buffer);
+        _flags = buffer.getInt();
+        _pathIndex = (_flags & FLAG_PATH_INDEX) != 0 ? _format.readHash(buffer) : BlockHash.EMPTY;
     }
 }
@@ -1,11 +1,9 @@
 package com.kidneybone.snapshot.blocks;
 
-import static com.kidneybone.snapshot.blocks.BlockUtils.isValidHash;
 import static com.kidneybone.snapshot.blocks.BlockUtils.readCString;
-import static com.kidneybone.snapshot.blocks.BlockUtils.readHash;
 import static com.kidneybone.snapshot.blocks.BlockUtils.utf8Encode;
 import static com.kidneybone.snapshot.blocks.BlockUtils.writeCString;
-import static com.kidneybone.snapshot.blocks.BlockUtils.writeHash;
+import static com.kidneybone.snapshot.blocks.BlockUtils.writeZeros;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
@@ -13,23 +11,31 @@ import java.util.ArrayList;
 public class CommitDataBlock extends BasicBlock {
     public static final int FILE_SIZE_BYTES = 8;
     public static final int PATH_SIZE_BYTES = 4096;
-    public static final int ENTRIES_PER_BLOCK =
-            (BLOCK_SIZE_BYTES - HASH_SIZE_BYTES) /
-                (PATH_SIZE_BYTES + FILE_SIZE_BYTES + HASH_SIZE_BYTES);
 
+    private final int _capacity;
     private ArrayList<String> _paths = new ArrayList<String>();
     private ArrayList<Long> _sizes = new ArrayList<Long>();
-    private ArrayList<String> _pointers = new ArrayList<String>();
-    private String _nextBlock;
+    private ArrayList<BlockHash> _pointers = new ArrayList<BlockHash>();
+    private BlockHash _nextBlock;
 
-    public CommitDataBlock() {
-        _nextBlock = EMPTY_HASH;
+    public CommitDataBlock(BlockFormat format) {
+        this(format, BlockHash.EMPTY);
     }
 
-    public CommitDataBlock(String nextBlock) {
+    public CommitDataBlock(BlockFormat format, BlockHash nextBlock) {
+        super(format);
+        _capacity = entriesPerBlock(format);
         _nextBlock = nextBlock;
     }
 
+    /**
+     * Gets the number of files that fit in a commit data block.
+     */
+    public static int entriesPerBlock(BlockFormat format) {
+        return (BLOCK_SIZE_BYTES - format.getHashSizeBytes()) /
+            (PATH_SIZE_BYTES + FILE_SIZE_BYTES + format.getHashSizeBytes());
+    }
+
     public String getEntryPath(int i) {
         return _paths.get(i);
     }
@@ -38,11 +44,11 @@ public class CommitDataBlock extends BasicBlock {
         return _sizes.get(i);
     }
 
-    public String getEntryFilePointer(int i) {
+    public BlockHash getEntryFilePointer(int i) {
         return _pointers.get(i);
     }
 
-    public String getNextPointer() {
+    public BlockHash getNextPointer() {
         return _nextBlock;
     }
 
@@ -51,16 +57,16 @@ public class CommitDataBlock extends BasicBlock {
     }
 
     public boolean isFull() {
-        return _paths.size() == ENTRIES_PER_BLOCK;
+        return _paths.size() == _capacity;
     }
 
-    public void registerFile(String path, long size, String pointer) {
-        if (_paths.size() == ENTRIES_PER_BLOCK) {
-            throw new IllegalStateException("Cannot add more than " + ENTRIES_PER_BLOCK + " to a single commit data block");
+    public void registerFile(String path, long size, BlockHash pointer) {
+        if (_paths.size() == _capacity) {
+            throw new IllegalStateException("Cannot add more than " + _capacity + " to a single commit data block");
         }
 
-        if (!isValidHash(pointer)) {
-            throw new IllegalArgumentException("Cannot store pointer, is not valid SHA256 hash");
+        if (pointer.isEmpty()) {
+            throw new IllegalArgumentException("Cannot store pointer, is the empty hash");
         }
 
         if (size < 0) {
@@ -79,27 +85,26 @@ public class CommitDataBlock extends BasicBlock {
 
     @Override
     protected void toBuffer(ByteBuffer buffer) {
-        byte[] emptyFilename = new byte[PATH_SIZE_BYTES];
-        for (int i = 0; i < ENTRIES_PER_BLOCK; i++) {
+        for (int i = 0; i < _capacity; i++) {
             if (i < _paths.size()) {
                 writeCString(buffer, _paths.get(i), PATH_SIZE_BYTES);
                 buffer.putLong(_sizes.get(i));
-                writeHash(buffer, _pointers.get(i));
+                _format.writeHash(buffer, _pointers.get(i));
             } else {
-                buffer.put(emptyFilename);
+                writeZeros(buffer, PATH_SIZE_BYTES);
                 buffer.putLong(0);
-                writeHash(buffer, EMPTY_HASH);
+                _format.writeHash(buffer, BlockHash.EMPTY);
             }
         }
-        writeHash(buffer, _nextBlock);
+        _format.writeHash(buffer, _nextBlock);
     }
 
     @Override
     protected void fromBuffer(ByteBuffer buffer) {
-        for (int i = 0; i < ENTRIES_PER_BLOCK; i++) {
+        for (int i = 0; i < _capacity; i++) {
             String path = readCString(buffer, PATH_SIZE_BYTES);
             long size = buffer.getLong();
-            String pointer = readHash(buffer);
+            BlockHash pointer = _format.readHash(buffer);
 
             if (!path.equals("")) {
                 _paths.add(path);
@@ -108,6 +113,6 @@ public class CommitDataBlock extends BasicBlock {
             }
         }
 
-        _nextBlock = readHash(buffer);
+        _nextBlock = _format.readHash(buffer);
     }
 }
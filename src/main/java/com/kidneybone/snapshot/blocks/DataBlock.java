@@ -3,7 +3,7 @@ package com.kidneybone.snapshot.blocks;
 import java.nio.ByteBuffer;
 
 public class DataBlock extends BasicBlock {
-    private byte[] _contents;
+    protected byte[] _contents;
 
     public DataBlock() {
         _contents = new byte[BLOCK_SIZE_BYTES];
@@ -11,11 +11,33 @@ public class DataBlock extends BasicBlock {
 
     public DataBlock(ByteBuffer buffer) {
         _contents = new byte[BLOCK_SIZE_BYTES];
+        setContents(buffer);
+    }
+
+    /**
+     * Replaces the content of the block with the content of the buffer, so
+     * that one block can be reused for every piece of a file.
+     */
+    public void setContents(ByteBuffer buffer) {
         buffer.get(_contents);
     }
 
+    /**
+     * Gets the number of bytes of file content stored in this block.
+     */
+    public int getLength() {
+        return BLOCK_SIZE_BYTES;
+    }
+
+    /**
+     * Checks whether every byte of content in the block is zero.
+     */
+    public boolean isZero() {
+        return BlockUtils.isZero(ByteBuffer.wrap(_contents, 0, getLength()));
+    }
+
     public long writeContent(ByteBuffer buffer, long maxSize) {
-        long bytesRead = Math.min(maxSize, BLOCK_SIZE_BYTES);
+        long bytesRead = Math.min(maxSize, getLength());
         buffer.put(_contents, 0, (int) bytesRead);
         return bytesRead;
     }
@@ -0,0 +1,30 @@
+package com.kidneybone.snapshot.blocks;
+
+/**
+ * Lists the contents of one directory in a commit, like a tree object in
+ * Git. Each entry is either a file, with its size and file block, or a
+ * subdirectory, whose name ends with a / and which holds the number of files
+ * under it and the address of its own directory block.
+ *
+ * A directory block only changes if something under it changed, so every
+ * directory which is the same in two commits is stored once, and comparing
+ * two directories starts with comparing their addresses. Entries are sorted
+ * by name and stored the same way as in manifest blocks. Directories which
+ * don't fit in one block continue in the block that the next pointer refers
+ * to.
+ */
+public class DirectoryBlock extends ManifestBlock {
+    public static final String DIRECTORY_SUFFIX = "/";
+
+    public DirectoryBlock(BlockFormat format) {
+        super(format);
+    }
+
+    public DirectoryBlock(BlockFormat format, BlockHash nextBlock) {
+        super(format, nextBlock);
+    }
+
+    public boolean isDirectoryEntry(int i) {
+        return getEntryPath(i).endsWith(DIRECTORY_SUFFIX);
+    }
+}
@@ -1,31 +1,35 @@
 package com.kidneybone.snapshot.blocks;
 
-import static com.kidneybone.snapshot.blocks.BlockUtils.isEmptyHash;
-import static com.kidneybone.snapshot.blocks.BlockUtils.isValidHash;
-import static com.kidneybone.snapshot.blocks.BlockUtils.readHash;
-import static com.kidneybone.snapshot.blocks.BlockUtils.writeHash;
-
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 public class FileBlock extends BasicBlock {
-    public static final int ENTRIES_PER_BLOCK = (BLOCK_SIZE_BYTES - HASH_SIZE_BYTES) / HASH_SIZE_BYTES;
-    private ArrayList<String> _pointers = new ArrayList<String>();
-    private String _previousBlock = EMPTY_HASH;
+    private final int _capacity;
+    private ArrayList<BlockHash> _pointers = new ArrayList<BlockHash>();
+    private BlockHash _previousBlock;
+
+    public FileBlock(BlockFormat format) {
+        this(format, BlockHash.EMPTY);
+    }
 
-    public FileBlock() {
-        _previousBlock = EMPTY_HASH;
+    public FileBlock(BlockFormat format, BlockHash previousBlock) {
+        super(format);
+        _capacity = entriesPerBlock(format);
+        _previousBlock = previousBlock;
     }
 
-    public FileBlock(String previousBlock) {
-        _previousBlock = EMPTY_HASH;
+    /**
+     * Gets the number of data block pointers that fit in a file block.
+     */
+    public static int entriesPerBlock(BlockFormat format) {
+        return (BLOCK_SIZE_BYTES - format.getHashSizeBytes()) / format.getHashSizeBytes();
     }
 
-    public String getEntryPointer(int i) {
+    public BlockHash getEntryPointer(int i) {
         return _pointers.get(i);
     }
 
-    public String getPreviousPointer() {
+    public BlockHash getPreviousPointer() {
         return _previousBlock;
     }
 
@@ -34,16 +38,16 @@ public class FileBlock extends BasicBlock {
     }
 
     public boolean isFull() {
-        return _pointers.size() == ENTRIES_PER_BLOCK;
+        return _pointers.size() == _capacity;
     }
 
-    public void registerBlock(String pointer) {
-        if (_pointers.size() == ENTRIES_PER_BLOCK) {
-            throw new IllegalStateException("Cannot add more than " + ENTRIES_PER_BLOCK + " to a single index block");
+    public void registerBlock(BlockHash pointer) {
+        if (_pointers.size() == _capacity) {
+            throw new IllegalStateException("Cannot add more than " + _capacity + " to a single index block");
         }
 
-        if (!isValidHash(pointer)) {
-            throw new IllegalArgumentException("Cannot store pointer, is not valid SHA256 hash");
+        if (pointer.isEmpty()) {
+            throw new IllegalArgumentException("Cannot store pointer, is the empty hash");
         }
 
         _pointers.add(pointer);
@@ -51,28 +55,28 @@ public class FileBlock extends BasicBlock {
 
     @Override
     protected void toBuffer(ByteBuffer buffer) {
-        for (int i = 0; i < ENTRIES_PER_BLOCK; i++) {
+        for (int i = 0; i < _capacity; i++) {
             if (i < _pointers.size()) {
-                writeHash(buffer, _pointers.get(i));
+                _format.writeHash(buffer, _pointers.get(i));
             } else {
-                writeHash(buffer, EMPTY_HASH);
+                _format.writeHash(buffer, BlockHash.EMPTY);
             }
         }
 
-        writeHash(buffer, _previousBlock);
+        _format.writeHash(buffer, _previousBlock);
     }
 
     @Override
     protected void fromBuffer(ByteBuffer buffer) {
         _pointers.clear();
 
-        for (int i = 0; i < ENTRIES_PER_BLOCK; i++) {
-            String pointer = readHash(buffer);
-            if (!isEmptyHash(pointer)) {
+        for (int i = 0; i < _capacity; i++) {
+            BlockHash pointer = _format.readHash(buffer);
+            if (!pointer.isEmpty()) {
                 _pointers.add(pointer);
             }
         }
 
-        _previousBlock = readHash(buffer);
+        _previousBlock = _format.readHash(buffer);
     }
 }
@@ -1,30 +1,34 @@
 package com.kidneybone.snapshot.blocks;
 
-import static com.kidneybone.snapshot.blocks.BlockUtils.isEmptyHash;
-import static com.kidneybone.snapshot.blocks.BlockUtils.isValidHash;
-import static com.kidneybone.snapshot.blocks.BlockUtils.readHash;
-import static com.kidneybone.snapshot.blocks.BlockUtils.writeHash;
-
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 public class IndexBlock extends BasicBlock {
-    public static final int ENTRIES_PER_BLOCK = (BLOCK_SIZE_BYTES - HASH_SIZE_BYTES) / (HASH_SIZE_BYTES + 8 + 4 + 4);
-    private ArrayList<String> _pointers = new ArrayList<String>();
+    private final int _capacity;
+    private ArrayList<BlockHash> _pointers = new ArrayList<BlockHash>();
     private ArrayList<Long> _offsets = new ArrayList<Long>();
     private ArrayList<Integer> _sizes = new ArrayList<Integer>();
-    private ArrayList<Boolean> _compressedStatus = new ArrayList<Boolean>();
-    private String _nextBlock;
+    private ArrayList<Integer> _codecs = new ArrayList<Integer>();
+    private BlockHash _nextBlock;
 
-    public IndexBlock() {
-        _nextBlock = EMPTY_HASH;
+    public IndexBlock(BlockFormat format) {
+        this(format, BlockHash.EMPTY);
     }
 
-    public IndexBlock(String nextBlock) {
+    public IndexBlock(BlockFormat format, BlockHash nextBlock) {
+        super(format);
+        _capacity = entriesPerBlock(format);
         _nextBlock = nextBlock;
     }
 
-    public String getEntryPointer(int i) {
+    /**
+     * Gets the number of entries that fit in an index block.
+     */
+    public static int entriesPerBlock(BlockFormat format) {
+        return (BLOCK_SIZE_BYTES - format.getHashSizeBytes()) / (format.getHashSizeBytes() + 8 + 4 + 4);
+    }
+
+    public BlockHash getEntryPointer(int i) {
         return _pointers.get(i);
     }
 
@@ -36,11 +40,14 @@ public class IndexBlock extends BasicBlock {
         return _sizes.get(i);
     }
 
-    public boolean getEntryIsCompressed(int i) {
-        return _compressedStatus.get(i);
+    /**
+     * Gets the ID of the codec that the entry's block was stored with.
+     */
+    public int getEntryCodec(int i) {
+        return _codecs.get(i);
     }
 
-    public String getNextPointer() {
+    public BlockHash getNextPointer() {
         return _nextBlock;
     }
 
@@ -49,16 +56,16 @@ public class IndexBlock extends BasicBlock {
     }
 
     public boolean isFull() {
-        return _pointers.size() == ENTRIES_PER_BLOCK;
+        return _pointers.size() == _capacity;
     }
 
-    public void registerBlock(String pointer, long offset, int size, boolean isCompressed) {
-        if (_pointers.size() == ENTRIES_PER_BLOCK) {
-            throw new IllegalStateException("Cannot add more than " + ENTRIES_PER_BLOCK + " to a single index block");
+    public void registerBlock(BlockHash pointer, long offset, int size, int codec) {
+        if (_pointers.size() == _capacity) {
+            throw new IllegalStateException("Cannot add more than " + _capacity + " to a single index block");
         }
 
-        if (!isValidHash(pointer)) {
-            throw new IllegalArgumentException("Cannot store pointer, is not valid SHA256 hash");
+        if (pointer.isEmpty()) {
+            throw new IllegalArgumentException("Cannot store pointer, is the empty hash");
         }
 
         if (offset < 0) {
@@ -72,47 +79,49 @@ public class IndexBlock extends BasicBlock {
         _pointers.add(pointer);
         _offsets.add(offset);
         _sizes.add(size);
-        _compressedStatus.add(isCompressed);
+        _codecs.add(codec);
     }
 
     @Override
     protected void toBuffer(ByteBuffer buffer) {
-        for (int i = 0; i < ENTRIES_PER_BLOCK; i++) {
+        for (int i = 0; i < _capacity; i++) {
             if (i < _pointers.size()) {
-                writeHash(buffer, _pointers.get(i));
+                _format.writeHash(buffer, _pointers.get(i));
                 buffer.putLong(_offsets.get(i));
                 buffer.putInt(_sizes.get(i));
-                buffer.putInt(_compressedStatus.get(i) ? 1 : 0);
+                buffer.putInt(_codecs.get(i));
             } else {
-                writeHash(buffer, EMPTY_HASH);
+                _format.writeHash(buffer, BlockHash.EMPTY);
                 buffer.putLong(0);
                 buffer.putInt(0);
                 buffer.putInt(0);
             }
         }
 
-        writeHash(buffer, _nextBlock);
+        _format.writeHash(buffer, _nextBlock);
     }
 
     @Override
     protected void fromBuffer(ByteBuffer buffer) {
         _pointers.clear();
         _offsets.clear();
+        _sizes.clear();
+        _codecs.clear();
 
-        for (int i = 0; i < ENTRIES_PER_BLOCK; i++) {
-            String pointer = readHash(buffer);
+        for (int i = 0; i < _capacity; i++) {
+            BlockHash pointer = _format.readHash(buffer);
             long offset = buffer.getLong();
             int size = buffer.getInt();
-            boolean isCompressed = buffer.getInt() == 1;
+            int codec = buffer.getInt();
 
-            if (!isEmptyHash(pointer)) {
+            if (!pointer.isEmpty()) {
                 _pointers.add(pointer);
                 _offsets.add(offset);
                 _sizes.add(size);
-                _compressedStatus.add(isCompressed);
+                _codecs.add(codec);
             }
         }
 
-        _nextBlock = readHash(buffer);
+        _nextBlock = _format.readHash(buffer);
     }
 }
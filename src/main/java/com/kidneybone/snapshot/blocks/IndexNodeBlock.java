@@ -0,0 +1,185 @@
+package com.kidneybone.snapshot.blocks;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * A node in the B+tree index. Leaf nodes map block hashes to where those
+ * blocks are stored, while interior nodes map the smallest hash stored under
+ * each child to where that child node is stored.
+ *
+ * Since tree nodes are what resolve hashes to locations, they can't be
+ * referred to by hash themselves. Parents always refer to their children by
+ * offset instead.
+ */
+public class IndexNodeBlock extends BasicBlock {
+    private final int _capacity;
+    private boolean _isLeaf;
+    private ArrayList<BlockHash> _keys = new ArrayList<BlockHash>();
+    private ArrayList<Long> _offsets = new ArrayList<Long>();
+    private ArrayList<Integer> _sizes = new ArrayList<Integer>();
+    private ArrayList<Integer> _codecs = new ArrayList<Integer>();
+
+    public IndexNodeBlock(BlockFormat format) {
+        this(format, true);
+    }
+
+    public IndexNodeBlock(BlockFormat format, boolean isLeaf) {
+        super(format);
+        _capacity = entriesPerBlock(format);
+        _isLeaf = isLeaf;
+    }
+
+    /**
+     * Gets the number of entries that fit in an index node.
+     */
+    public static int entriesPerBlock(BlockFormat format) {
+        return (BLOCK_SIZE_BYTES - 8) / (format.getHashSizeBytes() + 8 + 4 + 4);
+    }
+
+    public boolean isLeaf() {
+        return _isLeaf;
+    }
+
+    public BlockHash getEntryKey(int i) {
+        return _keys.get(i);
+    }
+
+    public long getEntryOffset(int i) {
+        return _offsets.get(i);
+    }
+
+    public int getEntrySize(int i) {
+        return _sizes.get(i);
+    }
+
+    /**
+     * Gets the ID of the codec that the entry's block was stored with.
+     */
+    public int getEntryCodec(int i) {
+        return _codecs.get(i);
+    }
+
+    public int size() {
+        return _keys.size();
+    }
+
+    public boolean isFull() {
+        return _keys.size() == _capacity;
+    }
+
+    /**
+     * Adds an entry to the end of the node. Entries must be added in
+     * ascending order of their keys.
+     */
+    public void registerEntry(BlockHash key, long offset, int size, int codec) {
+        if (_keys.size() == _capacity) {
+            throw new IllegalStateException("Cannot add more than " + _capacity + " to a single index node");
+        }
+
+        if (key.isEmpty()) {
+            throw new IllegalArgumentException("Cannot store key, is the empty hash");
+        }
+
+        if (!_keys.isEmpty() && _keys.get(_keys.size() - 1).compareTo(key) >= 0) {
+            throw new IllegalArgumentException("Cannot store key, index node entries must be in ascending order");
+        }
+
+        if (offset < 0) {
+            throw new IllegalArgumentException("Cannot store offset, must be non-negative");
+        }
+
+        if (size < 0) {
+            throw new IllegalArgumentException("Cannot store size, must be non-negative");
+        }
+
+        _keys.add(key);
+        _offsets.add(offset);
+        _sizes.add(size);
+        _codecs.add(codec);
+    }
+
+    /**
+     * Finds the entry with the given key, returning -1 if there isn't one.
+     */
+    public int findEntry(BlockHash key) {
+        int low = 0;
+        int high = _keys.size() - 1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int order = _keys.get(middle).compareTo(key);
+
+            if (order < 0) {
+                low = middle + 1;
+            } else if (order > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Finds the last entry whose key is less than or equal to the given key,
+     * which for an interior node is the child that could contain it. Returns
+     * -1 if every entry is greater than the key.
+     */
+    public int findFloorEntry(BlockHash key) {
+        int low = 0;
+        int high = _keys.size() - 1;
+        int floor = -1;
+
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (_keys.get(middle).compareTo(key) <= 0) {
+                floor = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        return floor;
+    }
+
+    @Override
+    protected void toBuffer(ByteBuffer buffer) {
+        buffer.putInt(_isLeaf ? 1 : 0);
+        buffer.putInt(_keys.size());
+
+        for (int i = 0; i < _keys.size(); i++) {
+            _format.writeHash(buffer, _keys.get(i));
+            buffer.putLong(_offsets.get(i));
+            buffer.putInt(_sizes.get(i));
+            buffer.putInt(_codecs.get(i));
+        }
+    }
+
+    @Override
+    protected void fromBuffer(ByteBuffer buffer) {
+        _keys.clear();
+        _offsets.clear();
+        _sizes.clear();
+        _codecs.clear();
+
+        _isLeaf = buffer.getInt() == 1;
+        int count = buffer.getInt();
+
+        for (int i = 0; i < count; i++) {
+            BlockHash key = _format.readHash(buffer);
+            long offset = buffer.getLong();
+            int size = buffer.getInt();
+            int codec = buffer.getInt();
+
+            if (!key.isEmpty()) {
+                _keys.add(key);
+                _offsets.add(offset);
+                _sizes.add(size);
+                _codecs.add(codec);
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.kidneybone.snapshot.blocks;
+
+import static com.kidneybone.snapshot.blocks.BlockUtils.readVarLong;
+import static com.kidneybone.snapshot.blocks.BlockUtils.utf8Decode;
+import static com.kidneybone.snapshot.blocks.BlockUtils.utf8Encode;
+import static com.kidneybone.snapshot.blocks.BlockUtils.varLongSize;
+import static com.kidneybone.snapshot.blocks.BlockUtils.writeVarLong;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A compact replacement for commit data blocks. Instead of giving every path
+ * a fixed 4 KB slot, entries are packed one after another, and each path only
+ * stores what it doesn't share with the path before it. Files are added in
+ * directory order, so neighbouring paths usually share most of their bytes,
+ * and a block holds hundreds or thousands of files instead of 15.
+ *
+ * Each entry is the number of bytes shared with the previous path, the number
+ * of bytes that follow (both varints), those bytes, the size of the file
+ * (varint), and the address of its file block.
+ */
+public class ManifestBlock extends BasicBlock {
+    // Paths have the same limit as in commit data blocks, so any file can be
+    // stored in either kind of block
+    public static final int MAX_PATH_BYTES = CommitDataBlock.PATH_SIZE_BYTES;
+
+    // What the first path in the block is compared against
+    private static final byte[] NO_PATH = new byte[0];
+
+    private ArrayList<String> _paths = new ArrayList<String>();
+    private ArrayList<byte[]> _encodedPaths = new ArrayList<byte[]>();
+    private ArrayList<Long> _sizes = new ArrayList<Long>();
+    private ArrayList<BlockHash> _pointers = new ArrayList<BlockHash>();
+    private BlockHash _nextBlock;
+    private int _usedBytes;
+
+    public ManifestBlock(BlockFormat format) {
+        this(format, BlockHash.EMPTY);
+    }
+
+    public ManifestBlock(BlockFormat format, BlockHash nextBlock) {
+        this(format, nextBlock, 0);
+    }
+
+    /**
+     * Creates a block for a subclass which writes the given number of bytes
+     * of its own before the manifest's fields.
+     */
+    protected ManifestBlock(BlockFormat format, BlockHash nextBlock, int headerBytes) {
+        super(format);
+        _nextBlock = nextBlock;
+        _usedBytes = headerBytes + format.getHashSizeBytes() + 4;
+    }
+
+    public String getEntryPath(int i) {
+        return _paths.get(i);
+    }
+
+    public long getEntrySize(int i) {
+        return _sizes.get(i);
+    }
+
+    public BlockHash getEntryFilePointer(int i) {
+        return _pointers.get(i);
+    }
+
+    public BlockHash getNextPointer() {
+        return _nextBlock;
+    }
+
+    public int size() {
+        return _paths.size();
+    }
+
+    /**
+     * Checks whether an entry for the given file would fit in the block.
+     */
+    public boolean hasRoomFor(String path, long size) {
+        return _usedBytes + entrySize(utf8Encode(path), size) <= BLOCK_SIZE_BYTES;
+    }
+
+    public void registerFile(String path, long size, BlockHash pointer) {
+        if (pointer.isEmpty()) {
+            throw new IllegalArgumentException("Cannot store pointer, is the empty hash");
+        }
+
+        if (size < 0) {
+            throw new IllegalArgumentException("Cannot store file size, must be non-negative");
+        }
+
+        byte[] encodedPath = utf8Encode(path);
+        if (encodedPath.length > MAX_PATH_BYTES) {
+            throw new IllegalArgumentException("Cannot store path, requires more than " + MAX_PATH_BYTES + " bytes to store");
+        }
+
+        int entrySize = entrySize(encodedPath, size);
+        if (_usedBytes + entrySize > BLOCK_SIZE_BYTES) {
+            throw new IllegalStateException("Cannot add " + path + " to a manifest block with " + _paths.size() + " files");
+        }
+
+        _paths.add(path);
+        _encodedPaths.add(encodedPath);
+        _sizes.add(size);
+        _pointers.add(pointer);
+        _usedBytes += entrySize;
+    }
+
+    private int entrySize(byte[] encodedPath, long size) {
+        byte[] previous = _encodedPaths.isEmpty() ? NO_PATH : _encodedPaths.get(_encodedPaths.size() - 1);
+        int shared = sharedPrefix(previous, encodedPath);
+        int suffix = encodedPath.length - shared;
+        return varLongSize(shared) + varLongSize(suffix) + suffix + varLongSize(size) + _format.getHashSizeBytes();
+    }
+
+    /**
+     * Gets the number of bytes at the start of the path which are the same
+     * as in the previous path.
+     */
+    private static int sharedPrefix(byte[] previous, byte[] encodedPath) {
+        int limit = Math.min(previous.length, encodedPath.length);
+        int shared = 0;
+        while (shared < limit && previous[shared] == encodedPath[shared]) {
+            shared++;
+        }
+
+        return shared;
+    }
+
+    @Override
+    protected void toBuffer(ByteBuffer buffer) {
+        _format.writeHash(buffer, _nextBlock);
+        buffer.putInt(_paths.size());
+
+        byte[] previous = NO_PATH;
+        for (int i = 0; i < _paths.size(); i++) {
+            byte[] encodedPath = _encodedPaths.get(i);
+            int shared = sharedPrefix(previous, encodedPath);
+
+            writeVarLong(buffer, shared);
+            writeVarLong(buffer, encodedPath.length - shared);
+            buffer.put(encodedPath, shared, encodedPath.length - shared);
+            writeVarLong(buffer, _sizes.get(i));
+            _format.writeHash(buffer, _pointers.get(i));
+
+            previous = encodedPath;
+        }
+    }
+
+    @Override
+    protected void fromBuffer(ByteBuffer buffer) {
+        _paths.clear();
+        _encodedPaths.clear();
+        _sizes.clear();
+        _pointers.clear();
+
+        int start = buffer.position();
+        _nextBlock = _format.readHash(buffer);
+        int count = buffer.getInt();
+
+        byte[] path = new byte[MAX_PATH_BYTES];
+        for (int i = 0; i < count; i++) {
+            int shared = (int) readVarLong(buffer);
+            int suffix = (int) readVarLong(buffer);
+            if (shared < 0 || suffix < 0 || shared + suffix > MAX_PATH_BYTES) {
+                throw new IllegalArgumentException("Found a manifest entry with a path longer than " + MAX_PATH_BYTES + " bytes");
+            }
+
+            // The shared bytes are already in place from the previous path
+            buffer.get(path, shared, suffix);
+            long size = readVarLong(buffer);
+            BlockHash pointer = _format.readHash(buffer);
+
+            _paths.add(utf8Decode(path, 0, shared + suffix));
+            _encodedPaths.add(Arrays.copyOf(path, shared + suffix));
+            _sizes.add(size);
+            _pointers.add(pointer);
+        }
+
+        _usedBytes = buffer.position() - start;
+    }
+}
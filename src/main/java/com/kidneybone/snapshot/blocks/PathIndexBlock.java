@@ -0,0 +1,52 @@
+package com.kidneybone.snapshot.blocks;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A node in the path index of a commit, which lists the same files as its
+ * manifest but sorted by path, so that a single file can be found without
+ * reading the whole manifest.
+ *
+ * The index is a tree stored bottom up. Nodes at level 0 hold the files
+ * themselves, with their sizes and file blocks. Nodes above that hold the
+ * first path under each child, the number of files under it, and the address
+ * of the child. Entries are stored the same way as in manifest blocks, after
+ * a byte holding the level; the next block pointer isn't used.
+ */
+public class PathIndexBlock extends ManifestBlock {
+    private int _level;
+
+    public PathIndexBlock(BlockFormat format) {
+        this(format, 0);
+    }
+
+    public PathIndexBlock(BlockFormat format, int level) {
+        super(format, BlockHash.EMPTY, 1);
+
+        if (level < 0 || level > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("Cannot store path index level " + level);
+        }
+
+        _level = level;
+    }
+
+    public int getLevel() {
+        return _level;
+    }
+
+    public boolean isLeaf() {
+        return _level == 0;
+    }
+
+    @Override
+    protected void toBuffer(ByteBuffer buffer) {
+        buffer.put((byte) _level);
+        super.toBuffer(buffer);
+    }
+
+    @Override
+    protected void fromBuffer(ByteBuffer buffer) {
+        _level = buffer.get();
+        super.fromBuffer(buffer);
+    }
+}
@@ -1,39 +1,49 @@
 package com.kidneybone.snapshot.blocks;
 
-import static com.kidneybone.snapshot.blocks.BlockUtils.isValidHash;
 import static com.kidneybone.snapshot.blocks.BlockUtils.readCString;
-import static com.kidneybone.snapshot.blocks.BlockUtils.readHash;
 import static com.kidneybone.snapshot.blocks.BlockUtils.utf8Encode;
 import static com.kidneybone.snapshot.blocks.BlockUtils.writeCString;
-import static com.kidneybone.snapshot.blocks.BlockUtils.writeHash;
+import static com.kidneybone.snapshot.blocks.BlockUtils.writeZeros;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 public class TagBlock extends BasicBlock {
-    public static final int ENCODED_TAG_SIZE = HASH_SIZE_BYTES;
-    public static final int ENTRIES_PER_BLOCK = (BLOCK_SIZE_BYTES - HASH_SIZE_BYTES) / (ENCODED_TAG_SIZE + HASH_SIZE_BYTES);
+    // Tag names were sized to match hex hashes, and stay that size in every
+    // format
+    public static final int ENCODED_TAG_SIZE = 64;
+
+    private final int _capacity;
     private ArrayList<String> _names = new ArrayList<String>();
-    private ArrayList<String> _pointers = new ArrayList<String>();
-    private String _nextBlock;
+    private ArrayList<BlockHash> _pointers = new ArrayList<BlockHash>();
+    private BlockHash _nextBlock;
 
-    public TagBlock() {
-        _nextBlock = EMPTY_HASH;
+    public TagBlock(BlockFormat format) {
+        this(format, BlockHash.EMPTY);
     }
 
-    public TagBlock(String nextBlock) {
+    public TagBlock(BlockFormat format, BlockHash nextBlock) {
+        super(format);
+        _capacity = entriesPerBlock(format);
         _nextBlock = nextBlock;
     }
 
+    /**
+     * Gets the number of tags that fit in a tag block.
+     */
+    public static int entriesPerBlock(BlockFormat format) {
+        return (BLOCK_SIZE_BYTES - format.getHashSizeBytes()) / (ENCODED_TAG_SIZE + format.getHashSizeBytes());
+    }
+
     public String getEntryName(int i) {
         return _names.get(i);
     }
 
-    public String getEntryCommit(int i) {
+    public BlockHash getEntryCommit(int i) {
         return _pointers.get(i);
     }
 
-    public String getNextPointer() {
+    public BlockHash getNextPointer() {
         return _nextBlock;
     }
 
@@ -42,16 +52,16 @@ public class TagBlock extends BasicBlock {
     }
 
     public boolean isFull() {
-        return _pointers.size() == ENTRIES_PER_BLOCK;
+        return _pointers.size() == _capacity;
     }
 
-    public void registerTag(String name, String pointer) {
-        if (_names.size() == ENTRIES_PER_BLOCK) {
-            throw new IllegalStateException("Cannot add more than " + ENTRIES_PER_BLOCK + " to a single tag block");
+    public void registerTag(String name, BlockHash pointer) {
+        if (_names.size() == _capacity) {
+            throw new IllegalStateException("Cannot add more than " + _capacity + " to a single tag block");
         }
 
-        if (!isValidHash(pointer)) {
-            throw new IllegalArgumentException("Cannot store pointer, is not valid SHA256 hash");
+        if (pointer.isEmpty()) {
+            throw new IllegalArgumentException("Cannot store pointer, is the empty hash");
         }
 
         byte[] encodedName = utf8Encode(name);
@@ -65,25 +75,24 @@ public class TagBlock extends BasicBlock {
 
     @Override
     protected void toBuffer(ByteBuffer buffer) {
-        byte[] zeroBuffer = new byte[ENCODED_TAG_SIZE];
-        for (int i = 0; i < ENTRIES_PER_BLOCK; i++) {
+        for (int i = 0; i < _capacity; i++) {
             if (i < _names.size()) {
                 writeCString(buffer, _names.get(i), ENCODED_TAG_SIZE);
-                writeHash(buffer, _pointers.get(i));
+                _format.writeHash(buffer, _pointers.get(i));
             } else {
-                buffer.put(zeroBuffer);
-                writeHash(buffer, EMPTY_HASH);
+                writeZeros(buffer, ENCODED_TAG_SIZE);
+                _format.writeHash(buffer, BlockHash.EMPTY);
             }
         }
 
-        writeHash(buffer, _nextBlock);
+        _format.writeHash(buffer, _nextBlock);
     }
 
     @Override
     protected void fromBuffer(ByteBuffer buffer) {
-        for (int i = 0; i < ENTRIES_PER_BLOCK; i++) {
+        for (int i = 0; i < _capacity; i++) {
             String name = readCString(buffer, ENCODED_TAG_SIZE);
-            String pointer = readHash(buffer);
+            BlockHash pointer = _format.readHash(buffer);
 
             if (!name.equals("")) {
                 _names.add(name);
@@ -91,6 +100,6 @@ public class TagBlock extends BasicBlock {
             }
         }
 
-        _nextBlock = readHash(buffer);
+        _nextBlock = _format.readHash(buffer);
     }
 }
@@ -0,0 +1,32 @@
+package com.kidneybone.snapshot.codecs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses serialized blocks before they're written to the block pool. Each
+ * index entry records the ID of the codec its block was stored with, so that
+ * it can be decompressed with the same one.
+ *
+ * Codecs are shared between threads, so implementations must be thread-safe.
+ */
+public interface Codec {
+    /**
+     * Gets the ID which is stored in the index for blocks using this codec.
+     */
+    int getId();
+
+    /**
+     * Compresses the remaining contents of the source into the destination.
+     * Returns false, leaving the destination in an unspecified state, if the
+     * compressed form doesn't fit into the space remaining in the
+     * destination.
+     */
+    boolean compress(ByteBuffer source, ByteBuffer destination);
+
+    /**
+     * Decompresses the remaining contents of the source into the destination,
+     * returning the number of bytes produced.
+     */
+    int decompress(ByteBuffer source, ByteBuffer destination) throws IOException;
+}
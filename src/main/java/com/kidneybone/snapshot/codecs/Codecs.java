@@ -0,0 +1,76 @@
+package com.kidneybone.snapshot.codecs;
+
+import java.io.IOException;
+
+/**
+ * The codecs which blocks can be stored with, and the IDs they're known by
+ * in the index. IDs are part of the snapshot format, so they can never be
+ * reused for a different codec.
+ */
+public final class Codecs {
+    /**
+     * The block is stored exactly as it was serialized. Index entries written
+     * before there were codecs store this as "not compressed".
+     */
+    public static final int NONE = 0;
+
+    /**
+     * The block is compressed with zlib. Index entries written before there
+     * were codecs store this as "compressed".
+     */
+    public static final int DEFLATE = 1;
+
+    /**
+     * The block is compressed with the LZ4-style codec in LzCodec.
+     */
+    public static final int LZ = 2;
+
+    public static final Codec DEFAULT = new DeflateCodec(DeflateCodec.DEFAULT_LEVEL);
+
+    private static final Codec FAST_LZ = new LzCodec();
+
+    private Codecs() {
+    }
+
+    /**
+     * Gets a codec which can decompress blocks stored with the given ID.
+     * Compression levels don't matter when decompressing, so any instance of
+     * the right codec will do.
+     */
+    public static Codec forId(int id) throws IOException {
+        switch (id) {
+            case DEFLATE:
+                return DEFAULT;
+            case LZ:
+                return FAST_LZ;
+            default:
+                throw new IOException("Unknown block codec " + id);
+        }
+    }
+
+    /**
+     * Parses a codec name, which is "none", "lz", "deflate" or
+     * "deflate:LEVEL" with a level from 1 (fastest) to 9 (smallest). Returns
+     * null for "none".
+     */
+    public static Codec parse(String name) {
+        if (name.equals("none")) {
+            return null;
+        } else if (name.equals("lz")) {
+            return FAST_LZ;
+        } else if (name.equals("deflate")) {
+            return DEFAULT;
+        } else if (name.startsWith("deflate:")) {
+            int level;
+            try {
+                level = Integer.parseInt(name.substring("deflate:".length()));
+            } catch (NumberFormatException err) {
+                throw new IllegalArgumentException("Deflate level must be an integer: " + name);
+            }
+
+            return new DeflateCodec(level);
+        }
+
+        throw new IllegalArgumentException("Unknown codec " + name);
+    }
+}
@@ -0,0 +1,70 @@
+package com.kidneybone.snapshot.codecs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses blocks with zlib. Deflaters and inflaters hold native memory
+ * and are fairly expensive to set up, so they're kept in pools and reset
+ * between blocks rather than being created for each one.
+ */
+public class DeflateCodec implements Codec {
+    public static final int DEFAULT_LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+    private final int _level;
+    private final ConcurrentLinkedQueue<Deflater> _deflaters = new ConcurrentLinkedQueue<Deflater>();
+    private final ConcurrentLinkedQueue<Inflater> _inflaters = new ConcurrentLinkedQueue<Inflater>();
+
+    public DeflateCodec(int level) {
+        if (level != DEFAULT_LEVEL && (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("Deflate level must be between 1 and 9");
+        }
+
+        _level = level;
+    }
+
+    @Override
+    public int getId() {
+        return Codecs.DEFLATE;
+    }
+
+    @Override
+    public boolean compress(ByteBuffer source, ByteBuffer destination) {
+        Deflater deflater = _deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(_level);
+        }
+
+        try {
+            deflater.setInput(source);
+            deflater.finish();
+            deflater.deflate(destination);
+            return deflater.finished();
+        } finally {
+            deflater.reset();
+            _deflaters.offer(deflater);
+        }
+    }
+
+    @Override
+    public int decompress(ByteBuffer source, ByteBuffer destination) throws IOException {
+        Inflater inflater = _inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+
+        try {
+            inflater.setInput(source);
+            return inflater.inflate(destination);
+        } catch (DataFormatException err) {
+            throw new IOException("Failure when decoding compressed block: " + err.getMessage());
+        } finally {
+            inflater.reset();
+            _inflaters.offer(inflater);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.kidneybone.snapshot.codecs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.kidneybone.snapshot.blocks.BasicBlock;
+
+/**
+ * A fast LZ77 codec using the LZ4 block format. It compresses noticeably
+ * worse than deflate, but at a fraction of the CPU cost, which makes it a
+ * good fit for data blocks when the disk is faster than deflate.
+ *
+ * Each sequence is a token byte, whose high nibble is the number of literals
+ * and low nibble is the match length less four, followed by any extra
+ * literal length bytes, the literals, the match offset (little-endian short)
+ * and any extra match length bytes. A nibble of 15 means that extra length
+ * bytes follow, which are added on until one of them isn't 255. The last
+ * sequence only has literals.
+ *
+ * Both buffers must be backed by arrays, like the ones the block store uses.
+ */
+public class LzCodec implements Codec {
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_BITS = 14;
+
+    // As in LZ4, the last few bytes are always literals, so that matches
+    // never have to be checked against the end of the input
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_FIND_LIMIT = 12;
+    private static final int SKIP_STRENGTH = 6;
+
+    // The table of recently seen positions is reused between blocks, since
+    // it's as big as a small block
+    private static final ThreadLocal<int[]> HASH_TABLE = ThreadLocal.withInitial(() -> new int[1 << HASH_BITS]);
+
+    // Where compressed blocks that aren't on the heap, such as ones read
+    // from a mapped file, are copied before being decompressed
+    private static final ThreadLocal<byte[]> INPUT_COPY = ThreadLocal.withInitial(() -> new byte[BasicBlock.BLOCK_SIZE_BYTES]);
+
+    @Override
+    public int getId() {
+        return Codecs.LZ;
+    }
+
+    @Override
+    public boolean compress(ByteBuffer source, ByteBuffer destination) {
+        byte[] input = source.array();
+        int start = source.arrayOffset() + source.position();
+        int end = source.arrayOffset() + source.limit();
+
+        byte[] output = destination.array();
+        int outputStart = destination.arrayOffset() + destination.position();
+        int outputEnd = destination.arrayOffset() + destination.limit();
+
+        // Positions are stored one higher than they are, so that zero means
+        // that nothing has been seen yet
+        int[] table = HASH_TABLE.get();
+        Arrays.fill(table, 0);
+
+        int anchor = start;
+        int op = outputStart;
+
+        if (end - start > MATCH_FIND_LIMIT) {
+            int matchFindEnd = end - MATCH_FIND_LIMIT;
+            int matchEnd = end - LAST_LITERALS;
+
+            // Like LZ4, the search speeds up the longer it goes without
+            // finding a match, so that incompressible blocks are given up on
+            // quickly
+            int misses = 0;
+
+            int i = start;
+            while (i < matchFindEnd) {
+                int sequence = readInt(input, i);
+                int slot = hash(sequence);
+                int reference = table[slot] - 1 + start;
+                table[slot] = i - start + 1;
+
+                if (reference < start || i - reference > MAX_OFFSET || readInt(input, reference) != sequence) {
+                    i += 1 + (misses++ >>> SKIP_STRENGTH);
+                    continue;
+                }
+
+                misses = 0;
+
+                int length = MIN_MATCH;
+                while (i + length < matchEnd && input[reference + length] == input[i + length]) {
+                    length++;
+                }
+
+                // The match may also extend backwards into the literals
+                while (i > anchor && reference > start && input[i - 1] == input[reference - 1]) {
+                    i--;
+                    reference--;
+                    length++;
+                }
+
+                op = writeSequence(input, anchor, i - anchor, i - reference, length, output, op, outputEnd);
+                if (op == -1) {
+                    return false;
+                }
+
+                i += length;
+                anchor = i;
+            }
+        }
+
+        op = writeSequence(input, anchor, end - anchor, 0, 0, output, op, outputEnd);
+        if (op == -1) {
+            return false;
+        }
+
+        source.position(source.limit());
+        destination.position(op - destination.arrayOffset());
+        return true;
+    }
+
+    @Override
+    public int decompress(ByteBuffer source, ByteBuffer destination) throws IOException {
+        byte[] input;
+        int ip;
+        int inputEnd;
+        if (source.hasArray()) {
+            input = source.array();
+            ip = source.arrayOffset() + source.position();
+            inputEnd = source.arrayOffset() + source.limit();
+        } else {
+            if (source.remaining() > BasicBlock.BLOCK_SIZE_BYTES) {
+                throw new IOException("Compressed block is larger than a block");
+            }
+
+            input = INPUT_COPY.get();
+            ip = 0;
+            inputEnd = source.remaining();
+            source.duplicate().get(input, 0, inputEnd);
+        }
+
+        byte[] output = destination.array();
+        int outputStart = destination.arrayOffset() + destination.position();
+        int outputEnd = destination.arrayOffset() + destination.limit();
+        int op = outputStart;
+
+        while (true) {
+            if (ip >= inputEnd) {
+                throw new IOException("Compressed block ends in the middle of a sequence");
+            }
+
+            int token = input[ip++] & 0xff;
+
+            int literals = token >>> 4;
+            if (literals == 15) {
+                int extra;
+                do {
+                    if (ip >= inputEnd) {
+                        throw new IOException("Compressed block ends in the middle of a sequence");
+                    }
+
+                    extra = input[ip++] & 0xff;
+                    literals += extra;
+                } while (extra == 255);
+            }
+
+            if (literals > inputEnd - ip || literals > outputEnd - op) {
+                throw new IOException("Compressed block has too many literals");
+            }
+
+            System.arraycopy(input, ip, output, op, literals);
+            ip += literals;
+            op += literals;
+
+            if (ip == inputEnd) {
+                break;
+            }
+
+            if (inputEnd - ip < 2) {
+                throw new IOException("Compressed block ends in the middle of a sequence");
+            }
+
+            int offset = (input[ip] & 0xff) | ((input[ip + 1] & 0xff) << 8);
+            ip += 2;
+            if (offset == 0 || offset > op - outputStart) {
+                throw new IOException("Compressed block has a match outside of the block");
+            }
+
+            int length = token & 0x0f;
+            if (length == 15) {
+                int extra;
+                do {
+                    if (ip >= inputEnd) {
+                        throw new IOException("Compressed block ends in the middle of a sequence");
+                    }
+
+                    extra = input[ip++] & 0xff;
+                    length += extra;
+                } while (extra == 255);
+            }
+
+            length += MIN_MATCH;
+            if (length > outputEnd - op) {
+                throw new IOException("Compressed block decompresses to more than a block");
+            }
+
+            // Matches can overlap the bytes they produce, as with a run of
+            // the same byte, so they have to be copied one byte at a time
+            for (int i = 0; i < length; i++) {
+                output[op + i] = output[op - offset + i];
+            }
+
+            op += length;
+        }
+
+        source.position(source.limit());
+        destination.position(op - destination.arrayOffset());
+        return op - outputStart;
+    }
+
+    /**
+     * Writes a sequence of literals followed by a match, or just literals if
+     * the match length is zero. Returns the new output position, or -1 if
+     * the sequence doesn't fit.
+     */
+    private static int writeSequence(byte[] input, int literalStart, int literals, int offset, int length,
+                                     byte[] output, int op, int outputEnd) {
+        int matchLength = length == 0 ? 0 : length - MIN_MATCH;
+        int needed = 1 + extraLengthBytes(literals) + literals;
+        if (length != 0) {
+            needed += 2 + extraLengthBytes(matchLength);
+        }
+
+        if (needed > outputEnd - op) {
+            return -1;
+        }
+
+        output[op++] = (byte) ((Math.min(literals, 15) << 4) | Math.min(matchLength, 15));
+        op = writeExtraLength(literals, output, op);
+
+        System.arraycopy(input, literalStart, output, op, literals);
+        op += literals;
+
+        if (length != 0) {
+            output[op++] = (byte) offset;
+            output[op++] = (byte) (offset >>> 8);
+            op = writeExtraLength(matchLength, output, op);
+        }
+
+        return op;
+    }
+
+    private static int extraLengthBytes(int length) {
+        return length < 15 ? 0 : (length - 15) / 255 + 1;
+    }
+
+    private static int writeExtraLength(int length, byte[] output, int op) {
+        if (length < 15) {
+            return op;
+        }
+
+        length -= 15;
+        while (length >= 255) {
+            output[op++] = (byte) 255;
+            length -= 255;
+        }
+
+        output[op++] = (byte) length;
+        return op;
+    }
+
+    private static int readInt(byte[] data, int i) {
+        return (data[i] & 0xff) | ((data[i + 1] & 0xff) << 8) | ((data[i + 2] & 0xff) << 16) | (data[i + 3] << 24);
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_BITS);
+    }
+}